@@ -37,7 +37,11 @@ public class AllOnesGA {
 	public static void main(String[] args) {
 		// Create GA object(初始化遗传算法，作为应用程序的起点)
 		
-		GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.001, 0.95, 2);
+		// All random numbers come from this source; give it a seed, eg
+		// new RandomSource(42), to replay the same run
+		// 所有随机数都来自这个随机数源，指定种子(例如new RandomSource(42))即可重现同一次运行
+		RandomSource random = new RandomSource();
+		GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.001, 0.95, 2, random);
 		// 使用典型的参数值，种群规模=100,变异率=0.01,交叉率=0.95,精英计数为0(即暂时禁用精英策略)
 
 		// Initialize population
@@ -0,0 +1,62 @@
+package chapter2;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Checks that a double-buffered GA allocates nothing once it is running.
+ * 检查双缓冲模式下的遗传算法在稳定运行后不再分配任何内存
+ *
+ * With setDoubleBuffered(true), crossover and mutation write each generation
+ * into the population from the generation before, so once the two
+ * populations, every scratch buffer and the JIT-compiled code are in place, a
+ * whole generation, evaluation included, should not allocate a single byte.
+ * This runs the all-ones GA for a long warm-up, then reads the thread's
+ * allocated byte count before and after each crossoverPopulation,
+ * mutatePopulation and evalPopulation round. Any difference fails the check.
+ * 预热足够多代之后，读取每一代(交叉、变异和评估)前后当前线程已分配的字节数，只要有变化，检查即失败
+ *
+ * Run it with java chapter2.AllocationCheck; it needs a JVM that counts
+ * allocated bytes per thread, as HotSpot does.
+ */
+public class AllocationCheck {
+	private static final int WARM_UP_GENERATIONS = 2000;
+	private static final int CHECKED_GENERATIONS = 100;
+
+	public static void main(String[] args) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if ((threadBean instanceof com.sun.management.ThreadMXBean) == false
+				|| ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported() == false) {
+			throw new IllegalStateException("This JVM doesn't count allocated bytes per thread");
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) threadBean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+
+		// The same GA as AllOnesGA(与AllOnesGA使用相同的参数)
+		RandomSource random = new RandomSource(42);
+		GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.001, 0.95, 2, random);
+		ga.setDoubleBuffered(true);
+
+		Population population = ga.initPopulation(50);
+		ga.evalPopulation(population);
+
+		long allocated = 0;
+		for (int generation = 0; generation < WARM_UP_GENERATIONS + CHECKED_GENERATIONS; generation++) {
+			long before = threads.getThreadAllocatedBytes(threadId);
+			population = ga.crossoverPopulation(population);
+			population = ga.mutatePopulation(population);
+			ga.evalPopulation(population);
+			long after = threads.getThreadAllocatedBytes(threadId);
+			if (generation >= WARM_UP_GENERATIONS) {
+				allocated += after - before;
+			}
+		}
+
+		if (allocated != 0) {
+			throw new IllegalStateException("The generation loop allocated " + allocated + " bytes over "
+					+ CHECKED_GENERATIONS + " generations");
+		}
+		System.out.println("0 bytes allocated over " + CHECKED_GENERATIONS + " generations");
+	}
+}
@@ -1,5 +1,8 @@
 package chapter2;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 /**
  * The GeneticAlgorithm class is our main abstraction for managing the
  * operations of the genetic algorithm. This class is meant to be
@@ -58,11 +61,187 @@ public class GeneticAlgorithm {
 	 */
 	private int elitismCount; // 精英数
 
+	/**
+	 * Picks the genes to mutate by skipping ahead instead of rolling the dice
+	 * for every gene 通过跳跃的方式选择需要变异的基因
+	 */
+	private MutationSampler mutationSampler;
+
+	/**
+	 * All random decisions draw from this source 所有随机操作使用的随机数源
+	 */
+	private RandomSource random;
+
+	/**
+	 * Pool that evaluates the population in parallel, or null to evaluate on
+	 * the calling thread 并行评价种群的线程池，为null时在调用线程中评价
+	 */
+	private ForkJoinPool evaluationPool;
+
+	/**
+	 * The pool setParallelism created, if it is the evaluation pool; it is
+	 * shut down once it is replaced. Pools given to setEvaluationPool belong
+	 * to the caller setParallelism创建的线程池，被替换时关闭
+	 */
+	private ForkJoinPool ownedPool;
+
+	/**
+	 * Evaluation splits the population in halves until a piece holds at most
+	 * this many individuals 每个评价任务最多评价的个体数
+	 */
+	private int evaluationChunkSize = 32;
+
+	/**
+	 * Whether initPopulation stores all chromosomes in one gene matrix; the
+	 * operators keep whichever storage the population they are given uses 是否使用压缩存储的种群
+	 */
+	private boolean packedPopulations = false;
+
+	/**
+	 * Whether crossover and mutation write the next generation into the
+	 * population from the generation before, instead of a new one 是否使用双缓冲，将下一代写入上一代的种群而不是新建种群
+	 */
+	private boolean doubleBuffered = false;
+
+	/**
+	 * The population the next double-buffered operator writes into
+	 */
+	private Population spare;
+
+	/**
+	 * Roulette wheel for crossover, rebuilt every generation 交叉时使用的轮盘，每一代重新构建
+	 */
+	private RouletteWheel wheel;
+
 	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount) {
+		this(populationSize, mutationRate, crossoverRate, elitismCount, new RandomSource());
+	}
+
+	/**
+	 * Create a genetic algorithm that draws all of its random numbers from the
+	 * given source. Pass a RandomSource created with a fixed seed to replay a
+	 * run exactly. 使用指定随机数源创建遗传算法，使用固定种子的随机数源可以完全重现一次运行
+	 * 
+	 * @param random
+	 *            The random source
+	 */
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
+			RandomSource random) {
 		this.populationSize = populationSize; // 种群数量
 		this.mutationRate = mutationRate;// 变异率
 		this.crossoverRate = crossoverRate;// 交叉率
 		this.elitismCount = elitismCount;// 精英数量
+		this.random = random;// 随机数源
+		this.mutationSampler = new MutationSampler(mutationRate, random);
+	}
+
+	/**
+	 * Evaluate the population on the given number of threads 设置评价种群的线程数
+	 * 
+	 * The GA creates the pool itself, and shuts it down when a later
+	 * setParallelism or setEvaluationPool call replaces it.
+	 * 
+	 * @param parallelism
+	 *            The number of worker threads; 1 evaluates on the calling
+	 *            thread
+	 */
+	public void setParallelism(int parallelism) {
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		this.setEvaluationPool(pool);
+		this.ownedPool = pool;
+	}
+
+	/**
+	 * Evaluate the population on the given pool, eg ForkJoinPool.commonPool()
+	 * 
+	 * The pool stays the caller's to shut down; the GA never shuts it down.
+	 * 
+	 * @param evaluationPool
+	 *            The pool to evaluate on, or null to evaluate on the calling
+	 *            thread
+	 */
+	public void setEvaluationPool(ForkJoinPool evaluationPool) {
+		if (this.ownedPool != null) {
+			this.ownedPool.shutdown();
+			this.ownedPool = null;
+		}
+		this.evaluationPool = evaluationPool;
+	}
+
+	/**
+	 * Set the largest number of individuals a single evaluation task handles
+	 * 
+	 * The population fitness is summed in the same order for a given chunk
+	 * size, so changing it can change the last bits of the total.
+	 * 
+	 * @param evaluationChunkSize
+	 *            The largest piece of the population evaluated by one task
+	 */
+	public void setEvaluationChunkSize(int evaluationChunkSize) {
+		if (evaluationChunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1: " + evaluationChunkSize);
+		}
+		this.evaluationChunkSize = evaluationChunkSize;
+	}
+
+	/**
+	 * Choose the storage of the populations this algorithm creates 选择种群的存储方式
+	 * 
+	 * @param packedPopulations
+	 *            true to store every chromosome in one gene matrix per
+	 *            generation, false to give each individual its own array
+	 */
+	public void setPackedPopulations(boolean packedPopulations) {
+		this.packedPopulations = packedPopulations;
+	}
+
+	/**
+	 * Recycle populations instead of creating one per operator 复用种群而不是为每个算子新建种群
+	 * 
+	 * Crossover and mutation then alternate between two packed populations:
+	 * each writes the next generation into the population it was handed the
+	 * time before, so once a generation is running no populations or
+	 * chromosomes are allocated. A population passed to crossoverPopulation or
+	 * mutatePopulation must therefore not be used after the following
+	 * operator call. Double buffering works on the gene matrix, so it also
+	 * turns on packed populations.
+	 * 
+	 * @param doubleBuffered
+	 *            true to recycle populations
+	 */
+	public void setDoubleBuffered(boolean doubleBuffered) {
+		this.doubleBuffered = doubleBuffered;
+		this.spare = null;
+		if (doubleBuffered) {
+			this.packedPopulations = true;
+		}
+	}
+
+	/**
+	 * Get an empty population to write the generation after the given one
+	 * into 获取用于写入下一代的空种群
+	 * 
+	 * When double buffered, this is the population handed to the previous
+	 * operator, and the given population takes its place as the spare.
+	 * Otherwise it is a blank copy of the given population.
+	 * 
+	 * @param population
+	 *            The current generation
+	 * @return An empty population of the same size and storage
+	 */
+	private Population nextPopulation(Population population) {
+		if (this.doubleBuffered == false || population.isPacked() == false) {
+			return population.blankCopy();
+		}
+
+		Population next = this.spare;
+		if (next == null || next == population || next.hasSameShape(population) == false) {
+			next = population.blankCopy();
+		} else {
+			next.clear();
+		}
+		this.spare = population;
+		return next;
 	}
 
 	/**
@@ -81,8 +260,18 @@ public class GeneticAlgorithm {
 	 * @author cloud
 	 */
 	public Population initPopulation(int chromosomeLength) {
+		if (this.packedPopulations) {
+			// One gene matrix, filled row by row 所有染色体保存在一个基因矩阵中，逐行填充
+			long genes[] = new long[this.populationSize * Individual.wordCount(chromosomeLength)];
+			Population population = new Population(genes, chromosomeLength);
+			for (Individual individual : population.getIndividuals()) {
+				individual.randomize(this.random);
+			}
+			return population;
+		}
+
 		// Initialize population
-		Population population = new Population(this.populationSize, chromosomeLength);
+		Population population = new Population(this.populationSize, chromosomeLength, this.random);
 		return population;
 	}
 
@@ -115,13 +304,14 @@ public class GeneticAlgorithm {
 		// Track number of correct genes(跟踪正确基因的数量)
 		int correctGenes = 0;
 
-		// Loop over individual's genes(循环个体的基因)
-		for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
+		// Loop over individual's packed genes, 64 at a time(每次循环64个基因)
+		long genes[] = individual.getChromosome();
+		int chromosomeStart = individual.getChromosomeOffset();
+		int chromosomeEnd = chromosomeStart + Individual.wordCount(individual.getChromosomeLength());
+		for (int wordIndex = chromosomeStart; wordIndex < chromosomeEnd; wordIndex++) {
 			// Add one fitness point for each "1" found
-			// 对于一个个体，只要找到其一个基因是1，就将correctGenes的值增加1
-			if (individual.getGene(geneIndex) == 1) {
-				correctGenes += 1;
-			}
+			// 统计这64个基因中1的个数，并加到correctGenes上
+			correctGenes += Long.bitCount(genes[wordIndex]);
 		}
 
 		// Calculate fitness
@@ -143,6 +333,9 @@ public class GeneticAlgorithm {
 	 * population's fitness may or may not be important, but what is important here
 	 * is making sure that each individual gets evaluated.
 	 * 
+	 * After setParallelism or setEvaluationPool the individuals are evaluated
+	 * on a fork/join pool; otherwise they are evaluated on this thread.
+	 * 
 	 * @param population
 	 *            the population to evaluate
 	 */
@@ -157,15 +350,73 @@ public class GeneticAlgorithm {
 	 * @author cloud
 	 */
 	public void evalPopulation(Population population) {
-		double populationFitness = 0;
+		double populationFitness;
+		if (this.evaluationPool == null) {
+			populationFitness = this.evalRange(population, 0, population.size(), false);
+		} else {
+			populationFitness = this.evaluationPool.invoke(new EvaluationTask(population, 0, population.size()));
+		}
+		population.setPopulationFitness(populationFitness);
+	}
 
-		// Loop over population evaluating individuals and suming population fitness
-		// 循环种群评价每个个体并总结种群健康状况
-		for (Individual individual : population.getIndividuals()) {
-			populationFitness += calcFitness(individual);
+	/**
+	 * Evaluate a range of the population and sum its fitness 评价种群的一段并返回适应度之和
+	 * 
+	 * Ranges longer than the chunk size are split in half and the halves are
+	 * added left to right, so the sum is the same whether the halves ran on
+	 * one thread or many. Each call to calcFitness only writes to its own
+	 * individual and slot, so the pieces never share mutable state.
+	 * 
+	 * @param population
+	 * @param from
+	 *            First offset to evaluate
+	 * @param to
+	 *            One past the last offset to evaluate
+	 * @param fork
+	 *            Whether to hand the left half to the pool
+	 * @return The summed fitness of the range
+	 */
+	private double evalRange(Population population, int from, int to, boolean fork) {
+		if (to - from <= this.evaluationChunkSize) {
+			double populationFitness = 0;
+			for (int populationIndex = from; populationIndex < to; populationIndex++) {
+				double fitness = this.calcFitness(population.getIndividual(populationIndex));
+				population.setFitness(populationIndex, fitness);
+				populationFitness += fitness;
+			}
+			return populationFitness;
 		}
 
-		population.setPopulationFitness(populationFitness);
+		int middle = (from + to) >>> 1;
+		if (fork) {
+			EvaluationTask left = new EvaluationTask(population, from, middle);
+			left.fork();
+			double right = this.evalRange(population, middle, to, true);
+			return left.join() + right;
+		}
+		return this.evalRange(population, from, middle, false) + this.evalRange(population, middle, to, false);
+	}
+
+	/**
+	 * Evaluates one range of the population on the evaluation pool
+	 */
+	private class EvaluationTask extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+
+		private final Population population;
+		private final int from;
+		private final int to;
+
+		EvaluationTask(Population population, int from, int to) {
+			this.population = population;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Double compute() {
+			return evalRange(this.population, this.from, this.to, true);
+		}
 	}
 
 	/**
@@ -191,8 +442,8 @@ public class GeneticAlgorithm {
 	 * @return
 	 */
 	public boolean isTerminationConditionMet(Population population) {
-		for (Individual individual : population.getIndividuals()) {
-			if (individual.getFitness() == 1) {
+		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
+			if (population.getFitness(populationIndex) == 1) {
 				return true;
 			}
 		}
@@ -203,29 +454,49 @@ public class GeneticAlgorithm {
 	/**
 	 * Select parent for crossover 选择父代作交叉
 	 * 
+	 * This builds a roulette wheel for a single spin; when selecting several
+	 * parents from the same generation, build the RouletteWheel once and use
+	 * selectParent(population, wheel) instead.
+	 * 
 	 * @param population
 	 *            The population to select parent from
 	 * @return The individual selected as a parent
 	 */
 	public Individual selectParent(Population population) {
-		// Get individuals
-		// 获得个体
-		Individual individuals[] = population.getIndividuals();
+		return this.selectParent(population, new RouletteWheel(population));
+	}
 
+	/**
+	 * Select parent for crossover from a prebuilt roulette wheel 使用已构建的轮盘选择父代
+	 * 
+	 * @param population
+	 *            The population to select parent from
+	 * @param wheel
+	 *            The roulette wheel built from the population's fitness
+	 * @return The individual selected as a parent
+	 */
+	public Individual selectParent(Population population, RouletteWheel wheel) {
 		// Spin roulette wheel
 		// 旋转轮盘
-		double populationFitness = population.getPopulationFitness();
-		double rouletteWheelPosition = Math.random() * populationFitness;
-
-		// Find parent
-		double spinWheel = 0;
-		for (Individual individual : individuals) {
-			spinWheel += individual.getFitness();
-			if (spinWheel >= rouletteWheelPosition) {
-				return individual;
-			}
+		return population.getIndividual(wheel.spin(this.random));
+	}
+
+	/**
+	 * Select a whole mating pool with stochastic universal sampling 使用随机遍历抽样选择整个交配池
+	 * 
+	 * @param population
+	 *            The population to select parents from
+	 * @param count
+	 *            The number of parents to select
+	 * @return The individuals selected as parents
+	 */
+	public Individual[] selectMatingPool(Population population, int count) {
+		int selected[] = new RouletteWheel(population).spinUniversal(count, this.random);
+		Individual matingPool[] = new Individual[count];
+		for (int i = 0; i < count; i++) {
+			matingPool[i] = population.getIndividual(selected[i]);
 		}
-		return individuals[population.size() - 1];
+		return matingPool;
 	}
 
 	/**
@@ -245,6 +516,9 @@ public class GeneticAlgorithm {
 	 * changed for different types of problems.
 	 * 
 	 * This particular crossover method selects random genes from each parent.
+	 * Because the chromosome is packed into longs, it does so a word at a time:
+	 * a random 64-bit mask picks parent1's gene wherever it has a 1 and
+	 * parent2's gene wherever it has a 0.
 	 * 
 	 * @param population
 	 *            The population to apply crossover to
@@ -261,35 +535,58 @@ public class GeneticAlgorithm {
 	 * 我们执行的交叉类型取决于问题域。 我们不希望使用交叉创建无效解决方案，因此需要针对不同类型的问题更改此方法。
 	 * 
 	 * 这个交叉算法从每个亲代随机选择基因进行交叉 如果个体不经过交叉，就直接加入下一个种群，否则就创建一个新个体
+	 * 由于染色体被压缩在long数组中，每次用一个随机的64位掩码同时选择64个基因
 	 * 
 	 * @author cloud
 	 * @param population
 	 * @return
 	 */
 	public Population crossoverPopulation(Population population) {
-		// Create new population
-		Population newPopulation = new Population(population.size());
+		// Create new population, stored the same way as this one
+		// 创建与当前种群存储方式相同的新种群
+		Population newPopulation = this.nextPopulation(population);
+
+		// Build the roulette wheel once for the whole generation, reusing the
+		// last generation's wheel
+		// 每一代只构建一次轮盘，并复用上一代的轮盘
+		if (this.wheel == null) {
+			this.wheel = new RouletteWheel(population);
+		} else {
+			this.wheel.rebuild(population);
+		}
+		RouletteWheel wheel = this.wheel;
 
 		// Loop over current population by fitness
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual parent1 = population.getFittest(populationIndex);
 
 			// Apply crossover to this individual?
-			if (this.crossoverRate > Math.random() && populationIndex >= this.elitismCount) {
-				// Initialize offspring初始化子代
-				Individual offspring = new Individual(parent1.getChromosomeLength());
-
+			if (this.crossoverRate > this.random.nextDouble() && populationIndex >= this.elitismCount) {
 				// Find second parent
-				Individual parent2 = selectParent(population);
-
-				// Loop over genome 循环基因组
-				for (int geneIndex = 0; geneIndex < parent1.getChromosomeLength(); geneIndex++) {
+				Individual parent2 = selectParent(population, wheel);
+
+				// Initialize offspring; a packed population already has a row
+				// for it 初始化子代，压缩存储的种群中子代直接写入基因矩阵中的对应行
+				int wordCount = Individual.wordCount(parent1.getChromosomeLength());
+				Individual offspring = newPopulation.isPacked() ? newPopulation.getIndividual(populationIndex)
+						: new Individual(new long[wordCount], parent1.getChromosomeLength());
+				long parent1Genes[] = parent1.getChromosome();
+				long parent2Genes[] = parent2.getChromosome();
+				long offspringGenes[] = offspring.getChromosome();
+				int parent1Start = parent1.getChromosomeOffset();
+				int parent2Start = parent2.getChromosomeOffset();
+				int offspringStart = offspring.getChromosomeOffset();
+
+				// Fill the offspring with random masks, one per word
+				// 先用随机掩码填充子代，每个long一个掩码
+				this.random.nextLongs(offspringGenes, offspringStart, offspringStart + wordCount);
+
+				// Loop over genome a word at a time 每次循环基因组中的一个long
+				for (int wordIndex = 0; wordIndex < wordCount; wordIndex++) {
 					// Use half of parent1's genes and half of parent2's genes
-					if (0.5 > Math.random()) {
-						offspring.setGene(geneIndex, parent1.getGene(geneIndex));
-					} else {
-						offspring.setGene(geneIndex, parent2.getGene(geneIndex));
-					}
+					long mask = offspringGenes[offspringStart + wordIndex];
+					offspringGenes[offspringStart + wordIndex] = (parent1Genes[parent1Start + wordIndex] & mask)
+							| (parent2Genes[parent2Start + wordIndex] & ~mask);
 				}
 
 				// Add offspring to new population
@@ -312,7 +609,9 @@ public class GeneticAlgorithm {
 	 * individual in the population, and if they're lucky enough (or unlucky, as it
 	 * were), apply some randomness to their chromosome. Like crossover, the type of
 	 * mutation applied depends on the specific problem we're solving. In this case,
-	 * we simply randomly flip 0s to 1s and vice versa.
+	 * we simply randomly flip 0s to 1s and vice versa, by XOR-ing the gene's
+	 * bit in the packed chromosome. The MutationSampler jumps straight from one
+	 * mutated gene to the next, so genes that don't mutate cost nothing.
 	 * 
 	 * This method will consider the GeneticAlgorithm instance's mutationRate and
 	 * elitismCount
@@ -326,7 +625,7 @@ public class GeneticAlgorithm {
 	 * 将变异应用到种群中
 	 * 
 	 * 变异更多大的影响个体而不是种群，遍历种群中的每个个体，在每个染色体上应用随机性。和交叉一样，变异的方法取决于不同的特定的问题。
-	 * 在这种情况下，我们只是随机地将0翻转为1，反之亦然。
+	 * 在这种情况下，我们只是随机地将0翻转为1，反之亦然，即对压缩染色体中该基因所在的位做异或运算。MutationSampler直接跳到下一个需要变异的基因，不变异的基因没有任何开销。
 	 * 
 	 * 此方法将考虑GeneticAlgorithm实例的mutationRate(变异率)和elitismCount(精英数)
 	 * 在选择变异和交叉方法时，一定要确保选择的方法仍然能够得到一个有效解。这个例子中，需要确保基因变异只能产生0和1
@@ -336,30 +635,28 @@ public class GeneticAlgorithm {
 	 * @return
 	 */
 	public Population mutatePopulation(Population population) {
-		// Initialize new population
-		Population newPopulation = new Population(this.populationSize);
+		// Initialize new population, stored the same way as this one
+		// 创建与当前种群存储方式相同的新种群
+		Population newPopulation = this.nextPopulation(population);
 
 		// Loop over current population by fitness
 		// 通过适应度值循环当前种群
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual individual = population.getFittest(populationIndex);
 
-			// Loop over individual's genes
-			// 循环个体的基因
-			for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
-				// Skip mutation if this is an elite individual
-				// 如果是一个精英个体则跳过变异过程
-				if (populationIndex > this.elitismCount) {
-					// Does this gene need mutation?
-					if (this.mutationRate > Math.random()) {
-						// Get new gene
-						int newGene = 1;
-						if (individual.getGene(geneIndex) == 1) {
-							newGene = 0;
-						}
-						// Mutate gene
-						individual.setGene(geneIndex, newGene);
-					}
+			// Skip mutation if this is an elite individual
+			// 如果是一个精英个体则跳过变异过程
+			if (populationIndex > this.elitismCount) {
+				long genes[] = individual.getChromosome();
+				int chromosomeStart = individual.getChromosomeOffset();
+				int chromosomeLength = individual.getChromosomeLength();
+
+				// Loop over the genes that need mutation
+				// 循环需要变异的基因
+				for (int geneIndex = this.mutationSampler.first(chromosomeLength); geneIndex < chromosomeLength;
+						geneIndex = this.mutationSampler.next(geneIndex, chromosomeLength)) {
+					// Mutate gene
+					genes[chromosomeStart + (geneIndex >>> 6)] ^= 1L << geneIndex;
 				}
 			}
 
@@ -4,7 +4,8 @@ package chapter2;
  * An "Individual" represents a single candidate solution. The core piece of
  * information about an individual is its "chromosome", which is an encoding of
  * a possible solution to the problem at hand. A chromosome can be a string, an
- * array, a list, etc -- in this class, the chromosome is an integer array. 
+ * array, a list, etc -- in this class, the chromosome is a bit array packed
+ * into longs, 64 genes per word.
  * 
  * An individual position in the chromosome is called a gene, and these are the
  * atomic pieces of the solution that can be manipulated or mutated. When the
@@ -21,7 +22,7 @@ package chapter2;
 
 /**
  * "Individual"个体代表单个的候选解决方案,关于个人的核心信息是它的“Chromosome染色体”，表示当前问题的可能解决方案的编码，
- * 染色体可以是字符串，数组，列表等 - 在这个类中，染色体是整数数组。
+ * 染色体可以是字符串，数组，列表等 - 在这个类中，染色体是压缩到long数组中的位数组，每个long保存64个基因。
  * 
  * 染色体中的单个位置称为基因，这些是可被操作或突变的溶液的原子片段。 当染色体是一个字符串时，每个字符或一组字符可以被视为是一个基因。
  * 
@@ -32,7 +33,20 @@ package chapter2;
  */
 
 public class Individual {
-	private int[] chromosome; // 定义染色体
+	/**
+	 * Gene i is bit (i % 64) of word (i / 64). Bits past the end of the
+	 * chromosome are always zero, so whole words can be counted or blended
+	 * without masking.
+	 */
+	private long[] chromosome; // 定义染色体，每个long保存64个基因
+	private int chromosomeLength; // 染色体长度
+
+	/**
+	 * An individual in a packed population is a view onto one row of the
+	 * population's gene matrix, starting at word chromosomeOffset.
+	 * 压缩存储的种群中，个体是基因矩阵中一行的视图，从第chromosomeOffset个long开始
+	 */
+	private int chromosomeOffset;
 	private double fitness = -1; // 定义适应度值
 
 	/**
@@ -51,7 +65,41 @@ public class Individual {
 	 */
 	public Individual(int[] chromosome) {
 		// Create individual chromosome 创建个体染色体
-		this.chromosome = chromosome;
+		this(new long[wordCount(chromosome.length)], chromosome.length);
+		for (int gene = 0; gene < chromosome.length; gene++) {
+			this.setGene(gene, chromosome[gene]);
+		}
+	}
+
+	/**
+	 * Initializes individual with specific packed chromosome 用压缩后的染色体初始化个体
+	 * 
+	 * @param chromosome
+	 *            The packed genes, 64 per word; bits past chromosomeLength
+	 *            must be zero
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 */
+	public Individual(long[] chromosome, int chromosomeLength) {
+		this(chromosome, 0, chromosomeLength);
+	}
+
+	/**
+	 * Initializes individual as a view over part of a larger packed gene
+	 * array 用更大的基因数组中的一段初始化个体
+	 * 
+	 * @param genes
+	 *            The array holding the packed chromosome, eg a population's
+	 *            gene matrix
+	 * @param chromosomeOffset
+	 *            The index of the chromosome's first word in the array
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 */
+	public Individual(long[] genes, int chromosomeOffset, int chromosomeLength) {
+		this.chromosome = genes;
+		this.chromosomeOffset = chromosomeOffset;
+		this.chromosomeLength = chromosomeLength;
 	}
 
 	/**
@@ -67,36 +115,70 @@ public class Individual {
 	 * 
 	 * @param chromosomeLength
 	 *            染色体长度 The length of the individuals chromosome 染色体个体长度
+	 * @param random
+	 *            随机数源 The random source for the genes
 	 */
-	public Individual(int chromosomeLength) {
+	public Individual(int chromosomeLength, RandomSource random) {
+		this(new long[wordCount(chromosomeLength)], chromosomeLength);
+		this.randomize(random);
+	}
 
-		this.chromosome = new int[chromosomeLength];
-		for (int gene = 0; gene < chromosomeLength; gene++) {
-			if (0.5 < Math.random()) {
-				this.setGene(gene, 1);
-			} else {
-				this.setGene(gene, 0);
-			}
+	/**
+	 * Overwrite the chromosome with random zeroes and ones 用随机的0和1重写染色体
+	 * 
+	 * @param random
+	 *            随机数源 The random source for the genes
+	 */
+	public void randomize(RandomSource random) {
+		// Every bit of a random long is 0 or 1 with equal probability, so
+		// fill a whole word of genes at a time
+		int end = this.chromosomeOffset + wordCount(this.chromosomeLength);
+		random.nextLongs(this.chromosome, this.chromosomeOffset, end);
+		if (this.chromosomeLength % 64 != 0) {
+			this.chromosome[end - 1] &= (1L << this.chromosomeLength) - 1;
 		}
+	}
 
+	/**
+	 * Number of longs needed to hold a chromosome 保存染色体所需的long个数
+	 * 
+	 * @param chromosomeLength
+	 * @return word count
+	 */
+	public static int wordCount(int chromosomeLength) {
+		return (chromosomeLength + 63) >>> 6;
 	}
 
 	/**
 	 * Gets individual's chromosome 返回染色体个体
 	 * 
-	 * @return The individual's chromosome
+	 * The genes are packed 64 per word; use getGene to read a single one.
+	 * For a view into a packed population this is the whole gene matrix; the
+	 * individual's words start at getChromosomeOffset().
+	 * 
+	 * @return The array holding the individual's packed chromosome
 	 */
-	public int[] getChromosome() {
+	public long[] getChromosome() {
 		return this.chromosome;
 	}
 
+	/**
+	 * Gets the index of the individual's first word in getChromosome()
+	 * 返回染色体第一个long在数组中的位置
+	 * 
+	 * @return The chromosome offset, in words
+	 */
+	public int getChromosomeOffset() {
+		return this.chromosomeOffset;
+	}
+
 	/**
 	 * Gets individual's chromosome length 获取染色体长度
 	 * 
 	 * @return The individual's chromosome length
 	 */
 	public int getChromosomeLength() {
-		return this.chromosome.length;
+		return this.chromosomeLength;
 	}
 
 	/**
@@ -107,7 +189,11 @@ public class Individual {
 	 * @return gene
 	 */
 	public void setGene(int offset, int gene) {
-		this.chromosome[offset] = gene;
+		if (gene == 1) {
+			this.chromosome[this.chromosomeOffset + (offset >>> 6)] |= 1L << offset;
+		} else {
+			this.chromosome[this.chromosomeOffset + (offset >>> 6)] &= ~(1L << offset);
+		}
 	}
 
 	/**
@@ -117,7 +203,7 @@ public class Individual {
 	 * @return gene
 	 */
 	public int getGene(int offset) {
-		return this.chromosome[offset];
+		return (int) (this.chromosome[this.chromosomeOffset + (offset >>> 6)] >>> offset) & 1;
 	}
 
 	/**
@@ -145,10 +231,10 @@ public class Individual {
 	 * @return string representation of the chromosome
 	 */
 	public String toString() {
-		String output = "";
-		for (int gene = 0; gene < this.chromosome.length; gene++) {
-			output += this.chromosome[gene];
+		StringBuilder output = new StringBuilder(this.chromosomeLength);
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			output.append(this.getGene(gene));
 		}
-		return output;
+		return output.toString();
 	}
 }
@@ -0,0 +1,130 @@
+package chapter2;
+
+/**
+ * A roulette wheel over one generation of a population.
+ *
+ * Each individual owns a slice of the wheel as wide as its fitness. Rather
+ * than walking the population and summing fitness values on every spin, the
+ * wheel stores the cumulative fitness of each slot once, so a spin is a
+ * binary search. Build a new wheel (or rebuild this one) whenever the
+ * population's fitness values change, which is once per generation.
+ *
+ * 轮盘赌选择的轮盘。每个个体在轮盘上占据的宽度等于其适应度值。
+ * 轮盘在每一代只构建一次，保存每个位置的累积适应度值，因此每次旋转只需要一次二分查找，而不是遍历整个种群。
+ *
+ * @author cloud
+ *
+ */
+public class RouletteWheel {
+	private double cumulativeFitness[];
+
+	/**
+	 * Build a wheel from the population's current fitness values 根据种群当前的适应度值构建轮盘
+	 *
+	 * @param population
+	 *            The evaluated population to select from
+	 */
+	public RouletteWheel(Population population) {
+		this.cumulativeFitness = new double[population.size()];
+		this.rebuild(population);
+	}
+
+	/**
+	 * Refill the wheel from the population's current fitness values, reusing
+	 * its storage if the population has the same size 重新构建轮盘
+	 *
+	 * @param population
+	 *            The evaluated population to select from
+	 */
+	public void rebuild(Population population) {
+		if (this.cumulativeFitness.length != population.size()) {
+			this.cumulativeFitness = new double[population.size()];
+		}
+
+		double spinWheel = 0;
+		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
+			spinWheel += population.getFitness(populationIndex);
+			this.cumulativeFitness[populationIndex] = spinWheel;
+		}
+	}
+
+	/**
+	 * Spin the wheel once 旋转一次轮盘
+	 *
+	 * @param random
+	 *            The random source to spin with
+	 * @return The offset of the selected individual in the population
+	 */
+	public int spin(RandomSource random) {
+		double rouletteWheelPosition = random.nextDouble() * this.getTotalFitness();
+		return this.find(rouletteWheelPosition);
+	}
+
+	/**
+	 * Stochastic universal sampling 随机遍历抽样
+	 *
+	 * Instead of spinning the wheel once per selection, place count equally
+	 * spaced pointers around the wheel with a single random offset and take
+	 * every individual a pointer lands on. The whole mating pool is drawn in
+	 * one pass over the wheel, and each individual is selected within one of
+	 * its expected number of times.
+	 *
+	 * @param count
+	 *            The number of individuals to select
+	 * @param random
+	 *            The random source to place the pointers with
+	 * @return The offsets of the selected individuals, in population order
+	 */
+	public int[] spinUniversal(int count, RandomSource random) {
+		int selected[] = new int[count];
+		if (count == 0) {
+			return selected;
+		}
+
+		double totalFitness = this.getTotalFitness();
+		double pointerDistance = totalFitness / count;
+		double pointer = random.nextDouble() * pointerDistance;
+
+		int populationIndex = 0;
+		int lastIndex = this.cumulativeFitness.length - 1;
+		for (int selection = 0; selection < count; selection++) {
+			while (populationIndex < lastIndex && this.cumulativeFitness[populationIndex] < pointer) {
+				populationIndex++;
+			}
+			selected[selection] = populationIndex;
+			pointer += pointerDistance;
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Get the sum of all fitness values on the wheel
+	 *
+	 * @return total fitness
+	 */
+	public double getTotalFitness() {
+		return this.cumulativeFitness[this.cumulativeFitness.length - 1];
+	}
+
+	/**
+	 * Find the first slot whose cumulative fitness reaches the given position
+	 *
+	 * @param rouletteWheelPosition
+	 * @return The offset of that slot, or the last slot if rounding left the
+	 *         position past the end of the wheel
+	 */
+	private int find(double rouletteWheelPosition) {
+		int low = 0;
+		int high = this.cumulativeFitness.length - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.cumulativeFitness[middle] >= rouletteWheelPosition) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return low;
+	}
+}
@@ -0,0 +1,73 @@
+package chapter3;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Checks that a double-buffered GA allocates nothing once it is running.
+ *
+ * With setDoubleBuffered(true), crossover and mutation write each generation
+ * into the population from the generation before, and evaluation runs every
+ * individual on the calling thread's reusable Robot, so once the two
+ * populations, every scratch buffer and the JIT-compiled code are in place, a
+ * whole generation, evaluation included, should not allocate a single byte.
+ * This runs the robot controller GA on RobotController's maze for a long
+ * warm-up, then reads the thread's allocated byte count before and after
+ * each crossoverPopulation, mutatePopulation and evalPopulation round. Any
+ * difference fails the check.
+ *
+ * Run it with java chapter3.AllocationCheck; it needs a JVM that counts
+ * allocated bytes per thread, as HotSpot does.
+ */
+public class AllocationCheck {
+	private static final int WARM_UP_GENERATIONS = 2000;
+	private static final int CHECKED_GENERATIONS = 100;
+
+	public static void main(String[] args) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if ((threadBean instanceof com.sun.management.ThreadMXBean) == false
+				|| ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported() == false) {
+			throw new IllegalStateException("This JVM doesn't count allocated bytes per thread");
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) threadBean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+
+		// The same maze and GA as RobotController
+		Maze maze = new Maze(new int[][] { 
+			{ 0, 0, 0, 0, 1, 0, 1, 3, 2 }, 
+			{ 1, 0, 1, 1, 1, 0, 1, 3, 1 },
+			{ 1, 0, 0, 1, 3, 3, 3, 3, 1 }, 
+			{ 3, 3, 3, 1, 3, 1, 1, 0, 1 }, 
+			{ 3, 1, 3, 3, 3, 1, 1, 0, 0 },
+			{ 3, 3, 1, 1, 1, 1, 0, 1, 1 }, 
+			{ 1, 3, 0, 1, 3, 3, 3, 3, 3 }, 
+			{ 0, 3, 1, 1, 3, 1, 0, 1, 3 },
+			{ 1, 3, 3, 3, 3, 1, 1, 1, 4 } 
+		});
+		RandomSource random = new RandomSource(42);
+		GeneticAlgorithm ga = new GeneticAlgorithm(200, 0.05, 0.9, 2, 10, random);
+		ga.setDoubleBuffered(true);
+
+		Population population = ga.initPopulation(128);
+		ga.evalPopulation(population, maze);
+
+		long allocated = 0;
+		for (int generation = 0; generation < WARM_UP_GENERATIONS + CHECKED_GENERATIONS; generation++) {
+			long before = threads.getThreadAllocatedBytes(threadId);
+			population = ga.crossoverPopulation(population);
+			population = ga.mutatePopulation(population);
+			ga.evalPopulation(population, maze);
+			long after = threads.getThreadAllocatedBytes(threadId);
+			if (generation >= WARM_UP_GENERATIONS) {
+				allocated += after - before;
+			}
+		}
+
+		if (allocated != 0) {
+			throw new IllegalStateException("The generation loop allocated " + allocated + " bytes over "
+					+ CHECKED_GENERATIONS + " generations");
+		}
+		System.out.println("0 bytes allocated over " + CHECKED_GENERATIONS + " generations");
+	}
+}
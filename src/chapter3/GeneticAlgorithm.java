@@ -1,5 +1,8 @@
 package chapter3;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 /**
  * Please see chapter2/GeneticAlgorithm for additional comments.
  * 
@@ -31,14 +34,191 @@ public class GeneticAlgorithm {
 	 */
 	protected int tournamentSize;
 
+	/**
+	 * Slot offsets that tournaments draw their contestants from; any order
+	 * will do, so it is only ever permuted, never reset
+	 */
+	private int tournamentOrder[];
+
+	/**
+	 * Picks the genes to mutate by skipping ahead instead of rolling the dice
+	 * for every gene
+	 */
+	private MutationSampler mutationSampler;
+
+	/**
+	 * All random decisions draw from this source
+	 */
+	private RandomSource random;
+
+	/**
+	 * Pool that evaluates the population in parallel, or null to evaluate on
+	 * the calling thread
+	 */
+	private ForkJoinPool evaluationPool;
+
+	/**
+	 * The pool setParallelism created, if it is the evaluation pool; it is
+	 * shut down once it is replaced. Pools given to setEvaluationPool belong
+	 * to the caller
+	 */
+	private ForkJoinPool ownedPool;
+
+	/**
+	 * Evaluation splits the population in halves until a piece holds at most
+	 * this many individuals
+	 */
+	private int evaluationChunkSize = 32;
+
+	/**
+	 * Whether initPopulation stores all chromosomes in one gene matrix; the
+	 * operators keep whichever storage the population they are given uses
+	 */
+	private boolean packedPopulations = false;
+
+	/**
+	 * Whether crossover and mutation write the next generation into the
+	 * population from the generation before, instead of a new one
+	 */
+	private boolean doubleBuffered = false;
+
+	/**
+	 * The population the next double-buffered operator writes into
+	 */
+	private Population spare;
+
 	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
 			int tournamentSize) {
+		this(populationSize, mutationRate, crossoverRate, elitismCount, tournamentSize, new RandomSource());
+	}
+
+	/**
+	 * Create a genetic algorithm that draws all of its random numbers from the
+	 * given source. Pass a RandomSource created with a fixed seed to replay a
+	 * run exactly.
+	 * 
+	 * @param random
+	 *            The random source
+	 */
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
+			int tournamentSize, RandomSource random) {
 
 		this.populationSize = populationSize;
 		this.mutationRate = mutationRate;
 		this.crossoverRate = crossoverRate;
 		this.elitismCount = elitismCount;
 		this.tournamentSize = tournamentSize;
+		this.random = random;
+		this.mutationSampler = new MutationSampler(mutationRate, random);
+	}
+
+	/**
+	 * Evaluate the population on the given number of threads
+	 * 
+	 * The GA creates the pool itself, and shuts it down when a later
+	 * setParallelism or setEvaluationPool call replaces it.
+	 * 
+	 * @param parallelism
+	 *            The number of worker threads; 1 evaluates on the calling
+	 *            thread
+	 */
+	public void setParallelism(int parallelism) {
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		this.setEvaluationPool(pool);
+		this.ownedPool = pool;
+	}
+
+	/**
+	 * Evaluate the population on the given pool, eg ForkJoinPool.commonPool()
+	 * 
+	 * The pool stays the caller's to shut down; the GA never shuts it down.
+	 * 
+	 * @param evaluationPool
+	 *            The pool to evaluate on, or null to evaluate on the calling
+	 *            thread
+	 */
+	public void setEvaluationPool(ForkJoinPool evaluationPool) {
+		if (this.ownedPool != null) {
+			this.ownedPool.shutdown();
+			this.ownedPool = null;
+		}
+		this.evaluationPool = evaluationPool;
+	}
+
+	/**
+	 * Set the largest number of individuals a single evaluation task handles
+	 * 
+	 * The population fitness is summed in the same order for a given chunk
+	 * size, so changing it can change the last bits of the total.
+	 * 
+	 * @param evaluationChunkSize
+	 *            The largest piece of the population evaluated by one task
+	 */
+	public void setEvaluationChunkSize(int evaluationChunkSize) {
+		if (evaluationChunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1: " + evaluationChunkSize);
+		}
+		this.evaluationChunkSize = evaluationChunkSize;
+	}
+
+	/**
+	 * Choose the storage of the populations this algorithm creates
+	 * 
+	 * @param packedPopulations
+	 *            true to store every chromosome in one gene matrix per
+	 *            generation, false to give each individual its own array
+	 */
+	public void setPackedPopulations(boolean packedPopulations) {
+		this.packedPopulations = packedPopulations;
+	}
+
+	/**
+	 * Recycle populations instead of creating one per operator
+	 * 
+	 * Crossover and mutation then alternate between two packed populations:
+	 * each writes the next generation into the population it was handed the
+	 * time before, so once a generation is running no populations or
+	 * chromosomes are allocated. A population passed to crossoverPopulation or
+	 * mutatePopulation must therefore not be used after the following
+	 * operator call. Double buffering works on the gene matrix, so it also
+	 * turns on packed populations.
+	 * 
+	 * @param doubleBuffered
+	 *            true to recycle populations
+	 */
+	public void setDoubleBuffered(boolean doubleBuffered) {
+		this.doubleBuffered = doubleBuffered;
+		this.spare = null;
+		if (doubleBuffered) {
+			this.packedPopulations = true;
+		}
+	}
+
+	/**
+	 * Get an empty population to write the generation after the given one
+	 * into
+	 * 
+	 * When double buffered, this is the population handed to the previous
+	 * operator, and the given population takes its place as the spare.
+	 * Otherwise it is a blank copy of the given population.
+	 * 
+	 * @param population
+	 *            The current generation
+	 * @return An empty population of the same size and storage
+	 */
+	private Population nextPopulation(Population population) {
+		if (this.doubleBuffered == false || population.isPacked() == false) {
+			return population.blankCopy();
+		}
+
+		Population next = this.spare;
+		if (next == null || next == population || next.hasSameShape(population) == false) {
+			next = population.blankCopy();
+		} else {
+			next.clear();
+		}
+		this.spare = population;
+		return next;
 	}
 
 	/**
@@ -49,8 +229,17 @@ public class GeneticAlgorithm {
 	 * @return population The initial population generated
 	 */
 	public Population initPopulation(int chromosomeLength) {
+		if (this.packedPopulations) {
+			// One gene matrix, filled row by row
+			Population population = new Population(new int[this.populationSize * chromosomeLength], chromosomeLength);
+			for (Individual individual : population.getIndividuals()) {
+				individual.randomize(this.random);
+			}
+			return population;
+		}
+
 		// Initialize population
-		Population population = new Population(this.populationSize, chromosomeLength);
+		Population population = new Population(this.populationSize, chromosomeLength, this.random);
 		return population;
 	}
 
@@ -58,8 +247,8 @@ public class GeneticAlgorithm {
 	 * Calculate fitness for an individual.
 	 * 
 	 * This fitness calculation is a little more involved than chapter2's. In
-	 * this case we initialize a new Robot class, and evaluate its performance
-	 * in the given maze.
+	 * this case we reset the calling thread's Robot with the individual's
+	 * controller, and evaluate its performance in the given maze.
 	 * 
 	 * @param individual
 	 *            the individual to evaluate
@@ -70,9 +259,10 @@ public class GeneticAlgorithm {
 		int[] chromosome = individual.getChromosome();
 
 		// Get fitness
-		Robot robot = new Robot(chromosome, maze, 100);
+		Robot robot = Robot.forCurrentThread();
+		robot.reset(chromosome, individual.getChromosomeOffset(), individual.getChromosomeLength(), maze, 100);
 		robot.run();
-		int fitness = maze.scoreRoute(robot.getRoute());
+		int fitness = robot.scoreRoute();
 
 		// Store fitness
 		individual.setFitness(fitness);
@@ -93,21 +283,86 @@ public class GeneticAlgorithm {
 	 * problem in chapter2, we can't determine a fitness just by looking at the
 	 * chromosome -- we need to evaluate each member against the maze.
 	 * 
+	 * After setParallelism or setEvaluationPool the individuals are evaluated
+	 * on a fork/join pool; otherwise they are evaluated on this thread.
+	 * 
 	 * @param population
 	 *            the population to evaluate
 	 * @param maze
 	 *            the maze to evaluate each individual against.
 	 */
 	public void evalPopulation(Population population, Maze maze) {
-		double populationFitness = 0;
+		double populationFitness;
+		if (this.evaluationPool == null) {
+			populationFitness = this.evalRange(population, maze, 0, population.size(), false);
+		} else {
+			populationFitness = this.evaluationPool.invoke(new EvaluationTask(population, maze, 0, population.size()));
+		}
+		population.setPopulationFitness(populationFitness);
+	}
 
-		// Loop over population evaluating individuals and suming population
-		// fitness
-		for (Individual individual : population.getIndividuals()) {
-			populationFitness += this.calcFitness(individual, maze);
+	/**
+	 * Evaluate a range of the population and sum its fitness
+	 * 
+	 * Ranges longer than the chunk size are split in half and the halves are
+	 * added left to right, so the sum is the same whether the halves ran on
+	 * one thread or many. Each call to calcFitness only writes to its own
+	 * individual and slot, so the pieces never share mutable state.
+	 * 
+	 * @param population
+	 * @param maze
+	 *            passed on to calcFitness
+	 * @param from
+	 *            First offset to evaluate
+	 * @param to
+	 *            One past the last offset to evaluate
+	 * @param fork
+	 *            Whether to hand the left half to the pool
+	 * @return The summed fitness of the range
+	 */
+	private double evalRange(Population population, Maze maze, int from, int to, boolean fork) {
+		if (to - from <= this.evaluationChunkSize) {
+			double populationFitness = 0;
+			for (int populationIndex = from; populationIndex < to; populationIndex++) {
+				double fitness = this.calcFitness(population.getIndividual(populationIndex), maze);
+				population.setFitness(populationIndex, fitness);
+				populationFitness += fitness;
+			}
+			return populationFitness;
 		}
 
-		population.setPopulationFitness(populationFitness);
+		int middle = (from + to) >>> 1;
+		if (fork) {
+			EvaluationTask left = new EvaluationTask(population, maze, from, middle);
+			left.fork();
+			double right = this.evalRange(population, maze, middle, to, true);
+			return left.join() + right;
+		}
+		return this.evalRange(population, maze, from, middle, false) + this.evalRange(population, maze, middle, to, false);
+	}
+
+	/**
+	 * Evaluates one range of the population on the evaluation pool
+	 */
+	private class EvaluationTask extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+
+		private final Population population;
+		private final Maze maze;
+		private final int from;
+		private final int to;
+
+		EvaluationTask(Population population, Maze maze, int from, int to) {
+			this.population = population;
+			this.maze = maze;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Double compute() {
+			return evalRange(this.population, this.maze, this.from, this.to, true);
+		}
 	}
 
 	/**
@@ -133,59 +388,80 @@ public class GeneticAlgorithm {
 	 * Tournament selection works by choosing N random individuals, and then
 	 * choosing the best of those.
 	 * 
+	 * The contestants are drawn with a partial Fisher-Yates shuffle of a
+	 * reusable array of slot offsets, so they are always distinct, nothing is
+	 * allocated, and the population keeps its order. Ties go to the
+	 * contestant drawn first.
+	 * 
 	 * @param population
 	 * @return The individual selected as a parent
 	 */
 	public Individual selectParent(Population population) {
-		// Create tournament
-		Population tournament = new Population(this.tournamentSize);
-
-		// Add random individuals to the tournament
-		population.shuffle();
-		for (int i = 0; i < this.tournamentSize; i++) {
-			Individual tournamentIndividual = population.getIndividual(i);
-			tournament.setIndividual(i, tournamentIndividual);
+		int populationSize = population.size();
+		if (this.tournamentOrder == null || this.tournamentOrder.length != populationSize) {
+			this.tournamentOrder = new int[populationSize];
+			for (int offset = 0; offset < populationSize; offset++) {
+				this.tournamentOrder[offset] = offset;
+			}
 		}
+		int order[] = this.tournamentOrder;
+		int tournamentSize = Math.min(this.tournamentSize, populationSize);
 
-		// Return the best
-		return tournament.getFittest(0);
+		int winner = -1;
+		double winnerFitness = 0;
+		for (int i = 0; i < tournamentSize; i++) {
+			// Draw a contestant from the slots not yet drawn
+			int j = i + this.random.nextInt(populationSize - i);
+			int contestant = order[j];
+			order[j] = order[i];
+			order[i] = contestant;
+
+			// Keep the best
+			double fitness = population.getFitness(contestant);
+			if (winner == -1 || fitness > winnerFitness) {
+				winner = contestant;
+				winnerFitness = fitness;
+			}
+		}
+
+		return population.getIndividual(winner);
 	}
 
 	/**
 	 * Apply mutation to population
 	 * 
-	 * This method is the same as chapter2's version.
+	 * This method is the same as chapter2's version: the MutationSampler
+	 * jumps from one mutated gene to the next.
 	 * 
 	 * @param population
 	 *            The population to apply mutation to
 	 * @return The mutated population
 	 */
 	public Population mutatePopulation(Population population) {
-		// Initialize new population
-		Population newPopulation = new Population(this.populationSize);
+		// Initialize new population, stored the same way as this one
+		Population newPopulation = this.nextPopulation(population);
 
 		// Loop over current population by fitness
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual individual = population.getFittest(populationIndex);
 
-			// Loop over individual's genes
-			for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
-				// Skip mutation if this is an elite individual
-				if (populationIndex >= this.elitismCount) {
-					// Does this gene need mutation?
-					if (this.mutationRate > Math.random()) {
-						// Get new gene
-						int newGene = 1;
-						if (individual.getGene(geneIndex) == 1) {
-							newGene = 0;
-						}
-						// Mutate gene
-						individual.setGene(geneIndex, newGene);
+			// Skip mutation if this is an elite individual
+			if (populationIndex >= this.elitismCount) {
+				int chromosomeLength = individual.getChromosomeLength();
+
+				// Loop over the genes that need mutation
+				for (int geneIndex = this.mutationSampler.first(chromosomeLength); geneIndex < chromosomeLength;
+						geneIndex = this.mutationSampler.next(geneIndex, chromosomeLength)) {
+					// Get new gene
+					int newGene = 1;
+					if (individual.getGene(geneIndex) == 1) {
+						newGene = 0;
 					}
+					// Mutate gene
+					individual.setGene(geneIndex, newGene);
 				}
 			}
 
-
 			// Add individual to population
 			newPopulation.setIndividual(populationIndex, individual);
 		}
@@ -219,23 +495,25 @@ public class GeneticAlgorithm {
 	 * @return Population The new population
 	 */
 	public Population crossoverPopulation(Population population) {
-		// Create new population
-		Population newPopulation = new Population(population.size());
+		// Create new population, stored the same way as this one
+		Population newPopulation = this.nextPopulation(population);
 
 		// Loop over current population by fitness
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual parent1 = population.getFittest(populationIndex);
 
 			// Apply crossover to this individual?
-			if (this.crossoverRate > Math.random() && populationIndex >= this.elitismCount) {
-				// Initialize offspring
-				Individual offspring = new Individual(parent1.getChromosomeLength());
+			if (this.crossoverRate > this.random.nextDouble() && populationIndex >= this.elitismCount) {
+				// Initialize offspring; a packed population already has a row
+				// for it
+				Individual offspring = newPopulation.isPacked() ? newPopulation.getIndividual(populationIndex)
+						: new Individual(new int[parent1.getChromosomeLength()]);
 				
 				// Find second parent
 				Individual parent2 = this.selectParent(population);
 
 				// Get random swap point
-				int swapPoint = (int) (Math.random() * (parent1.getChromosomeLength() + 1));
+				int swapPoint = this.random.nextInt(parent1.getChromosomeLength() + 1);
 
 				// Loop over genome
 				for (int geneIndex = 0; geneIndex < parent1.getChromosomeLength(); geneIndex++) {
@@ -15,11 +15,17 @@ package chapter3;
  * how good a solution to the problem this individual is. The meaning of the
  * fitness score will vary based on the problem at hand.
  * 
+ * An individual either owns its chromosome array or is a view over one row of
+ * a packed population's gene matrix, in which case its genes start at
+ * getChromosomeOffset() rather than 0.
+ * 
  * @author bkanber
  *
  */
 public class Individual {
 	private int[] chromosome;
+	private int chromosomeOffset;
+	private int chromosomeLength;
 	private double fitness = -1;
 
 	/**
@@ -30,7 +36,24 @@ public class Individual {
 	 */
 	public Individual(int[] chromosome) {
 		// Create individual chromosome
-		this.chromosome = chromosome;
+		this(chromosome, 0, chromosome.length);
+	}
+
+	/**
+	 * Initializes individual as a view over part of a larger gene array
+	 * 
+	 * @param genes
+	 *            The array holding the chromosome, eg a population's gene
+	 *            matrix
+	 * @param chromosomeOffset
+	 *            The index of the first gene in the array
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 */
+	public Individual(int[] genes, int chromosomeOffset, int chromosomeLength) {
+		this.chromosome = genes;
+		this.chromosomeOffset = chromosomeOffset;
+		this.chromosomeLength = chromosomeLength;
 	}
 
 	/**
@@ -45,36 +68,58 @@ public class Individual {
 	 * 
 	 * @param chromosomeLength
 	 *            The length of the individuals chromosome
+	 * @param random
+	 *            The random source for the genes
 	 */
-	public Individual(int chromosomeLength) {
+	public Individual(int chromosomeLength, RandomSource random) {
+		this(new int[chromosomeLength]);
+		this.randomize(random);
+	}
 
-		this.chromosome = new int[chromosomeLength];
-		for (int gene = 0; gene < chromosomeLength; gene++) {
-			if (0.5 < Math.random()) {
+	/**
+	 * Overwrite the chromosome with random zeroes and ones
+	 * 
+	 * @param random
+	 *            The random source for the genes
+	 */
+	public void randomize(RandomSource random) {
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			if (0.5 < random.nextDouble()) {
 				this.setGene(gene, 1);
 			} else {
 				this.setGene(gene, 0);
 			}
 		}
-
 	}
 
 	/**
 	 * Gets individual's chromosome
 	 * 
-	 * @return The individual's chromosome
+	 * For a view into a packed population this is the whole gene matrix; the
+	 * individual's genes start at getChromosomeOffset().
+	 * 
+	 * @return The array holding the individual's chromosome
 	 */
 	public int[] getChromosome() {
 		return this.chromosome;
 	}
 
+	/**
+	 * Gets the index of the individual's first gene in getChromosome()
+	 * 
+	 * @return The chromosome offset
+	 */
+	public int getChromosomeOffset() {
+		return this.chromosomeOffset;
+	}
+
 	/**
 	 * Gets individual's chromosome length
 	 * 
 	 * @return The individual's chromosome length
 	 */
 	public int getChromosomeLength() {
-		return this.chromosome.length;
+		return this.chromosomeLength;
 	}
 
 	/**
@@ -85,7 +130,7 @@ public class Individual {
 	 * @return gene
 	 */
 	public void setGene(int offset, int gene) {
-		this.chromosome[offset] = gene;
+		this.chromosome[this.chromosomeOffset + offset] = gene;
 	}
 
 	/**
@@ -95,7 +140,7 @@ public class Individual {
 	 * @return gene
 	 */
 	public int getGene(int offset) {
-		return this.chromosome[offset];
+		return this.chromosome[this.chromosomeOffset + offset];
 	}
 
 	/**
@@ -125,8 +170,8 @@ public class Individual {
 	 */
 	public String toString() {
 		String output = "";
-		for (int gene = 0; gene < this.chromosome.length; gene++) {
-			output += this.chromosome[gene];
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			output += this.getGene(gene);
 		}
 		return output;
 	}
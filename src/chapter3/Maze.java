@@ -22,23 +22,39 @@ import java.util.ArrayList;
  */
 public class Maze {
 	private final int maze[][];
-	private int startPosition[] = { -1, -1 };
+	private final int startPosition[];
+
+	/**
+	 * Each thread's marks for the squares a route has scored, one per square
+	 * by row; all false between calls to scoreRoute
+	 */
+	private final ThreadLocal<boolean[]> visited;
 
 	public Maze(int maze[][]) {
 		this.maze = maze;
+		this.startPosition = this.findStartPosition();
+		int squares = (this.getMaxY() + 1) * (this.getMaxX() + 1);
+		this.visited = ThreadLocal.withInitial(() -> new boolean[squares]);
 	}
 
 	/**
 	 * Get start position of maze
 	 * 
+	 * The position is found once, when the maze is built, so robots on
+	 * different threads can share the maze without racing to cache it.
+	 * 
 	 * @return int[] x,y start position of maze
 	 */
 	public int[] getStartPosition() {
-		// Check we already found start position
-		if (this.startPosition[0] != -1 && this.startPosition[1] != -1) {
-			return this.startPosition;
-		}
+		return this.startPosition;
+	}
 
+	/**
+	 * Find the start position by scanning the maze
+	 * 
+	 * @return int[] x,y start position of maze, or 0,0 if it has none
+	 */
+	private int[] findStartPosition() {
 		// Default return value
 		int startPosition[] = { 0, 0 };
 
@@ -48,7 +64,6 @@ public class Maze {
 			for (int colIndex = 0; colIndex < this.maze[rowIndex].length; colIndex++) {
 				// 2 is the type for start position
 				if (this.maze[rowIndex][colIndex] == 2) {
-					this.startPosition = new int[] { colIndex, rowIndex };
 					return new int[] { colIndex, rowIndex };
 				}
 			}
@@ -131,4 +146,42 @@ public class Maze {
 
 		return score;
 	}
+
+	/**
+	 * Scores a maze route held as x,y pairs
+	 * 
+	 * Scores the same as scoreRoute(ArrayList), but marks the squares in the
+	 * calling thread's visited array and clears them again afterwards, so
+	 * scoring allocates nothing.
+	 * 
+	 * @param route
+	 *            The route: step i is at route[2*i], route[2*i+1]
+	 * @param steps
+	 *            The number of steps in the route
+	 * @return int The route's score
+	 */
+	public int scoreRoute(int route[], int steps) {
+		int score = 0;
+		int width = this.getMaxX() + 1;
+		boolean visited[] = this.visited.get();
+
+		int step = 0;
+		try {
+			for (; step < steps; step++) {
+				int x = route[step * 2];
+				int y = route[step * 2 + 1];
+				if (this.maze[y][x] == 3 && visited[y * width + x] == false) {
+					score++;
+					visited[y * width + x] = true;
+				}
+			}
+		} finally {
+			// Clear the marks of every step that got looked at
+			for (int marked = 0; marked < step; marked++) {
+				visited[route[marked * 2 + 1] * width + route[marked * 2]] = false;
+			}
+		}
+
+		return score;
+	}
 }
@@ -1,8 +1,6 @@
 package chapter3;
 
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Random;
 
 
 /**
@@ -18,6 +16,41 @@ public class Population {
 	private Individual population[];
 	private double populationFitness = -1;
 
+	/**
+	 * Fitness of each slot, kept alongside the individuals so that ranking
+	 * and selection can work on a primitive array.
+	 */
+	private double fitness[];
+
+	/**
+	 * Slot offsets ordered by fitness, strongest first, and the inverse
+	 * mapping from slot to rank. Rebuilt lazily by getFittest and invalidated
+	 * whenever a slot or a fitness value changes.
+	 */
+	private int ranking[];
+	private int rankOf[];
+	private boolean rankingValid = false;
+
+	/**
+	 * Scratch space for rebuilding the ranking
+	 */
+	private long sortKeys[];
+	private long sortedKeys[];
+	private int radixCounts[];
+
+	/**
+	 * From this size on the ranking is sorted with Arrays.parallelSort
+	 */
+	private static final int PARALLEL_SORT_THRESHOLD = 1 << 16;
+
+	/**
+	 * Gene matrix of a packed population: slot i's individual is a view onto
+	 * one row of the matrix. Null when each individual owns its chromosome.
+	 */
+	private int genes[];
+	private int rowLength;
+	private int chromosomeLength;
+
 	/**
 	 * Initializes blank population of individuals
 	 * 
@@ -27,6 +60,8 @@ public class Population {
 	public Population(int populationSize) {
 		// Initial population
 		this.population = new Individual[populationSize];
+		this.fitness = new double[populationSize];
+		Arrays.fill(this.fitness, -1);
 	}
 
 	/**
@@ -36,21 +71,121 @@ public class Population {
 	 *            The number of individuals in the population
 	 * @param chromosomeLength
 	 *            The size of each individual's chromosome
+	 * @param random
+	 *            The random source for the individuals' genes
 	 */
-	public Population(int populationSize, int chromosomeLength) {
+	public Population(int populationSize, int chromosomeLength, RandomSource random) {
 		// Initialize the population as an array of individuals
 		this.population = new Individual[populationSize];
+		this.fitness = new double[populationSize];
+		Arrays.fill(this.fitness, -1);
 
 		// Create each individual in turn
 		for (int individualCount = 0; individualCount < populationSize; individualCount++) {
 			// Create an individual, initializing its chromosome to the given
 			// length
-			Individual individual = new Individual(chromosomeLength);
+			Individual individual = new Individual(chromosomeLength, random);
 			// Add individual to population
 			this.population[individualCount] = individual;
 		}
 	}
 
+	/**
+	 * Initializes a packed population over a gene matrix
+	 * 
+	 * All chromosomes live in one flat array, one row per individual, and
+	 * each member of the population is a view onto its row. Operators then
+	 * stream through contiguous memory, and the garbage collector sees one
+	 * array instead of one per individual.
+	 * 
+	 * @param genes
+	 *            The gene matrix; its length must be a whole number of rows
+	 * @param chromosomeLength
+	 *            The number of genes in each individual's chromosome
+	 */
+	public Population(int[] genes, int chromosomeLength) {
+		int rowLength = chromosomeLength;
+		int populationSize = rowLength == 0 ? 0 : genes.length / rowLength;
+		this.population = new Individual[populationSize];
+		this.fitness = new double[populationSize];
+		Arrays.fill(this.fitness, -1);
+		this.genes = genes;
+		this.rowLength = rowLength;
+		this.chromosomeLength = chromosomeLength;
+
+		for (int individualCount = 0; individualCount < populationSize; individualCount++) {
+			this.population[individualCount] = new Individual(genes, individualCount * rowLength, chromosomeLength);
+		}
+	}
+
+	/**
+	 * Create an empty population of the same size and storage
+	 * 
+	 * A packed population gets a fresh gene matrix of the same shape, with a
+	 * view in every slot ready to be written into; otherwise every slot starts
+	 * out null.
+	 * 
+	 * @return The blank population
+	 */
+	public Population blankCopy() {
+		if (this.isPacked()) {
+			return new Population(new int[this.genes.length], this.chromosomeLength);
+		}
+		return new Population(this.population.length);
+	}
+
+	/**
+	 * Empty the population so it can be refilled, as if it had just come
+	 * from blankCopy
+	 * 
+	 * Every slot's fitness goes back to -1. A packed population keeps its
+	 * views, ready to be overwritten by setIndividual; other slots become
+	 * null.
+	 */
+	public void clear() {
+		if (this.genes == null) {
+			Arrays.fill(this.population, null);
+		} else {
+			for (Individual individual : this.population) {
+				individual.setFitness(-1);
+			}
+		}
+		Arrays.fill(this.fitness, -1);
+		this.populationFitness = -1;
+		this.rankingValid = false;
+	}
+
+	/**
+	 * Check whether another population is packed into a gene matrix of the
+	 * same shape as this one
+	 * 
+	 * @param population
+	 * @return true if both are packed with the same size and chromosome
+	 *         length
+	 */
+	public boolean hasSameShape(Population population) {
+		return this.genes != null && population.genes != null && this.population.length == population.population.length
+				&& this.chromosomeLength == population.chromosomeLength;
+	}
+
+	/**
+	 * Check whether the chromosomes are stored in a single gene matrix
+	 * 
+	 * @return true for a packed population
+	 */
+	public boolean isPacked() {
+		return this.genes != null;
+	}
+
+	/**
+	 * Get the gene matrix of a packed population
+	 * 
+	 * @return The gene matrix, or null if the population is not packed
+	 */
+	public int[] getGenes() {
+		return this.genes;
+	}
+
 	/**
 	 * Get individuals from the population
 	 * 
@@ -69,27 +204,155 @@ public class Population {
 	 * (if you're looking to cull the population) or some of the strongest
 	 * individuals (if you're using "elitism").
 	 * 
+	 * The ranking is cached: the first call after a change sorts the
+	 * population once, and later calls are O(1). Fitness values of members
+	 * must therefore be stored with setFitness (or come in with
+	 * setIndividual) for the ranking to notice them.
+	 * 
 	 * @param offset
 	 *            The offset of the individual you want, sorted by fitness. 0 is
 	 *            the strongest, population.length - 1 is the weakest.
 	 * @return individual Individual at offset
 	 */
 	public Individual getFittest(int offset) {
-		// Order population by fitness
-		Arrays.sort(this.population, new Comparator<Individual>() {
-			@Override
-			public int compare(Individual o1, Individual o2) {
-				if (o1.getFitness() > o2.getFitness()) {
-					return -1;
-				} else if (o1.getFitness() < o2.getFitness()) {
-					return 1;
-				}
-				return 0;
-			}
-		});
+		// Order population by fitness, but only if something changed since the
+		// last sort. The population array itself keeps its order.
+		if (this.rankingValid == false) {
+			this.rank();
+		}
 
 		// Return the fittest individual
-		return this.population[offset];
+		return this.population[this.ranking[offset]];
+	}
+
+	/**
+	 * Rebuild the fitness ranking
+	 * 
+	 * Each fitness value is mapped to a long that sorts the same way, and the
+	 * slot offsets are ordered by those keys, strongest first, with ties kept
+	 * in slot order just like a stable sort would. Populations below the
+	 * parallel sort threshold use an LSD radix sort over the scratch arrays,
+	 * so ranking never allocates; larger ones use Arrays.parallelSort.
+	 */
+	private void rank() {
+		int size = this.population.length;
+		if (this.ranking == null) {
+			this.ranking = new int[size];
+			this.rankOf = new int[size];
+			this.sortKeys = new long[size];
+			this.sortedKeys = new long[size];
+			this.radixCounts = new int[256];
+		}
+
+		if (size >= PARALLEL_SORT_THRESHOLD) {
+			this.rankParallel();
+		} else {
+			this.rankRadix();
+		}
+
+		for (int rank = 0; rank < size; rank++) {
+			this.rankOf[this.ranking[rank]] = rank;
+		}
+		this.rankingValid = true;
+	}
+
+	/**
+	 * Map a fitness value to a long whose natural order puts the highest
+	 * fitness first. Adding 0.0 folds -0.0 into 0.0.
+	 */
+	private static long sortKey(double fitness) {
+		long bits = Double.doubleToLongBits(fitness + 0.0);
+		return ~(bits ^ ((bits >> 63) & Long.MAX_VALUE));
+	}
+
+	/**
+	 * Order the slots with a stable radix sort, one byte of the key per pass.
+	 * Passes where every key has the same byte are skipped.
+	 */
+	private void rankRadix() {
+		int size = this.population.length;
+		if (size == 0) {
+			return;
+		}
+		long keys[] = this.sortKeys;
+		long keyBuffer[] = this.sortedKeys;
+		int offsets[] = this.ranking;
+		int offsetBuffer[] = this.rankOf;
+		int counts[] = this.radixCounts;
+
+		// Flipping the sign bit makes the keys sort the same way byte by byte
+		for (int offset = 0; offset < size; offset++) {
+			keys[offset] = sortKey(this.fitness[offset]) ^ Long.MIN_VALUE;
+			offsets[offset] = offset;
+		}
+
+		for (int shift = 0; shift < 64; shift += 8) {
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < size; i++) {
+				counts[(int) (keys[i] >>> shift) & 0xFF]++;
+			}
+			if (counts[(int) (keys[0] >>> shift) & 0xFF] == size) {
+				continue;
+			}
+
+			int position = 0;
+			for (int digit = 0; digit < counts.length; digit++) {
+				int count = counts[digit];
+				counts[digit] = position;
+				position += count;
+			}
+			for (int i = 0; i < size; i++) {
+				int target = counts[(int) (keys[i] >>> shift) & 0xFF]++;
+				keyBuffer[target] = keys[i];
+				offsetBuffer[target] = offsets[i];
+			}
+
+			long swapKeys[] = keys;
+			keys = keyBuffer;
+			keyBuffer = swapKeys;
+			int swapOffsets[] = offsets;
+			offsets = offsetBuffer;
+			offsetBuffer = swapOffsets;
+		}
+
+		if (offsets != this.ranking) {
+			System.arraycopy(offsets, 0, this.ranking, 0, size);
+		}
+	}
+
+	/**
+	 * Order the slots with two parallel sorts of packed longs
+	 * 
+	 * Rather than sorting Individual objects with a comparator, each slot is
+	 * packed into a single long: the upper 32 bits hold the position of its
+	 * fitness key in the sorted keys (equal fitness gives the same position,
+	 * so positions skip after duplicates; 0 is the highest fitness) and the
+	 * lower 32 bits hold the slot offset. Sorting those longs orders the slots
+	 * by fitness.
+	 */
+	private void rankParallel() {
+		int size = this.population.length;
+		long keys[] = this.sortKeys;
+		long sorted[] = this.sortedKeys;
+
+		for (int offset = 0; offset < size; offset++) {
+			keys[offset] = sortKey(this.fitness[offset]);
+		}
+		System.arraycopy(keys, 0, sorted, 0, size);
+		Arrays.parallelSort(sorted);
+
+		// Replace every key by its binary search position among the sorted
+		// keys, packed with the slot offset, and sort again. Equal keys always
+		// find the same position, which is all the ordering needs.
+		for (int offset = 0; offset < size; offset++) {
+			long rank = Arrays.binarySearch(sorted, keys[offset]);
+			keys[offset] = (rank << 32) | offset;
+		}
+		Arrays.parallelSort(keys);
+
+		for (int rank = 0; rank < size; rank++) {
+			this.ranking[rank] = (int) keys[rank];
+		}
 	}
 
 	/**
@@ -123,14 +386,60 @@ public class Population {
 	/**
 	 * Set individual at offset
 	 * 
+	 * In a packed population the individual's genes and fitness are copied
+	 * into the view that already sits at the offset, and that view is
+	 * returned; the individual must not be null.
+	 * 
 	 * @param individual
 	 * @param offset
 	 * @return individual
 	 */
 	public Individual setIndividual(int offset, Individual individual) {
+		if (this.genes != null) {
+			// Packed: copy into the row rather than replacing the view
+			Individual row = this.population[offset];
+			if (individual != row) {
+				System.arraycopy(individual.getChromosome(), individual.getChromosomeOffset(), this.genes,
+						row.getChromosomeOffset(), this.rowLength);
+				row.setFitness(individual.getFitness());
+			}
+			this.fitness[offset] = row.getFitness();
+			this.rankingValid = false;
+			return row;
+		}
+
+		this.fitness[offset] = individual == null ? -1 : individual.getFitness();
+		this.rankingValid = false;
 		return population[offset] = individual;
 	}
 
+	/**
+	 * Store fitness of the individual at offset
+	 * 
+	 * Use this rather than Individual.setFitness on members of the
+	 * population, so that the fitness ranking is rebuilt on the next call to
+	 * getFittest.
+	 * 
+	 * @param offset
+	 * @param fitness
+	 *            The individual's fitness
+	 */
+	public void setFitness(int offset, double fitness) {
+		this.population[offset].setFitness(fitness);
+		this.fitness[offset] = fitness;
+		this.rankingValid = false;
+	}
+
+	/**
+	 * Get fitness of the individual at offset
+	 * 
+	 * @param offset
+	 * @return fitness
+	 */
+	public double getFitness(int offset) {
+		return this.fitness[offset];
+	}
+
 	/**
 	 * Get individual at offset
 	 * 
@@ -144,16 +453,38 @@ public class Population {
 	/**
 	 * Shuffles the population in-place
 	 * 
-	 * @param void
-	 * @return void
+	 * @param random
+	 *            The random source to shuffle with
 	 */
-	public void shuffle() {
-		Random rnd = new Random();
+	public void shuffle(RandomSource random) {
 		for (int i = population.length - 1; i > 0; i--) {
-			int index = rnd.nextInt(i + 1);
-			Individual a = population[index];
-			population[index] = population[i];
-			population[i] = a;
+			int index = random.nextInt(i + 1);
+			this.swap(index, i);
+		}
+	}
+
+	/**
+	 * Swap two slots, keeping fitness values and the ranking in step
+	 * 
+	 * @param offset1
+	 * @param offset2
+	 */
+	private void swap(int offset1, int offset2) {
+		Individual a = population[offset1];
+		population[offset1] = population[offset2];
+		population[offset2] = a;
+
+		double fitness = this.fitness[offset1];
+		this.fitness[offset1] = this.fitness[offset2];
+		this.fitness[offset2] = fitness;
+
+		if (this.rankingValid) {
+			int rank1 = this.rankOf[offset1];
+			int rank2 = this.rankOf[offset2];
+			this.ranking[rank1] = offset2;
+			this.ranking[rank2] = offset1;
+			this.rankOf[offset1] = rank2;
+			this.rankOf[offset2] = rank1;
 		}
 	}
 }
\ No newline at end of file
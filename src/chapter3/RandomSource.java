@@ -0,0 +1,99 @@
+package chapter3;
+
+import java.util.SplittableRandom;
+
+/**
+ * Source of random numbers for the genetic algorithm.
+ * 
+ * Every random decision -- creating individuals, selection, crossover and
+ * mutation -- draws from a RandomSource that is handed down from the
+ * GeneticAlgorithm, rather than from Math.random. That has two benefits:
+ * 
+ * A run started from a fixed seed can be replayed exactly, because every
+ * random number comes from one master stream.
+ * 
+ * There is no shared generator to contend on. A RandomSource is not
+ * thread-safe; a worker thread gets its own independent stream by calling
+ * split() before it starts, and the streams it splits off are themselves
+ * determined by the master seed.
+ * 
+ */
+public class RandomSource {
+	private final SplittableRandom random;
+
+	/**
+	 * Initialize random source with an arbitrary seed
+	 */
+	public RandomSource() {
+		this(new SplittableRandom());
+	}
+
+	/**
+	 * Initialize random source with a master seed; two sources created with
+	 * the same seed produce the same numbers
+	 * 
+	 * @param seed
+	 *            The master seed
+	 */
+	public RandomSource(long seed) {
+		this(new SplittableRandom(seed));
+	}
+
+	private RandomSource(SplittableRandom random) {
+		this.random = random;
+	}
+
+	/**
+	 * Split off an independent stream, for example for a worker thread
+	 * 
+	 * @return A new random source
+	 */
+	public RandomSource split() {
+		return new RandomSource(this.random.split());
+	}
+
+	/**
+	 * Get a random double
+	 * 
+	 * @return A double in [0, 1)
+	 */
+	public double nextDouble() {
+		return this.random.nextDouble();
+	}
+
+	/**
+	 * Get a random int
+	 * 
+	 * @param bound
+	 *            The exclusive upper bound, must be positive
+	 * @return An int in [0, bound)
+	 */
+	public int nextInt(int bound) {
+		return this.random.nextInt(bound);
+	}
+
+	/**
+	 * Get a random long, all 64 bits of which are random
+	 * 
+	 * @return long
+	 */
+	public long nextLong() {
+		return this.random.nextLong();
+	}
+
+	/**
+	 * Fill a buffer with random longs
+	 * 
+	 * @param buffer
+	 *            The buffer to fill
+	 * @param from
+	 *            The first index to fill
+	 * @param to
+	 *            The index after the last one to fill
+	 */
+	public void nextLongs(long buffer[], int from, int to) {
+		for (int i = from; i < to; i++) {
+			buffer[i] = this.random.nextLong();
+		}
+	}
+}
@@ -1,14 +1,21 @@
 package chapter3;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * A robot abstraction. Give it a maze and an instruction set, and it will
  * attempt to navigate to the finish.
  * 
+ * A robot can be reset with a new controller and run again, so evaluating a
+ * population doesn't need a new robot per individual; forCurrentThread()
+ * returns one for the calling thread to reuse.
+ * 
  * @author bkanber
  *
  */
 public class Robot {
+    private static final ThreadLocal<Robot> SCRATCH = ThreadLocal.withInitial(Robot::new);
+
     private enum Direction {NORTH, EAST, SOUTH, WEST};
  
     private int xPosition;
@@ -17,9 +24,20 @@ public class Robot {
     int maxMoves;
     int moves;
     private int sensorVal;
-    private final int sensorActions[];
+    private int sensorActions[];
     private Maze maze;
-    private ArrayList<int[]> route;
+
+    /**
+     * The route as x,y pairs: step i is at route[2*i], route[2*i+1]
+     */
+    private int route[] = new int[0];
+    private int routeLength;
+
+    /**
+     * Create a robot that must be reset before it runs
+     */
+    private Robot(){
+    }
     
     /**
      * Initalize a robot with controller
@@ -29,7 +47,44 @@ public class Robot {
      * @param maxMoves The maximum number of moves the robot can make
      */
     public Robot(int[] sensorActions, Maze maze, int maxMoves){
-        this.sensorActions = this.calcSensorActions(sensorActions);
+        this(sensorActions, 0, sensorActions.length, maze, maxMoves);
+    }
+
+    /**
+     * Initalize a robot with a controller held in part of a larger array,
+     * such as a row of a packed population's gene matrix
+     * 
+     * @param sensorActions The array holding the sensor-action string
+     * @param offset The index of the first sensor-action bit
+     * @param length The number of sensor-action bits
+     * @param maze The maze the robot will use
+     * @param maxMoves The maximum number of moves the robot can make
+     */
+    public Robot(int[] sensorActions, int offset, int length, Maze maze, int maxMoves){
+        this.reset(sensorActions, offset, length, maze, maxMoves);
+    }
+
+    /**
+     * Get the calling thread's robot, to reset and run
+     * 
+     * @return This thread's Robot
+     */
+    public static Robot forCurrentThread(){
+        return SCRATCH.get();
+    }
+
+    /**
+     * Put the robot back at the start of a maze with a new controller, ready
+     * to run again
+     * 
+     * @param sensorActions The array holding the sensor-action string
+     * @param offset The index of the first sensor-action bit
+     * @param length The number of sensor-action bits
+     * @param maze The maze the robot will use
+     * @param maxMoves The maximum number of moves the robot can make
+     */
+    public void reset(int[] sensorActions, int offset, int length, Maze maze, int maxMoves){
+        this.calcSensorActions(sensorActions, offset, length);
         this.maze = maze;
         int startPos[] = this.maze.getStartPosition();
         this.xPosition = startPos[0];
@@ -38,8 +93,8 @@ public class Robot {
         this.heading = Direction.EAST;
         this.maxMoves = maxMoves;
         this.moves = 0;
-        this.route = new ArrayList<int[]>();
-        this.route.add(startPos);
+        this.routeLength = 0;
+        this.addRouteStep(startPos[0], startPos[1]);
     }
     
     /**
@@ -72,30 +127,48 @@ public class Robot {
     /**
      * Map robot's sensor data to actions from binary string
      * 
+     * The map is written into sensorActions, which is only replaced when the
+     * number of actions changes.
+     * 
      * @param sensorActionsStr Binary GA chromosome
-     * @return int[] An array to map sensor value to an action
      */
-    private int[] calcSensorActions(int[] sensorActionsStr){
+    private void calcSensorActions(int[] sensorActionsStr, int offset, int length){
         // How many actions are there?
-        int numActions = (int) sensorActionsStr.length / 2;
-        int sensorActions[] = new int[numActions];
+        int numActions = (int) length / 2;
+        if (this.sensorActions == null || this.sensorActions.length != numActions) {
+            this.sensorActions = new int[numActions];
+        }
+        int sensorActions[] = this.sensorActions;
         
         // Loop through actions
         for (int sensorValue = 0; sensorValue < numActions; sensorValue++){
             // Get sensor action
             int sensorAction = 0;
-            if (sensorActionsStr[sensorValue*2] == 1){
+            if (sensorActionsStr[offset + (sensorValue*2)] == 1){
                 sensorAction += 2;
             }
-            if (sensorActionsStr[(sensorValue*2)+1] == 1){
+            if (sensorActionsStr[offset + (sensorValue*2)+1] == 1){
                 sensorAction += 1;
             }
             
             // Add to sensor-action map
             sensorActions[sensorValue] = sensorAction;
         }
-      
-        return sensorActions;
+    }
+
+    /**
+     * Add a step to the route, growing it if it is full
+     * 
+     * @param x position
+     * @param y position
+     */
+    private void addRouteStep(int x, int y){
+        if (this.route.length < (this.routeLength + 1) * 2) {
+            this.route = Arrays.copyOf(this.route, Math.max(16, this.route.length * 2));
+        }
+        this.route[this.routeLength * 2] = x;
+        this.route[this.routeLength * 2 + 1] = y;
+        this.routeLength++;
     }
     
     /**
@@ -140,7 +213,7 @@ public class Robot {
             } 
             else {
                 if(currentX != this.xPosition || currentY != this.yPosition) {
-                    this.route.add(this.getPosition());
+                    this.addRouteStep(this.xPosition, this.yPosition);
                 }
             }
         }
@@ -284,10 +357,23 @@ public class Robot {
     /**
      * Returns robot's complete route around the maze
      * 
-     * @return ArrayList<int> Robot's route
+     * @return ArrayList<int> Robot's route, as a new list of new x,y arrays
      */
     public ArrayList<int[]> getRoute(){       
-        return this.route;
+        ArrayList<int[]> route = new ArrayList<int[]>(this.routeLength);
+        for (int step = 0; step < this.routeLength; step++) {
+            route.add(new int[]{this.route[step * 2], this.route[step * 2 + 1]});
+        }
+        return route;
+    }
+
+    /**
+     * Score the robot's route with its maze's scoreRoute, without copying it
+     * 
+     * @return int The route's score
+     */
+    public int scoreRoute(){
+        return this.maze.scoreRoute(this.route, this.routeLength);
     }
     
     /**
@@ -298,9 +384,8 @@ public class Robot {
     public String printRoute(){
         String route = "";
         
-        for (Object routeStep : this.route) {
-            int step[] = (int[]) routeStep;
-            route += "{" + step[0] + "," + step[1] + "}";
+        for (int step = 0; step < this.routeLength; step++) {
+            route += "{" + this.route[step * 2] + "," + this.route[step * 2 + 1] + "}";
         }
         return route;
     }
@@ -60,8 +60,12 @@ public class RobotController {
 			{ 1, 3, 3, 3, 3, 1, 1, 1, 4 } 
 		});
 
+		// All random numbers come from this source; give it a seed, eg
+		// new RandomSource(42), to replay the same run
+		RandomSource random = new RandomSource();
+
 		// Create genetic algorithm
-		GeneticAlgorithm ga = new GeneticAlgorithm(200, 0.05, 0.9, 2, 10);
+		GeneticAlgorithm ga = new GeneticAlgorithm(200, 0.05, 0.9, 2, 10, random);
 		Population population = ga.initPopulation(128);
 		ga.evalPopulation(population, maze);
 		// Keep track of current generation
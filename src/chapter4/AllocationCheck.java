@@ -0,0 +1,78 @@
+package chapter4;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Checks that a double-buffered GA allocates nothing once it is running.
+ *
+ * With setDoubleBuffered(true), crossover and mutation write each generation
+ * into the population from the generation before, so once the two
+ * populations, every scratch buffer and the JIT-compiled code are in place, a
+ * whole generation, evaluation included, should not allocate a single byte.
+ * This runs the TSP GA with each crossover method, on int and on compact
+ * chromosomes, for a long warm-up, then reads the thread's allocated byte
+ * count before and after each crossoverPopulation, mutatePopulation and
+ * evalPopulation round. Any difference fails the check.
+ *
+ * The warm-up is long on purpose: after only 200 generations, a one-off
+ * allocation of 48 bytes could still land in the checked generations of the
+ * first run. It never repeats, so a longer warm-up leaves it out.
+ *
+ * Run it with java chapter4.AllocationCheck; it needs a JVM that counts
+ * allocated bytes per thread, as HotSpot does.
+ */
+public class AllocationCheck {
+	private static final int WARM_UP_GENERATIONS = 2000;
+	private static final int CHECKED_GENERATIONS = 100;
+
+	public static void main(String[] args) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if ((threadBean instanceof com.sun.management.ThreadMXBean) == false
+				|| ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported() == false) {
+			throw new IllegalStateException("This JVM doesn't count allocated bytes per thread");
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) threadBean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+
+		// The same kind of random cities as TSP
+		RandomSource random = new RandomSource(42);
+		City cities[] = new City[100];
+		for (int cityIndex = 0; cityIndex < cities.length; cityIndex++) {
+			cities[cityIndex] = new City(random.nextInt(100), random.nextInt(100));
+		}
+		DistanceMatrix distances = new DistanceMatrix(cities);
+
+		for (boolean compact : new boolean[] { false, true }) {
+			for (GeneticAlgorithm.CrossoverMethod crossoverMethod : GeneticAlgorithm.CrossoverMethod.values()) {
+				GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.001, 0.9, 2, 5, random);
+				ga.setDoubleBuffered(true);
+				ga.setCompactPopulations(compact);
+				ga.setCrossoverMethod(crossoverMethod);
+
+				Population population = ga.initPopulation(distances);
+				ga.evalPopulation(population, distances);
+
+				long allocated = 0;
+				for (int generation = 0; generation < WARM_UP_GENERATIONS + CHECKED_GENERATIONS; generation++) {
+					long before = threads.getThreadAllocatedBytes(threadId);
+					population = ga.crossoverPopulation(population);
+					population = ga.mutatePopulation(population);
+					ga.evalPopulation(population, distances);
+					long after = threads.getThreadAllocatedBytes(threadId);
+					if (generation >= WARM_UP_GENERATIONS) {
+						allocated += after - before;
+					}
+				}
+
+				String run = crossoverMethod + (compact ? ", compact" : "");
+				if (allocated != 0) {
+					throw new IllegalStateException(run + ": the generation loop allocated " + allocated
+							+ " bytes over " + CHECKED_GENERATIONS + " generations");
+				}
+				System.out.println(run + ": 0 bytes allocated over " + CHECKED_GENERATIONS + " generations");
+			}
+		}
+	}
+}
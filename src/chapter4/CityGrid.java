@@ -0,0 +1,320 @@
+package chapter4;
+
+import java.util.Arrays;
+
+/**
+ * A bucket grid over the cities, for finding near cities quickly.
+ *
+ * The bounding box of the cities is cut into square cells holding about two
+ * cities each. A search starts in the cell of the city it is asked about and
+ * works outwards a ring of cells at a time, stopping as soon as every city in
+ * the next ring must be farther away than what it has already found. On
+ * cities spread over the plane each search looks at a handful of cells, so
+ * building the grid and the k nearest neighbours of every city both take
+ * roughly linear time.
+ *
+ * Cities can be removed, which is what tour construction needs to ask "which
+ * city not yet on the tour is nearest?". Searches break ties by the lower city
+ * index, so the answers don't depend on the grid layout.
+ *
+ * Without coordinates (a DistanceSource that isn't an EuclideanDistanceSource)
+ * the grid is a single cell, and searches simply scan every city left.
+ *
+ * A grid is not safe to use from two threads at once.
+ */
+public class CityGrid {
+
+	private final DistanceSource distances;
+
+	/**
+	 * City coordinates, by city index, or null without coordinates
+	 */
+	private final double x[];
+	private final double y[];
+
+	private final double minX;
+	private final double minY;
+	private final double cellSize;
+	private final int columns;
+	private final int rows;
+
+	/**
+	 * Cities of cell c are cellCities[cellStart[c]] to
+	 * cellCities[cellStart[c] + cellCount[c] - 1]; removing a city swaps it
+	 * to the end of its cell and shortens the cell
+	 */
+	private final int cellStart[];
+	private final int cellCount[];
+	private final int cellCities[];
+
+	/**
+	 * Where each city is in cellCities, or -1 if it isn't in the grid
+	 */
+	private final int slotOf[];
+
+	private int size;
+
+	/**
+	 * Distances to the cities found so far by nearest(city, k, ...)
+	 */
+	private double found[] = new double[0];
+
+	private final int nearestOne[] = new int[1];
+
+	/**
+	 * Build a grid over all of the cities
+	 *
+	 * @param distances
+	 */
+	public CityGrid(DistanceSource distances) {
+		this(distances, null, distances.getNumCities());
+	}
+
+	/**
+	 * Build a grid over some of the cities
+	 *
+	 * @param distances
+	 * @param cities
+	 *            The cities to put in the grid, or null for cities 0 to
+	 *            count - 1
+	 * @param count
+	 *            Number of cities to put in the grid
+	 */
+	public CityGrid(DistanceSource distances, int cities[], int count) {
+		this.distances = distances;
+		int numCities = distances.getNumCities();
+		this.slotOf = new int[numCities];
+		Arrays.fill(this.slotOf, -1);
+		this.size = count;
+
+		double minX = 0, maxX = 0, minY = 0, maxY = 0;
+		if (distances instanceof EuclideanDistanceSource && count > 1) {
+			// Every city's coordinates, as searches can start from cities
+			// that aren't in the grid
+			EuclideanDistanceSource euclidean = (EuclideanDistanceSource) distances;
+			this.x = new double[numCities];
+			this.y = new double[numCities];
+			for (int city = 0; city < numCities; city++) {
+				this.x[city] = euclidean.getX(city);
+				this.y[city] = euclidean.getY(city);
+			}
+
+			minX = minY = Double.POSITIVE_INFINITY;
+			maxX = maxY = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < count; i++) {
+				int city = cities == null ? i : cities[i];
+				minX = Math.min(minX, this.x[city]);
+				maxX = Math.max(maxX, this.x[city]);
+				minY = Math.min(minY, this.y[city]);
+				maxY = Math.max(maxY, this.y[city]);
+			}
+		} else {
+			this.x = null;
+			this.y = null;
+		}
+		this.minX = minX;
+		this.minY = minY;
+
+		// About two cities per cell
+		double width = maxX - minX;
+		double height = maxY - minY;
+		double targetCells = Math.max(1, count / 2);
+		double cellSize;
+		if (width > 0 && height > 0) {
+			cellSize = Math.sqrt(width * height / targetCells);
+		} else {
+			cellSize = Math.max(width, height) / targetCells;
+		}
+		if (this.x == null || cellSize <= 0) {
+			this.cellSize = 1;
+			this.columns = 1;
+			this.rows = 1;
+		} else {
+			this.cellSize = cellSize;
+			this.columns = (int) Math.min(width / cellSize + 1, count);
+			this.rows = (int) Math.min(height / cellSize + 1, count);
+		}
+
+		// Counting sort of the cities into their cells
+		int cellOf[] = new int[count];
+		this.cellStart = new int[this.columns * this.rows + 1];
+		for (int i = 0; i < count; i++) {
+			int city = cities == null ? i : cities[i];
+			cellOf[i] = this.cell(this.column(city), this.row(city));
+			this.cellStart[cellOf[i] + 1]++;
+		}
+		this.cellCount = new int[this.columns * this.rows];
+		for (int cell = 0; cell < this.cellCount.length; cell++) {
+			this.cellCount[cell] = this.cellStart[cell + 1];
+			this.cellStart[cell + 1] += this.cellStart[cell];
+		}
+		this.cellCities = new int[count];
+		int fill[] = new int[this.cellCount.length];
+		for (int i = 0; i < count; i++) {
+			int city = cities == null ? i : cities[i];
+			int slot = this.cellStart[cellOf[i]] + fill[cellOf[i]]++;
+			this.cellCities[slot] = city;
+			this.slotOf[city] = slot;
+		}
+	}
+
+	/**
+	 * Get the number of cities left in the grid
+	 *
+	 * @return size
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Check whether a city is in the grid
+	 *
+	 * @param city
+	 * @return true if the city was put in the grid and not removed
+	 */
+	public boolean contains(int city) {
+		return this.slotOf[city] >= 0;
+	}
+
+	/**
+	 * Take a city out of the grid, so searches no longer find it
+	 *
+	 * @param city
+	 */
+	public void remove(int city) {
+		int slot = this.slotOf[city];
+		if (slot < 0) {
+			return;
+		}
+		int cell = this.cell(this.column(city), this.row(city));
+		int lastSlot = this.cellStart[cell] + this.cellCount[cell] - 1;
+		int lastCity = this.cellCities[lastSlot];
+		this.cellCities[slot] = lastCity;
+		this.slotOf[lastCity] = slot;
+		this.cellCities[lastSlot] = city;
+		this.slotOf[city] = -1;
+		this.cellCount[cell]--;
+		this.size--;
+	}
+
+	/**
+	 * Find the nearest city in the grid to a city
+	 *
+	 * @param city
+	 *            The city to search around; it needn't be in the grid
+	 * @return The nearest other city in the grid, or -1 if there is none
+	 */
+	public int nearest(int city) {
+		return this.nearest(city, 1, this.nearestOne, 0) == 0 ? -1 : this.nearestOne[0];
+	}
+
+	/**
+	 * Find the k nearest cities in the grid to a city, nearest first
+	 *
+	 * @param city
+	 *            The city to search around; it needn't be in the grid
+	 * @param k
+	 *            The number of cities to find
+	 * @param nearest
+	 *            Array to write the cities found to
+	 * @param offset
+	 *            Where in the array to write the first city
+	 * @return The number of cities found, which is less than k only if the
+	 *         grid has fewer other cities
+	 */
+	public int nearest(int city, int k, int nearest[], int offset) {
+		if (k == 0) {
+			return 0;
+		}
+		if (this.found.length < k) {
+			this.found = new double[k];
+		}
+		double found[] = this.found;
+		int count = 0;
+
+		int column = this.column(city);
+		int row = this.row(city);
+		for (int ring = 0;; ring++) {
+			int left = column - ring;
+			int right = column + ring;
+			int bottom = row - ring;
+			int top = row + ring;
+			if (left < 0 && bottom < 0 && right >= this.columns && top >= this.rows) {
+				// The rings have covered the whole grid
+				break;
+			}
+
+			for (int cellRow = Math.max(bottom, 0); cellRow <= Math.min(top, this.rows - 1); cellRow++) {
+				boolean edgeRow = cellRow == bottom || cellRow == top;
+				for (int cellColumn = Math.max(left, 0); cellColumn <= Math.min(right, this.columns - 1); cellColumn++) {
+					if (edgeRow == false && cellColumn != left && cellColumn != right) {
+						// Inside the ring, already searched; jump to the
+						// right edge
+						cellColumn = right - 1;
+						continue;
+					}
+
+					int cell = this.cell(cellColumn, cellRow);
+					int end = this.cellStart[cell] + this.cellCount[cell];
+					for (int slot = this.cellStart[cell]; slot < end; slot++) {
+						int other = this.cellCities[slot];
+						if (other == city) {
+							continue;
+						}
+						double distance = this.distance(city, other);
+						if (count == k && (distance > found[k - 1]
+								|| (distance == found[k - 1] && other > nearest[offset + k - 1]))) {
+							continue;
+						}
+
+						// Insert in order of distance, then city index
+						int insert = count < k ? count++ : k - 1;
+						while (insert > 0 && (found[insert - 1] > distance
+								|| (found[insert - 1] == distance && nearest[offset + insert - 1] > other))) {
+							found[insert] = found[insert - 1];
+							nearest[offset + insert] = nearest[offset + insert - 1];
+							insert--;
+						}
+						found[insert] = distance;
+						nearest[offset + insert] = other;
+					}
+				}
+			}
+
+			// Every city beyond this ring is at least ring cells away
+			if (count == k && found[k - 1] < ring * this.cellSize) {
+				break;
+			}
+		}
+		return count;
+	}
+
+	private double distance(int from, int to) {
+		if (this.x == null) {
+			return this.distances.getDistance(from, to);
+		}
+		// Same as DistanceMatrix, so the same neighbours come out either way
+		double deltaX = this.x[to] - this.x[from];
+		double deltaY = this.y[to] - this.y[from];
+		return Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+	}
+
+	private int column(int city) {
+		if (this.columns == 1) {
+			return 0;
+		}
+		return Math.max(0, Math.min((int) ((this.x[city] - this.minX) / this.cellSize), this.columns - 1));
+	}
+
+	private int row(int city) {
+		if (this.rows == 1) {
+			return 0;
+		}
+		return Math.max(0, Math.min((int) ((this.y[city] - this.minY) / this.cellSize), this.rows - 1));
+	}
+
+	private int cell(int column, int row) {
+		return row * this.columns + column;
+	}
+}
@@ -0,0 +1,583 @@
+package chapter4;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Divide and conquer for instances too large for one GA.
+ *
+ * A GA over a permutation of hundreds of thousands of cities makes almost no
+ * progress: every child costs O(n) and a good tour needs a vast number of
+ * them. Cities far apart never share an edge in a good tour, though, so the
+ * problem splits up well:
+ *
+ * 1. k-means groups the cities into clusters of about getClusterSize()
+ * cities.
+ *
+ * 2. Each cluster's cities are solved as a TSP of their own by a
+ * GeneticAlgorithm, one GA per cluster, the clusters spread over the pool's
+ * threads. This is nearly all of the work.
+ *
+ * 3. The cluster centres are put in order by a small tour of their own, and
+ * each cluster's tour is cut open into a path that enters near the previous
+ * cluster and leaves towards the next one.
+ *
+ * 4. 2-opt and Or-opt (LocalSearch) run over the joined tour. The inside of
+ * each cluster is already a local optimum, so the moves it finds are around
+ * the seams between clusters.
+ *
+ * Every cluster GA gets its own random stream, split off before any of them
+ * start, so a given seed gives the same tour whatever the number of threads.
+ */
+public class ClusterSolver {
+
+	/**
+	 * Cities per k-means assignment task
+	 */
+	private static final int ASSIGN_CHUNK = 4096;
+
+	private final RandomSource random;
+
+	/**
+	 * Pool the clusters are solved on, or null to solve them on the calling
+	 * thread
+	 */
+	private ForkJoinPool pool;
+
+	/**
+	 * The pool setParallelism created, if it is the pool; it is shut down once
+	 * it is replaced. Pools given to setPool belong to the caller
+	 */
+	private ForkJoinPool ownedPool;
+
+	private int clusterSize = 1000;
+	private int kMeansIterations = 20;
+	private int clusterPopulationSize = 30;
+	private int clusterGenerations = 100;
+
+	/**
+	 * Create a solver that draws all of its random numbers from the given
+	 * source
+	 *
+	 * @param random
+	 *            The random source
+	 */
+	public ClusterSolver(RandomSource random) {
+		this.random = random;
+	}
+
+	/**
+	 * Solve the clusters on the given number of threads
+	 *
+	 * The solver creates the pool itself, and shuts it down when a later
+	 * setParallelism or setPool call replaces it.
+	 *
+	 * @param parallelism
+	 *            The number of worker threads; 1 solves on the calling thread
+	 */
+	public void setParallelism(int parallelism) {
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		this.setPool(pool);
+		this.ownedPool = pool;
+	}
+
+	/**
+	 * Solve the clusters on the given pool, eg ForkJoinPool.commonPool()
+	 *
+	 * The pool stays the caller's to shut down; the solver never shuts it
+	 * down.
+	 *
+	 * @param pool
+	 *            The pool, or null to solve on the calling thread
+	 */
+	public void setPool(ForkJoinPool pool) {
+		if (this.ownedPool != null) {
+			this.ownedPool.shutdown();
+			this.ownedPool = null;
+		}
+		this.pool = pool;
+	}
+
+	/**
+	 * Set the number of cities to aim for per cluster
+	 *
+	 * k-means decides the actual sizes, which vary around this.
+	 *
+	 * @param clusterSize
+	 *            Cities per cluster
+	 */
+	public void setClusterSize(int clusterSize) {
+		if (clusterSize < 1) {
+			throw new IllegalArgumentException("Cluster size must be at least 1: " + clusterSize);
+		}
+		this.clusterSize = clusterSize;
+	}
+
+	/**
+	 * Get the number of cities aimed for per cluster
+	 *
+	 * @return clusterSize
+	 */
+	public int getClusterSize() {
+		return this.clusterSize;
+	}
+
+	/**
+	 * Set the most rounds of k-means to run; it stops earlier once no city
+	 * changes cluster
+	 *
+	 * @param kMeansIterations
+	 */
+	public void setKMeansIterations(int kMeansIterations) {
+		if (kMeansIterations < 0) {
+			throw new IllegalArgumentException("Iterations must not be negative: " + kMeansIterations);
+		}
+		this.kMeansIterations = kMeansIterations;
+	}
+
+	/**
+	 * Set how each cluster's GA runs
+	 *
+	 * @param clusterPopulationSize
+	 *            Population size of each cluster's GA
+	 * @param clusterGenerations
+	 *            Generations each cluster's GA runs for
+	 */
+	public void setClusterGA(int clusterPopulationSize, int clusterGenerations) {
+		if (clusterPopulationSize < 1 || clusterGenerations < 0) {
+			throw new IllegalArgumentException(
+					"Bad cluster GA settings: " + clusterPopulationSize + ", " + clusterGenerations);
+		}
+		this.clusterPopulationSize = clusterPopulationSize;
+		this.clusterGenerations = clusterGenerations;
+	}
+
+	/**
+	 * Create the GA for one cluster
+	 *
+	 * Each cluster is small, so its GA runs on the thread solving the
+	 * cluster. By default it is set up to improve good tours rather than
+	 * random ones: every individual starts as a greedy-edge or
+	 * nearest-neighbour tour, local search runs on the elites and a tenth of
+	 * the rest every generation, and edge assembly crossover combines the
+	 * resulting local optima. There is no mutation, as a random swap only
+	 * spoils a tour that good. Populations are compact and double buffered.
+	 * Override to configure it differently.
+	 *
+	 * @param populationSize
+	 * @param random
+	 *            The cluster's own random stream
+	 * @return A new genetic algorithm
+	 */
+	protected GeneticAlgorithm newGeneticAlgorithm(int populationSize, RandomSource random) {
+		GeneticAlgorithm ga = new GeneticAlgorithm(populationSize, 0, 0.9, 2, 5, random);
+		ga.setSeedMix(1, true);
+		ga.setLocalSearch(0.1, true);
+		ga.setCrossoverMethod(GeneticAlgorithm.CrossoverMethod.EDGE_ASSEMBLY);
+		ga.setCompactPopulations(true);
+		ga.setDoubleBuffered(true);
+		return ga;
+	}
+
+	/**
+	 * Find a tour of the given cities
+	 *
+	 * @param cities
+	 * @return The tour, as city indexes
+	 */
+	public int[] solve(City cities[]) {
+		return this.solve(new DistanceMatrix(cities));
+	}
+
+	/**
+	 * Find a tour of the cities of any source with coordinates
+	 *
+	 * @param distances
+	 *            The cities and the distances between them
+	 * @return The tour, as city indexes
+	 */
+	public int[] solve(EuclideanDistanceSource distances) {
+		int numCities = distances.getNumCities();
+		int tour[] = new int[numCities];
+		if (numCities == 0) {
+			return tour;
+		}
+		int clusterCount = Math.min(numCities, (numCities + this.clusterSize - 1) / this.clusterSize);
+
+		// Group the cities by cluster: the cities of cluster c are
+		// clusterCities[clusterStart[c]] to clusterCities[clusterStart[c + 1] - 1]
+		double centreX[] = new double[clusterCount];
+		double centreY[] = new double[clusterCount];
+		int assignment[] = this.kMeans(distances, centreX, centreY);
+		int clusterStart[] = new int[clusterCount + 1];
+		for (int city = 0; city < numCities; city++) {
+			clusterStart[assignment[city] + 1]++;
+		}
+		for (int cluster = 0; cluster < clusterCount; cluster++) {
+			clusterStart[cluster + 1] += clusterStart[cluster];
+		}
+		int clusterCities[] = new int[numCities];
+		int fill[] = new int[clusterCount];
+		for (int city = 0; city < numCities; city++) {
+			int cluster = assignment[city];
+			clusterCities[clusterStart[cluster] + fill[cluster]++] = city;
+		}
+
+		// Solve the clusters, each in place in clusterCities
+		RandomSource clusterRandom[] = new RandomSource[clusterCount];
+		for (int cluster = 0; cluster < clusterCount; cluster++) {
+			clusterRandom[cluster] = this.random.split();
+		}
+		ClusterTask task = new ClusterTask(distances, clusterCities, clusterStart, clusterRandom, 0, clusterCount);
+		if (this.pool == null) {
+			task.compute();
+		} else {
+			this.pool.invoke(task);
+		}
+
+		int order[] = this.clusterOrder(centreX, centreY, clusterStart);
+		this.stitch(distances, clusterCities, clusterStart, centreX, centreY, order, tour);
+
+		// Repair the seams
+		LocalSearch.forCurrentThread().improve(tour, 0, numCities, distances, new NeighborLists(distances, 10),
+				LocalSearch.NO_DEADLINE);
+		return tour;
+	}
+
+	/**
+	 * Cluster the cities with k-means
+	 *
+	 * The centres start at distinct random cities. Each round every city
+	 * moves to its nearest centre, on the pool, and every centre moves to the
+	 * mean of its cities; a centre that loses all of its cities stays where
+	 * it is.
+	 *
+	 * @param distances
+	 * @param centreX
+	 *            Filled with the centres' x coordinates; its length is the
+	 *            number of clusters
+	 * @param centreY
+	 *            Filled with the centres' y coordinates
+	 * @return The cluster of each city
+	 */
+	private int[] kMeans(EuclideanDistanceSource distances, double centreX[], double centreY[]) {
+		int numCities = distances.getNumCities();
+		int clusterCount = centreX.length;
+
+		// Distinct starting cities, by a partial Fisher-Yates shuffle
+		int order[] = new int[numCities];
+		for (int city = 0; city < numCities; city++) {
+			order[city] = city;
+		}
+		for (int cluster = 0; cluster < clusterCount; cluster++) {
+			int pick = cluster + this.random.nextInt(numCities - cluster);
+			int city = order[pick];
+			order[pick] = order[cluster];
+			order[cluster] = city;
+			centreX[cluster] = distances.getX(city);
+			centreY[cluster] = distances.getY(city);
+		}
+
+		int assignment[] = new int[numCities];
+		double sumX[] = new double[clusterCount];
+		double sumY[] = new double[clusterCount];
+		int count[] = new int[clusterCount];
+		for (int iteration = 0;; iteration++) {
+			AssignTask assign = new AssignTask(distances, centreX, centreY, assignment, 0, numCities);
+			int moved = this.pool == null ? assign.compute() : this.pool.invoke(assign);
+			if ((moved == 0 && iteration > 0) || iteration == this.kMeansIterations) {
+				break;
+			}
+
+			for (int cluster = 0; cluster < clusterCount; cluster++) {
+				sumX[cluster] = 0;
+				sumY[cluster] = 0;
+				count[cluster] = 0;
+			}
+			for (int city = 0; city < numCities; city++) {
+				int cluster = assignment[city];
+				sumX[cluster] += distances.getX(city);
+				sumY[cluster] += distances.getY(city);
+				count[cluster]++;
+			}
+			for (int cluster = 0; cluster < clusterCount; cluster++) {
+				if (count[cluster] > 0) {
+					centreX[cluster] = sumX[cluster] / count[cluster];
+					centreY[cluster] = sumY[cluster] / count[cluster];
+				}
+			}
+		}
+		return assignment;
+	}
+
+	/**
+	 * Assigns a range of cities to their nearest centres, and counts the
+	 * cities that changed cluster
+	 */
+	private static class AssignTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+
+		private final EuclideanDistanceSource distances;
+		private final double centreX[];
+		private final double centreY[];
+		private final int assignment[];
+		private final int from;
+		private final int to;
+
+		AssignTask(EuclideanDistanceSource distances, double centreX[], double centreY[], int assignment[], int from,
+				int to) {
+			this.distances = distances;
+			this.centreX = centreX;
+			this.centreY = centreY;
+			this.assignment = assignment;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Integer compute() {
+			if (this.to - this.from > ASSIGN_CHUNK) {
+				int middle = (this.from + this.to) >>> 1;
+				AssignTask left = new AssignTask(this.distances, this.centreX, this.centreY, this.assignment,
+						this.from, middle);
+				left.fork();
+				int right = new AssignTask(this.distances, this.centreX, this.centreY, this.assignment, middle,
+						this.to).compute();
+				return left.join() + right;
+			}
+
+			int moved = 0;
+			for (int city = this.from; city < this.to; city++) {
+				double x = this.distances.getX(city);
+				double y = this.distances.getY(city);
+				int nearest = 0;
+				double nearestDistance = Double.POSITIVE_INFINITY;
+				for (int cluster = 0; cluster < this.centreX.length; cluster++) {
+					double deltaX = this.centreX[cluster] - x;
+					double deltaY = this.centreY[cluster] - y;
+					double distance = deltaX * deltaX + deltaY * deltaY;
+					if (distance < nearestDistance) {
+						nearest = cluster;
+						nearestDistance = distance;
+					}
+				}
+				if (this.assignment[city] != nearest) {
+					this.assignment[city] = nearest;
+					moved++;
+				}
+			}
+			return moved;
+		}
+	}
+
+	/**
+	 * Solves a range of clusters, splitting right down to single clusters so
+	 * the pool can balance clusters of different sizes
+	 */
+	private class ClusterTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final EuclideanDistanceSource distances;
+		private final int clusterCities[];
+		private final int clusterStart[];
+		private final RandomSource clusterRandom[];
+		private final int from;
+		private final int to;
+
+		ClusterTask(EuclideanDistanceSource distances, int clusterCities[], int clusterStart[],
+				RandomSource clusterRandom[], int from, int to) {
+			this.distances = distances;
+			this.clusterCities = clusterCities;
+			this.clusterStart = clusterStart;
+			this.clusterRandom = clusterRandom;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from > 1 && pool != null) {
+				int middle = (this.from + this.to) >>> 1;
+				invokeAll(
+						new ClusterTask(this.distances, this.clusterCities, this.clusterStart, this.clusterRandom,
+								this.from, middle),
+						new ClusterTask(this.distances, this.clusterCities, this.clusterStart, this.clusterRandom,
+								middle, this.to));
+				return;
+			}
+			for (int cluster = this.from; cluster < this.to; cluster++) {
+				solveCluster(this.distances, this.clusterCities, this.clusterStart[cluster],
+						this.clusterStart[cluster + 1], this.clusterRandom[cluster]);
+			}
+		}
+	}
+
+	/**
+	 * Put one cluster's cities in tour order, in place
+	 *
+	 * @param distances
+	 * @param cities
+	 *            Array holding the cluster's cities
+	 * @param from
+	 *            Index of the cluster's first city
+	 * @param to
+	 *            One past the cluster's last city
+	 * @param random
+	 *            The cluster's random stream
+	 */
+	private void solveCluster(EuclideanDistanceSource distances, int cities[], int from, int to,
+			RandomSource random) {
+		int size = to - from;
+		if (size < 4) {
+			// Every order is the same tour, up to direction
+			return;
+		}
+
+		// The cluster as a TSP of its own, city i being cities[from + i]
+		float x[] = new float[size];
+		float y[] = new float[size];
+		for (int i = 0; i < size; i++) {
+			x[i] = (float) distances.getX(cities[from + i]);
+			y[i] = (float) distances.getY(cities[from + i]);
+		}
+		CoordinateDistances clusterDistances = new CoordinateDistances(x, y);
+
+		GeneticAlgorithm ga = this.newGeneticAlgorithm(this.clusterPopulationSize, random);
+		Population population = ga.initPopulation(clusterDistances);
+		ga.evalPopulation(population, clusterDistances);
+		for (int generation = 0; generation < this.clusterGenerations; generation++) {
+			population = ga.crossoverPopulation(population);
+			population = ga.mutatePopulation(population);
+			ga.improvePopulation(population, clusterDistances);
+			ga.evalPopulation(population, clusterDistances);
+		}
+
+		Individual best = population.getFittest(0);
+		int members[] = new int[size];
+		System.arraycopy(cities, from, members, 0, size);
+		for (int i = 0; i < size; i++) {
+			cities[from + i] = members[best.getGene(i)];
+		}
+	}
+
+	/**
+	 * Put the clusters in order by a tour of their centres
+	 *
+	 * @return The cluster indexes in tour order, empty clusters left out
+	 */
+	private int[] clusterOrder(double centreX[], double centreY[], int clusterStart[]) {
+		int used = 0;
+		for (int cluster = 0; cluster < centreX.length; cluster++) {
+			if (clusterStart[cluster + 1] > clusterStart[cluster]) {
+				used++;
+			}
+		}
+		int clusters[] = new int[used];
+		float x[] = new float[used];
+		float y[] = new float[used];
+		used = 0;
+		for (int cluster = 0; cluster < centreX.length; cluster++) {
+			if (clusterStart[cluster + 1] > clusterStart[cluster]) {
+				clusters[used] = cluster;
+				x[used] = (float) centreX[cluster];
+				y[used] = (float) centreY[cluster];
+				used++;
+			}
+		}
+
+		int order[] = new int[used];
+		CoordinateDistances centres = new CoordinateDistances(x, y);
+		NeighborLists neighbors = new NeighborLists(centres, 10);
+		TourBuilder.greedyEdgeTour(centres, neighbors, order, 0);
+		LocalSearch.forCurrentThread().improve(order, 0, used, centres, neighbors, LocalSearch.NO_DEADLINE);
+		for (int i = 0; i < used; i++) {
+			order[i] = clusters[order[i]];
+		}
+		return order;
+	}
+
+	/**
+	 * Join the cluster tours into one tour
+	 *
+	 * Each cluster is entered at its city nearest to where the tour left the
+	 * cluster before, or for the first cluster to the last cluster's centre.
+	 * Its tour is then cut next to that city, on whichever side leaves the
+	 * exit nearer to the next cluster's centre (the tour's first city, for
+	 * the last cluster), and walked from entry to exit.
+	 *
+	 * @param distances
+	 * @param clusterCities
+	 *            Each cluster's cities in tour order
+	 * @param clusterStart
+	 * @param centreX
+	 * @param centreY
+	 * @param order
+	 *            The clusters in the order to visit them
+	 * @param tour
+	 *            Array to write the tour to
+	 */
+	private void stitch(EuclideanDistanceSource distances, int clusterCities[], int clusterStart[], double centreX[],
+			double centreY[], int order[], int tour[]) {
+		int position = 0;
+		int exit = -1;
+		for (int i = 0; i < order.length; i++) {
+			int from = clusterStart[order[i]];
+			int size = clusterStart[order[i] + 1] - from;
+
+			int entry;
+			if (exit == -1) {
+				int last = order[order.length - 1];
+				entry = nearestMember(distances, clusterCities, from, size, centreX[last], centreY[last]);
+			} else {
+				entry = nearestMember(distances, clusterCities, from, size, distances.getX(exit),
+						distances.getY(exit));
+			}
+
+			double nextX, nextY;
+			if (i + 1 < order.length) {
+				nextX = centreX[order[i + 1]];
+				nextY = centreY[order[i + 1]];
+			} else {
+				nextX = distances.getX(tour[0]);
+				nextY = distances.getY(tour[0]);
+			}
+			int forwardExit = clusterCities[from + (entry == 0 ? size - 1 : entry - 1)];
+			int backwardExit = clusterCities[from + (entry == size - 1 ? 0 : entry + 1)];
+			boolean forward = distanceTo(distances, forwardExit, nextX, nextY) <= distanceTo(distances, backwardExit,
+					nextX, nextY);
+
+			for (int step = 0; step < size; step++) {
+				int index = forward ? entry + step : entry - step;
+				index = index >= size ? index - size : (index < 0 ? index + size : index);
+				tour[position++] = clusterCities[from + index];
+			}
+			exit = tour[position - 1];
+		}
+	}
+
+	private static double distanceTo(EuclideanDistanceSource distances, int city, double x, double y) {
+		double deltaX = distances.getX(city) - x;
+		double deltaY = distances.getY(city) - y;
+		return deltaX * deltaX + deltaY * deltaY;
+	}
+
+	/**
+	 * Find the cluster city nearest to a point
+	 *
+	 * @return The city's index within the cluster
+	 */
+	private static int nearestMember(EuclideanDistanceSource distances, int clusterCities[], int from, int size,
+			double x, double y) {
+		int nearest = 0;
+		double nearestDistance = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < size; i++) {
+			double distance = distanceTo(distances, clusterCities[from + i], x, y);
+			if (distance < nearestDistance) {
+				nearest = i;
+				nearestDistance = distance;
+			}
+		}
+		return nearest;
+	}
+}
@@ -0,0 +1,155 @@
+package chapter4;
+
+/**
+ * Straight-line distances between cities, worked out from their coordinates
+ * whenever they're asked for.
+ *
+ * Nothing but the coordinates is stored: two float arrays, 8 bytes a city, so
+ * 100,000 cities take under 1MB where a full distance matrix would take 80GB
+ * of doubles. Each distance is a subtraction, two multiplies and a square
+ * root on values that are almost always in cache, which for large instances
+ * is as fast as any lookup table could be (see DistanceMatrix), including a
+ * cache of just each city's near-neighbour distances.
+ *
+ * Floats hold integer coordinates exactly up to 16,777,216, which covers the
+ * TSPLIB instances; the distances themselves are computed in double.
+ *
+ * The coordinates never change, so any number of threads can share an
+ * instance.
+ */
+public class CoordinateDistances implements EuclideanDistanceSource {
+
+	private final int numCities;
+
+	/**
+	 * City coordinates, by city index
+	 */
+	private final float x[];
+	private final float y[];
+
+	/**
+	 * Build distances over a set of coordinates
+	 *
+	 * The arrays are used as they are, not copied, and must not be changed
+	 * afterwards.
+	 *
+	 * @param x
+	 *            The cities' x coordinates, by city index
+	 * @param y
+	 *            The cities' y coordinates, by city index
+	 */
+	public CoordinateDistances(float x[], float y[]) {
+		if (x.length != y.length) {
+			throw new IllegalArgumentException("Coordinate arrays differ in length: " + x.length + " and " + y.length);
+		}
+		this.numCities = x.length;
+		this.x = x;
+		this.y = y;
+	}
+
+	/**
+	 * Get the number of cities
+	 *
+	 * @return numCities
+	 */
+	@Override
+	public int getNumCities() {
+		return this.numCities;
+	}
+
+	@Override
+	public double getX(int city) {
+		return this.x[city];
+	}
+
+	@Override
+	public double getY(int city) {
+		return this.y[city];
+	}
+
+	/**
+	 * Get the distance between two cities
+	 *
+	 * @param from
+	 *            Index of the first city
+	 * @param to
+	 *            Index of the second city
+	 * @return distance
+	 */
+	@Override
+	public double getDistance(int from, int to) {
+		double deltaX = (double) this.x[to] - this.x[from];
+		double deltaY = (double) this.y[to] - this.y[from];
+		return Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+	}
+
+	/**
+	 * Measure a closed tour, including the way back to the first city
+	 *
+	 * Same as the default, with the distances inlined
+	 *
+	 * @param tour
+	 *            Array holding the tour's city indexes
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 * @param length
+	 *            Number of cities in the tour
+	 * @return The tour's total distance
+	 */
+	@Override
+	public double tourLength(int tour[], int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+
+		float x[] = this.x;
+		float y[] = this.y;
+		int last = offset + length - 1;
+		double totalDistance = 0;
+		int from = tour[offset];
+		for (int i = offset + 1; i <= last + 1; i++) {
+			// Closing edge last, as in the default
+			int to = i <= last ? tour[i] : tour[offset];
+			double deltaX = (double) x[to] - x[from];
+			double deltaY = (double) y[to] - y[from];
+			totalDistance += Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+			from = to;
+		}
+		return totalDistance;
+	}
+
+	/**
+	 * Measure a closed tour stored one char per city
+	 *
+	 * Same as tourLength(int[], int, int), for compact populations
+	 *
+	 * @param tour
+	 *            Array holding the tour's city indexes
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 * @param length
+	 *            Number of cities in the tour
+	 * @return The tour's total distance
+	 */
+	@Override
+	public double tourLength(char tour[], int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+
+		float x[] = this.x;
+		float y[] = this.y;
+		int last = offset + length - 1;
+		double totalDistance = 0;
+		int from = tour[offset];
+		for (int i = offset + 1; i <= last + 1; i++) {
+			// Closing edge last, as in the default
+			int to = i <= last ? tour[i] : tour[offset];
+			double deltaX = (double) x[to] - x[from];
+			double deltaY = (double) y[to] - y[from];
+			totalDistance += Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+			from = to;
+		}
+		return totalDistance;
+	}
+}
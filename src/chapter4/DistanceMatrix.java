@@ -0,0 +1,202 @@
+package chapter4;
+
+/**
+ * Distances between every pair of cities, computed once.
+ *
+ * City.distanceFrom goes through Math.pow and two City objects every time
+ * it's called, and a tour of n cities calls it n times per evaluation. For up
+ * to FULL_MATRIX_LIMIT cities the matrix works every distance out up front
+ * and keeps them in one flat n x n array of doubles, holding exactly the
+ * values distanceFrom returns, so measuring a tour is a run of lookups.
+ *
+ * Past that size a stored matrix no longer fits in cache, and since the
+ * cities of a tour are visited in no particular index order, nearly every
+ * lookup would miss. Recomputing the square root from coordinates kept in two
+ * flat arrays is then faster than any stored layout, triangular or full, so
+ * that is what large instances do. The results are the same either way.
+ *
+ * The matrix never changes once built, so any number of threads can share it.
+ */
+public class DistanceMatrix implements EuclideanDistanceSource {
+
+	/**
+	 * Largest number of cities whose distances are stored; 512 cities take
+	 * 2MB
+	 */
+	public static final int FULL_MATRIX_LIMIT = 512;
+
+	private final City cities[];
+	private final int numCities;
+
+	/**
+	 * The distance from city a to city b is at a * numCities + b. Null above
+	 * FULL_MATRIX_LIMIT cities.
+	 */
+	private final double full[];
+
+	/**
+	 * City coordinates, by city index
+	 */
+	private final double x[];
+	private final double y[];
+
+	/**
+	 * Build the distance matrix for a set of cities
+	 *
+	 * @param cities
+	 *            The cities, indexed the same way as the genes of a tour
+	 */
+	public DistanceMatrix(City cities[]) {
+		this.cities = cities;
+		this.numCities = cities.length;
+		this.x = new double[this.numCities];
+		this.y = new double[this.numCities];
+		for (int city = 0; city < this.numCities; city++) {
+			this.x[city] = cities[city].getX();
+			this.y[city] = cities[city].getY();
+		}
+
+		if (this.numCities <= FULL_MATRIX_LIMIT) {
+			this.full = new double[this.numCities * this.numCities];
+			for (int a = 0; a < this.numCities; a++) {
+				for (int b = 0; b < a; b++) {
+					double distance = this.calcDistance(a, b);
+					this.full[a * this.numCities + b] = distance;
+					this.full[b * this.numCities + a] = distance;
+				}
+			}
+		} else {
+			this.full = null;
+		}
+	}
+
+	/**
+	 * Same as City.distanceFrom, without Math.pow or the City objects
+	 */
+	private double calcDistance(int from, int to) {
+		double deltaX = this.x[to] - this.x[from];
+		double deltaY = this.y[to] - this.y[from];
+		return Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+	}
+
+	/**
+	 * Check whether this matrix was built from the given cities
+	 *
+	 * @param cities
+	 * @return true if cities is the very array the matrix was built from
+	 */
+	public boolean isFor(City cities[]) {
+		return this.cities == cities;
+	}
+
+	/**
+	 * Get the number of cities
+	 *
+	 * @return numCities
+	 */
+	@Override
+	public int getNumCities() {
+		return this.numCities;
+	}
+
+	@Override
+	public double getX(int city) {
+		return this.x[city];
+	}
+
+	@Override
+	public double getY(int city) {
+		return this.y[city];
+	}
+
+	/**
+	 * Get the distance between two cities
+	 *
+	 * @param from
+	 *            Index of the first city
+	 * @param to
+	 *            Index of the second city
+	 * @return distance
+	 */
+	@Override
+	public double getDistance(int from, int to) {
+		if (this.full != null) {
+			return this.full[from * this.numCities + to];
+		}
+		return this.calcDistance(from, to);
+	}
+
+	/**
+	 * Measure a closed tour, including the way back to the first city
+	 *
+	 * Same as the default, with the lookups inlined
+	 *
+	 * @param tour
+	 *            Array holding the tour's city indexes
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 * @param length
+	 *            Number of cities in the tour
+	 * @return The tour's total distance
+	 */
+	@Override
+	public double tourLength(int tour[], int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+
+		int last = offset + length - 1;
+		double totalDistance = 0;
+		if (this.full != null) {
+			double full[] = this.full;
+			int numCities = this.numCities;
+			for (int i = offset; i < last; i++) {
+				totalDistance += full[tour[i] * numCities + tour[i + 1]];
+			}
+			totalDistance += full[tour[last] * numCities + tour[offset]];
+		} else {
+			for (int i = offset; i < last; i++) {
+				totalDistance += this.calcDistance(tour[i], tour[i + 1]);
+			}
+			totalDistance += this.calcDistance(tour[last], tour[offset]);
+		}
+		return totalDistance;
+	}
+
+	/**
+	 * Measure a closed tour stored one char per city
+	 *
+	 * Same as tourLength(int[], int, int), for compact populations
+	 *
+	 * @param tour
+	 *            Array holding the tour's city indexes
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 * @param length
+	 *            Number of cities in the tour
+	 * @return The tour's total distance
+	 */
+	@Override
+	public double tourLength(char tour[], int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+
+		int last = offset + length - 1;
+		double totalDistance = 0;
+		if (this.full != null) {
+			double full[] = this.full;
+			int numCities = this.numCities;
+			for (int i = offset; i < last; i++) {
+				totalDistance += full[tour[i] * numCities + tour[i + 1]];
+			}
+			totalDistance += full[tour[last] * numCities + tour[offset]];
+		} else {
+			for (int i = offset; i < last; i++) {
+				totalDistance += this.calcDistance(tour[i], tour[i + 1]);
+			}
+			totalDistance += this.calcDistance(tour[last], tour[offset]);
+		}
+		return totalDistance;
+	}
+}
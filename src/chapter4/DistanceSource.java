@@ -0,0 +1,105 @@
+package chapter4;
+
+/**
+ * Anything that can tell the distance between two cities by index.
+ *
+ * The genetic algorithm only ever needs city indexes and the distances between
+ * them, so it evaluates tours against a DistanceSource rather than against
+ * City objects. A tour is measured straight from the int[] holding the
+ * chromosome; nothing is copied or allocated on the way.
+ *
+ * Implementations are read by the evaluation threads concurrently, so they
+ * must not change once handed to the GA.
+ */
+public interface DistanceSource {
+
+	/**
+	 * Get the number of cities
+	 *
+	 * @return numCities
+	 */
+	int getNumCities();
+
+	/**
+	 * Get the distance between two cities
+	 *
+	 * @param from
+	 *            Index of the first city
+	 * @param to
+	 *            Index of the second city
+	 * @return distance
+	 */
+	double getDistance(int from, int to);
+
+	/**
+	 * Measure a closed tour, including the way back to the first city
+	 *
+	 * The edges are summed in tour order and the closing edge last, the same
+	 * order Route uses, so both give exactly the same total.
+	 *
+	 * @param tour
+	 *            Array holding the tour's city indexes
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 * @param length
+	 *            Number of cities in the tour
+	 * @return The tour's total distance
+	 */
+	default double tourLength(int tour[], int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+
+		int last = offset + length - 1;
+		double totalDistance = 0;
+		for (int i = offset; i < last; i++) {
+			totalDistance += this.getDistance(tour[i], tour[i + 1]);
+		}
+		totalDistance += this.getDistance(tour[last], tour[offset]);
+		return totalDistance;
+	}
+
+	/**
+	 * Measure a closed tour stored one char per city, as in a compact
+	 * population
+	 *
+	 * Same as tourLength(int[], int, int), edge for edge.
+	 *
+	 * @param tour
+	 *            Array holding the tour's city indexes
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 * @param length
+	 *            Number of cities in the tour
+	 * @return The tour's total distance
+	 */
+	default double tourLength(char tour[], int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+
+		int last = offset + length - 1;
+		double totalDistance = 0;
+		for (int i = offset; i < last; i++) {
+			totalDistance += this.getDistance(tour[i], tour[i + 1]);
+		}
+		totalDistance += this.getDistance(tour[last], tour[offset]);
+		return totalDistance;
+	}
+
+	/**
+	 * Measure an individual's tour
+	 *
+	 * @param individual
+	 *            An individual whose chromosome is a tour of these cities
+	 * @return The tour's total distance
+	 */
+	default double tourLength(Individual individual) {
+		if (individual.isCompact()) {
+			return this.tourLength(individual.getCompactChromosome(), individual.getChromosomeOffset(),
+					individual.getChromosomeLength());
+		}
+		return this.tourLength(individual.getChromosome(), individual.getChromosomeOffset(),
+				individual.getChromosomeLength());
+	}
+}
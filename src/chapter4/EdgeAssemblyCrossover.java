@@ -0,0 +1,528 @@
+package chapter4;
+
+import java.util.Arrays;
+
+/**
+ * Edge assembly crossover (EAX), building a child almost entirely out of its
+ * parents' edges.
+ *
+ * Ordered crossover keeps the order of parent1's cities in one stretch but
+ * joins the rest in parent2's order, which breaks most of the edges that made
+ * either parent good. EAX works on edges instead:
+ *
+ * 1. Each parent becomes a successor and a predecessor array, so "is (u, v)
+ * an edge of this parent?" is one lookup.
+ *
+ * 2. The edges the parents don't share split into AB-cycles, closed walks
+ * that take an edge of parent1 and an edge of parent2 in turn.
+ *
+ * 3. One AB-cycle, picked at random, is applied to parent1: its parent1 edges
+ * are taken out and its parent2 edges put in. Every city still has two edges,
+ * but the result is usually several subtours rather than one tour.
+ *
+ * 4. Subtours are merged, smallest first, by swapping one of its edges and an
+ * edge of another subtour for the two edges that join them at the least
+ * cost, looking only at near neighbours.
+ *
+ * The child therefore keeps all of parent1's edges but a few, gains a local
+ * piece of parent2, and the merges add only short edges. Everything is linear
+ * in the number of cities, apart from merging, which relabels the smaller
+ * subtour each time.
+ *
+ * The scratch arrays are sized to the chromosome and reused from child to
+ * child. One instance must not be used by two threads at once; use
+ * forCurrentThread() to get the calling thread's own.
+ */
+public class EdgeAssemblyCrossover {
+
+	private static final ThreadLocal<EdgeAssemblyCrossover> SCRATCH = ThreadLocal
+			.withInitial(EdgeAssemblyCrossover::new);
+
+	private int length;
+	private DistanceSource distances;
+
+	/**
+	 * Each parent as successor and predecessor arrays
+	 */
+	private int successor1[] = new int[0];
+	private int predecessor1[] = new int[0];
+	private int successor2[] = new int[0];
+	private int predecessor2[] = new int[0];
+
+	/**
+	 * Edges of one parent that the other doesn't have, up to two per city:
+	 * the edges of city c are at [2c] and [2c + 1], and the count says how
+	 * many are left to walk
+	 */
+	private int edges1[] = new int[0];
+	private int edgeCount1[] = new int[0];
+	private int edges2[] = new int[0];
+	private int edgeCount2[] = new int[0];
+
+	/**
+	 * The walk that AB-cycles are cut from, and where each city is on it at
+	 * an even or odd index, or -1
+	 */
+	private int path[] = new int[0];
+	private int evenIndex[] = new int[0];
+	private int oddIndex[] = new int[0];
+
+	/**
+	 * AB-cycles found; cycle i is cycleCities[cycleStart[i]] to
+	 * cycleCities[cycleStart[i + 1] - 1], first city repeated at the end, and
+	 * starts with a parent1 edge if cycleStartsWith1[i]
+	 */
+	private int cycleCities[] = new int[0];
+	private int cycleStart[] = new int[0];
+	private boolean cycleStartsWith1[] = new boolean[0];
+
+	/**
+	 * Cities that may still have edges to walk
+	 */
+	private int active[] = new int[0];
+
+	/**
+	 * The child as two links per city, at [2c] and [2c + 1]
+	 */
+	private int links[] = new int[0];
+
+	/**
+	 * Subtour label of each city, and for each label the number of cities
+	 * with it (0 once merged away) and one of them
+	 */
+	private int subtour[] = new int[0];
+	private int subtourSize[] = new int[0];
+	private int subtourCity[] = new int[0];
+
+	/**
+	 * Compact parents and child, copied out to ints
+	 */
+	private int unpacked1[] = new int[0];
+	private int unpacked2[] = new int[0];
+	private int unpackedChild[] = new int[0];
+
+	/**
+	 * Get the calling thread's scratch buffers
+	 *
+	 * @return This thread's EdgeAssemblyCrossover
+	 */
+	public static EdgeAssemblyCrossover forCurrentThread() {
+		return SCRATCH.get();
+	}
+
+	private void ensureCapacity(int length) {
+		if (this.successor1.length >= length) {
+			return;
+		}
+		this.successor1 = new int[length];
+		this.predecessor1 = new int[length];
+		this.successor2 = new int[length];
+		this.predecessor2 = new int[length];
+		this.edges1 = new int[2 * length];
+		this.edgeCount1 = new int[length];
+		this.edges2 = new int[2 * length];
+		this.edgeCount2 = new int[length];
+		this.path = new int[2 * length + 1];
+		this.evenIndex = new int[length];
+		this.oddIndex = new int[length];
+		this.cycleCities = new int[3 * length + 1];
+		this.cycleStart = new int[length + 1];
+		this.cycleStartsWith1 = new boolean[length];
+		this.active = new int[length];
+		this.links = new int[2 * length];
+		this.subtour = new int[length];
+		this.subtourSize = new int[length];
+		this.subtourCity = new int[length];
+		Arrays.fill(this.evenIndex, -1);
+		Arrays.fill(this.oddIndex, -1);
+	}
+
+	/**
+	 * Build a child from two parent tours
+	 *
+	 * @param parent1
+	 * @param parent1Offset
+	 * @param parent2
+	 * @param parent2Offset
+	 * @param child
+	 *            Array to write the child to; must not overlap the parents
+	 * @param childOffset
+	 * @param length
+	 *            The chromosome length
+	 * @param distances
+	 *            The distances between the cities; must be the same in both
+	 *            directions
+	 * @param neighbors
+	 *            Near neighbours to look for merges among
+	 * @param random
+	 *            Picks the AB-cycle, and the way at each fork of the walk
+	 */
+	public void cross(int parent1[], int parent1Offset, int parent2[], int parent2Offset, int child[],
+			int childOffset, int length, DistanceSource distances, NeighborLists neighbors, RandomSource random) {
+		if (length < 5) {
+			// Too few cities for two different tours to differ by more than
+			// direction
+			System.arraycopy(parent1, parent1Offset, child, childOffset, length);
+			return;
+		}
+
+		this.ensureCapacity(length);
+		this.length = length;
+		this.distances = distances;
+		toSuccessors(parent1, parent1Offset, length, this.successor1, this.predecessor1);
+		toSuccessors(parent2, parent2Offset, length, this.successor2, this.predecessor2);
+
+		int cycles = this.findCycles(random);
+		if (cycles == 0) {
+			// The parents are the same tour
+			System.arraycopy(parent1, parent1Offset, child, childOffset, length);
+			this.distances = null;
+			return;
+		}
+
+		// Start from parent1 and swap in one AB-cycle
+		for (int city = 0; city < length; city++) {
+			this.links[2 * city] = this.predecessor1[city];
+			this.links[2 * city + 1] = this.successor1[city];
+		}
+		this.applyCycle(random.nextInt(cycles));
+
+		this.mergeSubtours(neighbors);
+
+		// Read the tour out from parent1's first city
+		int first = parent1[parent1Offset];
+		int previous = -1;
+		int city = first;
+		for (int i = 0; i < length; i++) {
+			child[childOffset + i] = city;
+			int next = this.links[2 * city] != previous ? this.links[2 * city] : this.links[2 * city + 1];
+			previous = city;
+			city = next;
+		}
+		this.distances = null;
+	}
+
+	/**
+	 * Build a child from two parent tours stored one char per city, as in a
+	 * compact population; see cross(int[], ...)
+	 *
+	 * The parents are copied out to int arrays and the child copied back,
+	 * which costs little next to building it.
+	 */
+	public void cross(char parent1[], int parent1Offset, char parent2[], int parent2Offset, char child[],
+			int childOffset, int length, DistanceSource distances, NeighborLists neighbors, RandomSource random) {
+		if (this.unpacked1.length < length) {
+			this.unpacked1 = new int[length];
+			this.unpacked2 = new int[length];
+			this.unpackedChild = new int[length];
+		}
+		for (int i = 0; i < length; i++) {
+			this.unpacked1[i] = parent1[parent1Offset + i];
+			this.unpacked2[i] = parent2[parent2Offset + i];
+		}
+		this.cross(this.unpacked1, 0, this.unpacked2, 0, this.unpackedChild, 0, length, distances, neighbors, random);
+		for (int i = 0; i < length; i++) {
+			child[childOffset + i] = (char) this.unpackedChild[i];
+		}
+	}
+
+	private static void toSuccessors(int tour[], int offset, int length, int successor[], int predecessor[]) {
+		for (int i = 0; i < length; i++) {
+			int city = tour[offset + i];
+			int next = tour[offset + (i + 1 == length ? 0 : i + 1)];
+			successor[city] = next;
+			predecessor[next] = city;
+		}
+	}
+
+	/**
+	 * Split the edges the parents don't share into AB-cycles
+	 *
+	 * @param random
+	 * @return The number of AB-cycles
+	 */
+	private int findCycles(RandomSource random) {
+		int length = this.length;
+		int activeCount = 0;
+		for (int city = 0; city < length; city++) {
+			this.edgeCount1[city] = 0;
+			this.edgeCount2[city] = 0;
+		}
+		for (int city = 0; city < length; city++) {
+			// Each edge once, from the city it leaves
+			int next1 = this.successor1[city];
+			if (this.successor2[city] != next1 && this.predecessor2[city] != next1) {
+				this.edges1[2 * city + this.edgeCount1[city]++] = next1;
+				this.edges1[2 * next1 + this.edgeCount1[next1]++] = city;
+			}
+			int next2 = this.successor2[city];
+			if (this.successor1[city] != next2 && this.predecessor1[city] != next2) {
+				this.edges2[2 * city + this.edgeCount2[city]++] = next2;
+				this.edges2[2 * next2 + this.edgeCount2[next2]++] = city;
+			}
+		}
+		for (int city = 0; city < length; city++) {
+			if (this.edgeCount1[city] > 0) {
+				this.active[activeCount++] = city;
+			}
+		}
+
+		int cycles = 0;
+		int cityCount = 0;
+		this.cycleStart[0] = 0;
+		while (true) {
+			// Pick a city with edges left to start a walk from
+			int start = -1;
+			while (activeCount > 0) {
+				int pick = random.nextInt(activeCount);
+				if (this.edgeCount1[this.active[pick]] > 0) {
+					start = this.active[pick];
+					break;
+				}
+				this.active[pick] = this.active[--activeCount];
+			}
+			if (start == -1) {
+				break;
+			}
+
+			// Walk, taking parent1 edges from even indexes and parent2 edges
+			// from odd ones, and cut off a cycle whenever the walk comes back
+			// to a city at an index of the same parity
+			int pathLength = 1;
+			this.path[0] = start;
+			this.evenIndex[start] = 0;
+			while (pathLength > 0) {
+				int index = pathLength - 1;
+				int city = this.path[index];
+				boolean take1 = (index & 1) == 0;
+				int count = take1 ? this.edgeCount1[city] : this.edgeCount2[city];
+				if (count == 0) {
+					// Only happens back at the start, when the walk is done
+					this.clearIndex(city, index);
+					pathLength--;
+					continue;
+				}
+				int next = this.takeEdge(take1 ? this.edges1 : this.edges2, take1 ? this.edgeCount1 : this.edgeCount2,
+						city, count == 1 ? 0 : random.nextInt(count));
+
+				int end = pathLength;
+				this.path[pathLength++] = next;
+				int cycleFrom = (end & 1) == 0 ? this.evenIndex[next] : this.oddIndex[next];
+				if (cycleFrom < 0) {
+					if ((end & 1) == 0) {
+						this.evenIndex[next] = end;
+					} else {
+						this.oddIndex[next] = end;
+					}
+					continue;
+				}
+
+				// path[cycleFrom..end] is an AB-cycle
+				this.cycleStartsWith1[cycles] = (cycleFrom & 1) == 0;
+				for (int i = cycleFrom; i <= end; i++) {
+					this.cycleCities[cityCount++] = this.path[i];
+				}
+				this.cycleStart[++cycles] = cityCount;
+				for (int i = cycleFrom + 1; i < end; i++) {
+					this.clearIndex(this.path[i], i);
+				}
+				pathLength = cycleFrom + 1;
+			}
+		}
+		return cycles;
+	}
+
+	private void clearIndex(int city, int index) {
+		if ((index & 1) == 0) {
+			this.evenIndex[city] = -1;
+		} else {
+			this.oddIndex[city] = -1;
+		}
+	}
+
+	/**
+	 * Remove one of a city's remaining edges from both of its ends
+	 *
+	 * @return The city at the other end
+	 */
+	private int takeEdge(int edges[], int edgeCount[], int city, int which) {
+		int other = edges[2 * city + which];
+		edges[2 * city + which] = edges[2 * city + --edgeCount[city]];
+		int otherSlot = edges[2 * other] == city ? 0 : 1;
+		edges[2 * other + otherSlot] = edges[2 * other + --edgeCount[other]];
+		return other;
+	}
+
+	/**
+	 * Replace the cycle's parent1 edges in the child with its parent2 edges
+	 */
+	private void applyCycle(int cycle) {
+		int from = this.cycleStart[cycle];
+		int to = this.cycleStart[cycle + 1] - 1;
+		boolean startsWith1 = this.cycleStartsWith1[cycle];
+		for (int i = from; i < to; i++) {
+			boolean from1 = ((i - from) & 1) == 0 ? startsWith1 : !startsWith1;
+			if (from1) {
+				this.unlink(this.cycleCities[i], this.cycleCities[i + 1]);
+			}
+		}
+		for (int i = from; i < to; i++) {
+			boolean from1 = ((i - from) & 1) == 0 ? startsWith1 : !startsWith1;
+			if (from1 == false) {
+				this.link(this.cycleCities[i], this.cycleCities[i + 1]);
+			}
+		}
+	}
+
+	private void unlink(int a, int b) {
+		this.links[this.links[2 * a] == b ? 2 * a : 2 * a + 1] = -1;
+		this.links[this.links[2 * b] == a ? 2 * b : 2 * b + 1] = -1;
+	}
+
+	private void link(int a, int b) {
+		this.links[this.links[2 * a] == -1 ? 2 * a : 2 * a + 1] = b;
+		this.links[this.links[2 * b] == -1 ? 2 * b : 2 * b + 1] = a;
+	}
+
+	private int nextLink(int city, int previous) {
+		return this.links[2 * city] != previous ? this.links[2 * city] : this.links[2 * city + 1];
+	}
+
+	/**
+	 * Join the child's subtours into one tour
+	 */
+	private void mergeSubtours(NeighborLists neighbors) {
+		int length = this.length;
+		Arrays.fill(this.subtour, 0, length, -1);
+		int subtours = 0;
+		for (int city = 0; city < length; city++) {
+			if (this.subtour[city] == -1) {
+				this.subtourSize[subtours] = this.label(city, subtours);
+				this.subtourCity[subtours] = city;
+				subtours++;
+			}
+		}
+
+		for (int remaining = subtours; remaining > 1; remaining--) {
+			int smallest = -1;
+			for (int label = 0; label < subtours; label++) {
+				if (this.subtourSize[label] > 0
+						&& (smallest == -1 || this.subtourSize[label] < this.subtourSize[smallest])) {
+					smallest = label;
+				}
+			}
+			this.mergeInto(this.subtourCity[smallest], smallest, neighbors);
+		}
+	}
+
+	/**
+	 * Give every city of the subtour through a city the same label
+	 *
+	 * @return The number of cities in the subtour
+	 */
+	private int label(int start, int label) {
+		int size = 0;
+		int previous = -1;
+		int city = start;
+		do {
+			this.subtour[city] = label;
+			size++;
+			int next = this.nextLink(city, previous);
+			previous = city;
+			city = next;
+		} while (city != start);
+		return size;
+	}
+
+	/**
+	 * Join a subtour to another by the cheapest exchange of two edges found
+	 * among its cities' near neighbours
+	 */
+	private void mergeInto(int start, int label, NeighborLists neighbors) {
+		double bestDelta = Double.POSITIVE_INFINITY;
+		int bestU = -1, bestU2 = -1, bestV = -1, bestV2 = -1;
+
+		int k = neighbors.getK();
+		int previous = -1;
+		int u = start;
+		do {
+			for (int side = 0; side < 2; side++) {
+				int u2 = this.links[2 * u + side];
+				double removedU = this.distances.getDistance(u, u2);
+				for (int rank = 0; rank < k; rank++) {
+					int v = neighbors.getNeighbor(u, rank);
+					if (this.subtour[v] == label) {
+						continue;
+					}
+					for (int vSide = 0; vSide < 2; vSide++) {
+						int v2 = this.links[2 * v + vSide];
+						double delta = this.exchangeDelta(u, u2, v, v2, removedU);
+						if (delta < bestDelta) {
+							bestDelta = delta;
+							bestU = u;
+							bestU2 = u2;
+							bestV = v;
+							bestV2 = v2;
+						}
+					}
+				}
+			}
+			int next = this.nextLink(u, previous);
+			previous = u;
+			u = next;
+		} while (u != start);
+
+		if (bestU == -1) {
+			// No near neighbour outside the subtour; try every city outside
+			// against the subtour's first city
+			u = start;
+			for (int side = 0; side < 2; side++) {
+				int u2 = this.links[2 * u + side];
+				double removedU = this.distances.getDistance(u, u2);
+				for (int v = 0; v < this.length; v++) {
+					if (this.subtour[v] == label) {
+						continue;
+					}
+					for (int vSide = 0; vSide < 2; vSide++) {
+						int v2 = this.links[2 * v + vSide];
+						double delta = this.exchangeDelta(u, u2, v, v2, removedU);
+						if (delta < bestDelta) {
+							bestDelta = delta;
+							bestU = u;
+							bestU2 = u2;
+							bestV = v;
+							bestV2 = v2;
+						}
+					}
+				}
+			}
+		}
+
+		// Relabel the subtour as part of the other while it is still whole
+		int into = this.subtour[bestV];
+		this.subtourSize[into] += this.subtourSize[label];
+		this.subtourSize[label] = 0;
+		this.label(start, into);
+
+		// Swap (u, u2) and (v, v2) for the cheaper of (u, v) (u2, v2) and
+		// (u, v2) (u2, v)
+		this.unlink(bestU, bestU2);
+		this.unlink(bestV, bestV2);
+		double straight = this.distances.getDistance(bestU, bestV) + this.distances.getDistance(bestU2, bestV2);
+		double crossed = this.distances.getDistance(bestU, bestV2) + this.distances.getDistance(bestU2, bestV);
+		if (straight <= crossed) {
+			this.link(bestU, bestV);
+			this.link(bestU2, bestV2);
+		} else {
+			this.link(bestU, bestV2);
+			this.link(bestU2, bestV);
+		}
+	}
+
+	private double exchangeDelta(int u, int u2, int v, int v2, double removedU) {
+		double removed = removedU + this.distances.getDistance(v, v2);
+		double straight = this.distances.getDistance(u, v) + this.distances.getDistance(u2, v2);
+		double crossed = this.distances.getDistance(u, v2) + this.distances.getDistance(u2, v);
+		return Math.min(straight, crossed) - removed;
+	}
+}
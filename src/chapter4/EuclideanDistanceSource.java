@@ -0,0 +1,29 @@
+package chapter4;
+
+/**
+ * A DistanceSource whose cities are points in the plane, and whose distances
+ * are the straight-line distances between them.
+ *
+ * Knowing where the cities are lets CityGrid find near cities without
+ * measuring the distance to every other city.
+ */
+public interface EuclideanDistanceSource extends DistanceSource {
+
+	/**
+	 * Get a city's x coordinate
+	 *
+	 * @param city
+	 *            Index of the city
+	 * @return x
+	 */
+	double getX(int city);
+
+	/**
+	 * Get a city's y coordinate
+	 *
+	 * @param city
+	 *            Index of the city
+	 * @return y
+	 */
+	double getY(int city);
+}
@@ -1,7 +1,26 @@
 package chapter4;
-import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 public class GeneticAlgorithm {
+
+	/**
+	 * The ways crossoverPopulation can combine two tours
+	 */
+	public enum CrossoverMethod {
+		/** Ordered crossover (OX), the default */
+		ORDERED,
+		/** Partially mapped crossover (PMX) */
+		PARTIALLY_MAPPED,
+		/** Cycle crossover (CX) */
+		CYCLE,
+		/**
+		 * Edge assembly crossover (EAX); needs the population to have been
+		 * evaluated, as it measures edges with the same distances
+		 */
+		EDGE_ASSEMBLY
+	}
 	
     private int populationSize;
     private double mutationRate;
@@ -9,14 +28,379 @@ public class GeneticAlgorithm {
     private int elitismCount;
 	protected int tournamentSize;
 
+	/**
+	 * Slot offsets that tournaments draw their contestants from; any order
+	 * will do, so it is only ever permuted, never reset
+	 */
+	private int tournamentOrder[];
+
+	/**
+	 * Picks the genes to mutate by skipping ahead instead of rolling the dice
+	 * for every gene
+	 */
+	private MutationSampler mutationSampler;
+
+	/**
+	 * All random decisions draw from this source
+	 */
+	private RandomSource random;
+
+	/**
+	 * Distances between the cities last evaluated, built on first use
+	 */
+	private DistanceMatrix distanceMatrix;
+
+	/**
+	 * Pool that evaluates the population in parallel, or null to evaluate on
+	 * the calling thread
+	 */
+	private ForkJoinPool evaluationPool;
+
+	/**
+	 * The pool setParallelism created, if it is the evaluation pool; it is
+	 * shut down once it is replaced. Pools given to setEvaluationPool belong
+	 * to the caller
+	 */
+	private ForkJoinPool ownedPool;
+
+	/**
+	 * Evaluation splits the population in halves until a piece holds at most
+	 * this many individuals
+	 */
+	private int evaluationChunkSize = 32;
+
+	/**
+	 * Whether initPopulation stores all chromosomes in one gene matrix; the
+	 * operators keep whichever storage the population they are given uses
+	 */
+	private boolean packedPopulations = false;
+
+	/**
+	 * Whether packed populations of up to Population.MAX_COMPACT_LENGTH
+	 * cities store their genes as chars
+	 */
+	private boolean compactPopulations = false;
+
+	/**
+	 * Whether crossover and mutation write the next generation into the
+	 * population from the generation before, instead of a new one
+	 */
+	private boolean doubleBuffered = false;
+
+	/**
+	 * The population the next double-buffered operator writes into
+	 */
+	private Population spare;
+
+	/**
+	 * How crossoverPopulation combines two parents
+	 */
+	private CrossoverMethod crossoverMethod = CrossoverMethod.ORDERED;
+
+	/**
+	 * Whether mutation updates tour lengths by the change in the swapped
+	 * edges, and evaluation then skips individuals whose fitness is current
+	 */
+	private boolean deltaEvaluation = false;
+
+	/**
+	 * The distances the fitness values of the last evaluated population were
+	 * measured with
+	 */
+	private DistanceSource evaluatedDistances;
+
+	/**
+	 * Chance that improvePopulation runs local search on a non-elite
+	 * individual, and whether it always runs it on the elites
+	 */
+	private double localSearchRate = 0;
+	private boolean localSearchElites = false;
+
+	/**
+	 * Number of near neighbours local search tries for each city
+	 */
+	private int localSearchNeighbors = 10;
+
+	/**
+	 * Longest time improvePopulation may take, in nanoseconds, or 0 for no
+	 * limit
+	 */
+	private long localSearchTimeBudget = 0;
+
+	/**
+	 * Neighbour lists for the distances last improved with, built on first
+	 * use
+	 */
+	private NeighborLists neighborLists;
+
+	/**
+	 * Slots chosen for local search in the current generation
+	 */
+	private int localSearchSlots[];
+
+	/**
+	 * How initPopulation(DistanceSource) seeds the population: the share of
+	 * nearest-neighbour tours, and whether one tour is greedy-edge; the rest
+	 * are random
+	 */
+	private double nearestNeighborSeeds = 0.1;
+	private boolean greedyEdgeSeed = true;
+
 	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
 			int tournamentSize) {
+		this(populationSize, mutationRate, crossoverRate, elitismCount, tournamentSize, new RandomSource());
+	}
+
+	/**
+	 * Create a genetic algorithm that draws all of its random numbers from the
+	 * given source. Pass a RandomSource created with a fixed seed to replay a
+	 * run exactly.
+	 * 
+	 * @param random
+	 *            The random source
+	 */
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
+			int tournamentSize, RandomSource random) {
 		
         this.populationSize = populationSize;
         this.mutationRate = mutationRate;
         this.crossoverRate = crossoverRate;
         this.elitismCount = elitismCount;
 		this.tournamentSize = tournamentSize;
+		this.random = random;
+		this.mutationSampler = new MutationSampler(mutationRate, random);
+	}
+
+	/**
+	 * Evaluate the population on the given number of threads
+	 * 
+	 * The GA creates the pool itself, and shuts it down when a later
+	 * setParallelism or setEvaluationPool call replaces it.
+	 * 
+	 * @param parallelism
+	 *            The number of worker threads; 1 evaluates on the calling
+	 *            thread
+	 */
+	public void setParallelism(int parallelism) {
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		this.setEvaluationPool(pool);
+		this.ownedPool = pool;
+	}
+
+	/**
+	 * Evaluate the population on the given pool, eg ForkJoinPool.commonPool()
+	 * 
+	 * The pool stays the caller's to shut down; the GA never shuts it down.
+	 * 
+	 * @param evaluationPool
+	 *            The pool to evaluate on, or null to evaluate on the calling
+	 *            thread
+	 */
+	public void setEvaluationPool(ForkJoinPool evaluationPool) {
+		if (this.ownedPool != null) {
+			this.ownedPool.shutdown();
+			this.ownedPool = null;
+		}
+		this.evaluationPool = evaluationPool;
+	}
+
+	/**
+	 * Set the largest number of individuals a single evaluation task handles
+	 * 
+	 * The population fitness is summed in the same order for a given chunk
+	 * size, so changing it can change the last bits of the total.
+	 * 
+	 * @param evaluationChunkSize
+	 *            The largest piece of the population evaluated by one task
+	 */
+	public void setEvaluationChunkSize(int evaluationChunkSize) {
+		if (evaluationChunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1: " + evaluationChunkSize);
+		}
+		this.evaluationChunkSize = evaluationChunkSize;
+	}
+
+	/**
+	 * Choose the storage of the populations this algorithm creates
+	 * 
+	 * @param packedPopulations
+	 *            true to store every chromosome in one gene matrix per
+	 *            generation, false to give each individual its own array
+	 */
+	public void setPackedPopulations(boolean packedPopulations) {
+		this.packedPopulations = packedPopulations;
+	}
+
+	/**
+	 * Store genes at half the width where the cities allow it
+	 * 
+	 * With up to Population.MAX_COMPACT_LENGTH cities every city index fits
+	 * in a char, so initPopulation gives the population a char gene matrix
+	 * instead of an int one, and the operators keep it that way. That halves
+	 * the memory the chromosomes take, so twice the population fits in the
+	 * same heap, and twice as many genes fit in cache while tours are
+	 * measured and crossed. Crossover, mutation and evaluation read and write
+	 * the chars directly; local search and edge assembly crossover copy each
+	 * tour out to ints and back. Larger instances keep int genes. Compact
+	 * storage works on the gene matrix, so it also turns on packed
+	 * populations.
+	 * 
+	 * @param compactPopulations
+	 *            true to store genes as chars where they fit
+	 */
+	public void setCompactPopulations(boolean compactPopulations) {
+		this.compactPopulations = compactPopulations;
+		if (compactPopulations) {
+			this.packedPopulations = true;
+		}
+	}
+
+	/**
+	 * Recycle populations instead of creating one per operator
+	 * 
+	 * Crossover and mutation then alternate between two packed populations:
+	 * each writes the next generation into the population it was handed the
+	 * time before, so once a generation is running no populations or
+	 * chromosomes are allocated. A population passed to crossoverPopulation or
+	 * mutatePopulation must therefore not be used after the following
+	 * operator call. Double buffering works on the gene matrix, so it also
+	 * turns on packed populations.
+	 * 
+	 * @param doubleBuffered
+	 *            true to recycle populations
+	 */
+	public void setDoubleBuffered(boolean doubleBuffered) {
+		this.doubleBuffered = doubleBuffered;
+		this.spare = null;
+		if (doubleBuffered) {
+			this.packedPopulations = true;
+		}
+	}
+
+	/**
+	 * Choose how crossoverPopulation combines two parents
+	 * 
+	 * @param crossoverMethod
+	 *            The crossover operator to use
+	 */
+	public void setCrossoverMethod(CrossoverMethod crossoverMethod) {
+		if (crossoverMethod == null) {
+			throw new IllegalArgumentException("Crossover method must not be null");
+		}
+		this.crossoverMethod = crossoverMethod;
+	}
+
+	/**
+	 * Keep tour lengths up to date through mutation instead of measuring
+	 * every tour again
+	 * 
+	 * A swap changes at most four edges of a tour, so mutatePopulation works
+	 * out the new length of a mutated individual from those edges alone, in
+	 * constant time per swap, and stores the resulting fitness. evalPopulation
+	 * then only measures the individuals without a fitness, which are the
+	 * children from crossover. This relies on the distances being the same in
+	 * both directions and on evalPopulation being passed the same
+	 * DistanceSource (or cities array) every generation; given a different
+	 * one, it measures every tour again. Individuals changed outside the
+	 * operators must have their fitness reset to -1.
+	 * 
+	 * The lengths are summed in a different order than a full measurement
+	 * would, so they can differ from it in the last bits.
+	 * 
+	 * @param deltaEvaluation
+	 *            true to update fitness incrementally
+	 */
+	public void setDeltaEvaluation(boolean deltaEvaluation) {
+		this.deltaEvaluation = deltaEvaluation;
+	}
+
+	/**
+	 * Choose which individuals improvePopulation runs local search on
+	 * 
+	 * @param localSearchRate
+	 *            Chance of improving each individual outside the elites; 0
+	 *            for none
+	 * @param localSearchElites
+	 *            true to always improve the elites
+	 */
+	public void setLocalSearch(double localSearchRate, boolean localSearchElites) {
+		this.localSearchRate = localSearchRate;
+		this.localSearchElites = localSearchElites;
+	}
+
+	/**
+	 * Set the number of near neighbours local search considers for each city
+	 * 
+	 * @param localSearchNeighbors
+	 *            Neighbours per city; 8 to 12 is usually plenty
+	 */
+	public void setLocalSearchNeighbors(int localSearchNeighbors) {
+		if (localSearchNeighbors < 1) {
+			throw new IllegalArgumentException("Neighbour count must be at least 1: " + localSearchNeighbors);
+		}
+		this.localSearchNeighbors = localSearchNeighbors;
+	}
+
+	/**
+	 * Limit the time improvePopulation takes per generation
+	 * 
+	 * Searches still running at the deadline stop where they are, with
+	 * whatever they have improved so far; individuals not reached by then are
+	 * left alone. A budget makes results depend on timing, so seeded runs
+	 * no longer repeat exactly.
+	 * 
+	 * @param millis
+	 *            The budget in milliseconds, or 0 for no limit
+	 */
+	public void setLocalSearchTimeBudget(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Time budget must not be negative: " + millis);
+		}
+		this.localSearchTimeBudget = millis * 1000000;
+	}
+
+	/**
+	 * Choose the mix of tours initPopulation(DistanceSource) starts from
+	 * 
+	 * @param nearestNeighborSeeds
+	 *            Share of the population that starts as nearest-neighbour
+	 *            tours, from random starting cities
+	 * @param greedyEdgeSeed
+	 *            true to start one individual as the greedy-edge tour
+	 */
+	public void setSeedMix(double nearestNeighborSeeds, boolean greedyEdgeSeed) {
+		if (nearestNeighborSeeds < 0 || nearestNeighborSeeds > 1) {
+			throw new IllegalArgumentException("Seed share must be between 0 and 1: " + nearestNeighborSeeds);
+		}
+		this.nearestNeighborSeeds = nearestNeighborSeeds;
+		this.greedyEdgeSeed = greedyEdgeSeed;
+	}
+
+	/**
+	 * Get an empty population to write the generation after the given one
+	 * into
+	 * 
+	 * When double buffered, this is the population handed to the previous
+	 * operator, and the given population takes its place as the spare.
+	 * Otherwise it is a blank copy of the given population.
+	 * 
+	 * @param population
+	 *            The current generation
+	 * @return An empty population of the same size and storage
+	 */
+	private Population nextPopulation(Population population) {
+		if (this.doubleBuffered == false || population.isPacked() == false) {
+			return population.blankCopy();
+		}
+
+		Population next = this.spare;
+		if (next == null || next == population || next.hasSameShape(population) == false) {
+			next = population.blankCopy();
+		} else {
+			next.clear();
+		}
+		this.spare = population;
+		return next;
 	}
 
 
@@ -27,10 +411,76 @@ public class GeneticAlgorithm {
      * @return population The initial population generated
      */
     public Population initPopulation(int chromosomeLength){
+        if (this.compactPopulations && chromosomeLength <= Population.MAX_COMPACT_LENGTH) {
+            // The same, one char per gene
+            char genes[] = new char[this.populationSize * chromosomeLength];
+            for (int gene = 0; gene < genes.length; gene++) {
+                genes[gene] = (char) (gene % chromosomeLength);
+            }
+            return new Population(genes, chromosomeLength);
+        }
+        if (this.packedPopulations) {
+            // One gene matrix; like Individual(int), every row starts out as
+            // the cities in order
+            int genes[] = new int[this.populationSize * chromosomeLength];
+            for (int gene = 0; gene < genes.length; gene++) {
+                genes[gene] = gene % chromosomeLength;
+            }
+            return new Population(genes, chromosomeLength);
+        }
+
         // Initialize population
         Population population = new Population(this.populationSize, chromosomeLength);
         return population;
     }
+
+    /**
+     * Initialize population with a mix of tours of the given cities
+     * 
+     * @param cities the cities being referenced
+     * @return population The initial population generated
+     */
+    public Population initPopulation(City cities[]){
+        return this.initPopulation(this.getDistanceMatrix(cities));
+    }
+
+    /**
+     * Initialize population with a mix of tours
+     * 
+     * Unlike initPopulation(int), where every individual starts out as the
+     * same tour, the population starts spread out: the greedy-edge tour and
+     * a share of nearest-neighbour tours (see setSeedMix) give it a few good
+     * tours to build on, and random tours fill the rest.
+     * 
+     * @param distances the distances between the cities being referenced
+     * @return population The initial population generated
+     */
+    public Population initPopulation(DistanceSource distances){
+        int chromosomeLength = distances.getNumCities();
+        Population population = this.initPopulation(chromosomeLength);
+
+        int nearestNeighborCount = (int) Math.round(this.nearestNeighborSeeds * this.populationSize);
+        // Compact individuals get their tours built in ints and copied in
+        int unpacked[] = population.isCompact() ? new int[chromosomeLength] : null;
+        for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
+            Individual individual = population.getIndividual(populationIndex);
+            int tour[] = unpacked != null ? unpacked : individual.getChromosome();
+            int offset = unpacked != null ? 0 : individual.getChromosomeOffset();
+
+            if (populationIndex == 0 && this.greedyEdgeSeed) {
+                TourBuilder.greedyEdgeTour(distances, this.getNeighborLists(distances), tour, offset);
+            } else if (populationIndex < nearestNeighborCount + (this.greedyEdgeSeed ? 1 : 0)) {
+                TourBuilder.nearestNeighborTour(distances, this.random.nextInt(chromosomeLength), tour, offset);
+            } else {
+                TourBuilder.randomTour(this.random, tour, offset, chromosomeLength);
+            }
+            if (unpacked != null) {
+                individual.copyChromosomeFrom(unpacked, 0);
+            }
+        }
+
+        return population;
+    }
     
 	/**
 	 * Check if population has met termination condition -- this termination
@@ -51,7 +501,9 @@ public class GeneticAlgorithm {
 	 * Calculate individual's fitness value
 	 * 
 	 * Fitness, in this problem, is inversely proportional to the route's total
-	 * distance. The total distance is calculated by the Route class.
+	 * distance. The total distance is summed from a DistanceMatrix, which is
+	 * built once for the cities and reused as long as the same array is
+	 * passed in.
 	 * 
 	 * @param individual
 	 *            the individual to evaluate
@@ -60,9 +512,25 @@ public class GeneticAlgorithm {
 	 * @return double The fitness value for individual
 	 */
     public double calcFitness(Individual individual, City cities[]){
+        return this.calcFitness(individual, this.getDistanceMatrix(cities));
+    }
+
+	/**
+	 * Calculate individual's fitness value from any source of distances
+	 * 
+	 * The tour is measured straight from the chromosome array, so evaluating
+	 * an individual allocates nothing.
+	 * 
+	 * @param individual
+	 *            the individual to evaluate
+	 * @param distances
+	 *            the distances between the cities being referenced
+	 * @return double The fitness value for individual
+	 */
+    public double calcFitness(Individual individual, DistanceSource distances){
         // Get fitness
-        Route route = new Route(individual, cities);
-        double fitness = 1 / route.getDistance();
+        double distance = distances.tourLength(individual);
+        double fitness = 1 / distance;
                 
         // Store fitness
         individual.setFitness(fitness);
@@ -70,46 +538,179 @@ public class GeneticAlgorithm {
         return fitness;
     }
 
+    /**
+     * Get the distance matrix for the given cities, building it if the cities
+     * aren't the ones it was built for
+     * 
+     * The matrix is immutable and replaced with a single write, so threads
+     * evaluating in parallel at worst build it twice.
+     * 
+     * @param cities
+     * @return The distance matrix
+     */
+    public DistanceMatrix getDistanceMatrix(City cities[]) {
+        DistanceMatrix distanceMatrix = this.distanceMatrix;
+        if (distanceMatrix == null || distanceMatrix.isFor(cities) == false) {
+            distanceMatrix = new DistanceMatrix(cities);
+            this.distanceMatrix = distanceMatrix;
+        }
+        return distanceMatrix;
+    }
+
     /**
      * Evaluate population -- basically run calcFitness on each individual.
      * 
+     * After setParallelism or setEvaluationPool the individuals are evaluated
+     * on a fork/join pool; otherwise they are evaluated on this thread.
+     * 
      * @param population the population to evaluate
      * @param cities the cities being referenced
      */
     public void evalPopulation(Population population, City cities[]){
-        double populationFitness = 0;
-        
-        // Loop over population evaluating individuals and summing population fitness
-        for (Individual individual : population.getIndividuals()) {
-            populationFitness += this.calcFitness(individual, cities);
+        // Build the distance matrix before the work is split up
+        this.evalPopulation(population, this.getDistanceMatrix(cities));
+    }
+
+    /**
+     * Evaluate population against any source of distances
+     * 
+     * @param population the population to evaluate
+     * @param distances the distances between the cities being referenced
+     */
+    public void evalPopulation(Population population, DistanceSource distances){
+        // Fitness carried over from the last evaluation is only current if
+        // it was measured with the same distances
+        boolean keepFitness = this.deltaEvaluation && distances == this.evaluatedDistances;
+
+        double populationFitness;
+        if (this.evaluationPool == null) {
+            populationFitness = this.evalRange(population, distances, keepFitness, 0, population.size(), false);
+        } else {
+            populationFitness = this.evaluationPool.invoke(
+                    new EvaluationTask(population, distances, keepFitness, 0, population.size()));
         }
-        
+
         double avgFitness = populationFitness / population.size();
         population.setPopulationFitness(avgFitness);
+        this.evaluatedDistances = distances;
     }
+
+	/**
+	 * Evaluate a range of the population and sum its fitness
+	 * 
+	 * Ranges longer than the chunk size are split in half and the halves are
+	 * added left to right, so the sum is the same whether the halves ran on
+	 * one thread or many. Each call to calcFitness only writes to its own
+	 * individual and slot, so the pieces never share mutable state.
+	 * 
+	 * @param population
+	 * @param distances
+	 *            passed on to calcFitness
+	 * @param keepFitness
+	 *            Whether individuals that already have a fitness keep it
+	 * @param from
+	 *            First offset to evaluate
+	 * @param to
+	 *            One past the last offset to evaluate
+	 * @param fork
+	 *            Whether to hand the left half to the pool
+	 * @return The summed fitness of the range
+	 */
+	private double evalRange(Population population, DistanceSource distances, boolean keepFitness, int from, int to,
+			boolean fork) {
+		if (to - from <= this.evaluationChunkSize) {
+			double populationFitness = 0;
+			for (int populationIndex = from; populationIndex < to; populationIndex++) {
+				double fitness = population.getFitness(populationIndex);
+				if (keepFitness == false || fitness < 0) {
+					fitness = this.calcFitness(population.getIndividual(populationIndex), distances);
+					population.setFitness(populationIndex, fitness);
+				}
+				populationFitness += fitness;
+			}
+			return populationFitness;
+		}
+
+		int middle = (from + to) >>> 1;
+		if (fork) {
+			EvaluationTask left = new EvaluationTask(population, distances, keepFitness, from, middle);
+			left.fork();
+			double right = this.evalRange(population, distances, keepFitness, middle, to, true);
+			return left.join() + right;
+		}
+		return this.evalRange(population, distances, keepFitness, from, middle, false)
+				+ this.evalRange(population, distances, keepFitness, middle, to, false);
+	}
+
+	/**
+	 * Evaluates one range of the population on the evaluation pool
+	 */
+	private class EvaluationTask extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+
+		private final Population population;
+		private final DistanceSource distances;
+		private final boolean keepFitness;
+		private final int from;
+		private final int to;
+
+		EvaluationTask(Population population, DistanceSource distances, boolean keepFitness, int from, int to) {
+			this.population = population;
+			this.distances = distances;
+			this.keepFitness = keepFitness;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Double compute() {
+			return evalRange(this.population, this.distances, this.keepFitness, this.from, this.to, true);
+		}
+	}
  
 	/**
 	 * Selects parent for crossover using tournament selection
 	 * 
-	 * Tournament selection was introduced in Chapter 3
+	 * Tournament selection works by choosing N random individuals, and then
+	 * choosing the best of those.
+	 * 
+	 * The contestants are drawn with a partial Fisher-Yates shuffle of a
+	 * reusable array of slot offsets, so they are always distinct, nothing is
+	 * allocated, and the population keeps its order. Ties go to the
+	 * contestant drawn first.
 	 * 
 	 * @param population
-	 *            
 	 * @return The individual selected as a parent
 	 */
 	public Individual selectParent(Population population) {
-		// Create tournament
-		Population tournament = new Population(this.tournamentSize);
+		int populationSize = population.size();
+		if (this.tournamentOrder == null || this.tournamentOrder.length != populationSize) {
+			this.tournamentOrder = new int[populationSize];
+			for (int offset = 0; offset < populationSize; offset++) {
+				this.tournamentOrder[offset] = offset;
+			}
+		}
+		int order[] = this.tournamentOrder;
+		int tournamentSize = Math.min(this.tournamentSize, populationSize);
+
+		int winner = -1;
+		double winnerFitness = 0;
+		for (int i = 0; i < tournamentSize; i++) {
+			// Draw a contestant from the slots not yet drawn
+			int j = i + this.random.nextInt(populationSize - i);
+			int contestant = order[j];
+			order[j] = order[i];
+			order[i] = contestant;
 
-		// Add random individuals to the tournament
-		population.shuffle();
-		for (int i = 0; i < this.tournamentSize; i++) {
-			Individual tournamentIndividual = population.getIndividual(i);
-			tournament.setIndividual(i, tournamentIndividual);
+			// Keep the best
+			double fitness = population.getFitness(contestant);
+			if (winner == -1 || fitness > winnerFitness) {
+				winner = contestant;
+				winnerFitness = fitness;
+			}
 		}
 
-		// Return the best
-		return tournament.getFittest(0);
+		return population.getIndividual(winner);
 	}
 
 	
@@ -131,12 +732,16 @@ public class GeneticAlgorithm {
 	 * ensures that no cities are skipped or visited twice, while also
 	 * preserving ordered batches of cities.
 	 * 
+	 * PermutationCrossover builds each child in time linear in the number of
+	 * cities. setCrossoverMethod swaps ordered crossover for PMX, cycle
+	 * crossover, or edge assembly crossover (see EdgeAssemblyCrossover).
+	 * 
 	 * @param population
 	 * @return The new population
 	 */
     public Population crossoverPopulation(Population population){
-        // Create new population
-        Population newPopulation = new Population(population.size());
+        // Create new population, stored the same way as this one
+        Population newPopulation = this.nextPopulation(population);
         
         // Loop over current population by fitness
         for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
@@ -144,47 +749,21 @@ public class GeneticAlgorithm {
             Individual parent1 = population.getFittest(populationIndex);
             
             // Apply crossover to this individual?
-            if (this.crossoverRate > Math.random() && populationIndex >= this.elitismCount) {
+            if (this.crossoverRate > this.random.nextDouble() && populationIndex >= this.elitismCount) {
                 // Find parent2 with tournament selection
                 Individual parent2 = this.selectParent(population);
 
-                // Create blank offspring chromosome
-                int offspringChromosome[] = new int[parent1.getChromosomeLength()];
-                Arrays.fill(offspringChromosome, -1);
-                Individual offspring = new Individual(offspringChromosome);
-
-                // Get subset of parent chromosomes
-                int substrPos1 = (int) (Math.random() * parent1.getChromosomeLength());
-                int substrPos2 = (int) (Math.random() * parent1.getChromosomeLength());
-
-                // make the smaller the start and the larger the end
-                final int startSubstr = Math.min(substrPos1, substrPos2);
-                final int endSubstr = Math.max(substrPos1, substrPos2);
-
-                // Loop and add the sub tour from parent1 to our child
-                for (int i = startSubstr; i < endSubstr; i++) {
-                    offspring.setGene(i, parent1.getGene(i));
+                // Create blank offspring chromosome; a packed population
+                // already has a row for it
+                int chromosomeLength = parent1.getChromosomeLength();
+                Individual offspring;
+                if (newPopulation.isPacked()) {
+                    offspring = newPopulation.getIndividual(populationIndex);
+                } else {
+                    offspring = new Individual(new int[chromosomeLength]);
                 }
 
-                // Loop through parent2's city tour
-                for (int i = 0; i < parent2.getChromosomeLength(); i++) {
-                    int parent2Gene = i + endSubstr;
-                    if (parent2Gene >= parent2.getChromosomeLength()) {
-                        parent2Gene -= parent2.getChromosomeLength();
-                    }
-
-                    // If offspring doesn't have the city add it
-                    if (offspring.containsGene(parent2.getGene(parent2Gene)) == false) {
-                        // Loop to find a spare position in the child's tour
-                        for (int ii = 0; ii < offspring.getChromosomeLength(); ii++) {
-                            // Spare position found, add city
-                            if (offspring.getGene(ii) == -1) {
-                                offspring.setGene(ii, parent2.getGene(parent2Gene));
-                                break;
-                            }
-                        }
-                    }
-                }
+                this.crossover(parent1, parent2, offspring);
 
                 // Add child
                 newPopulation.setIndividual(populationIndex, offspring);
@@ -197,20 +776,105 @@ public class GeneticAlgorithm {
         return newPopulation;
     }
 
+    /**
+     * Write a child of two parents into offspring with the crossover method
+     * chosen, on int or compact chromosomes alike
+     * 
+     * @param parent1
+     * @param parent2
+     * @param offspring
+     *            The individual to write the child to; must store its genes
+     *            the same way as the parents
+     */
+    private void crossover(Individual parent1, Individual parent2, Individual offspring) {
+        int chromosomeLength = parent1.getChromosomeLength();
+        boolean compact = offspring.isCompact();
+        if (parent1.isCompact() != compact || parent2.isCompact() != compact) {
+            throw new IllegalArgumentException("Parents and offspring must store their genes the same way");
+        }
+
+        PermutationCrossover crossover = PermutationCrossover.forCurrentThread();
+        if (this.crossoverMethod == CrossoverMethod.EDGE_ASSEMBLY) {
+            DistanceSource distances = this.evaluatedDistances;
+            if (distances == null) {
+                throw new IllegalStateException("Edge assembly crossover needs an evaluated population");
+            }
+            EdgeAssemblyCrossover edgeAssembly = EdgeAssemblyCrossover.forCurrentThread();
+            if (compact) {
+                edgeAssembly.cross(parent1.getCompactChromosome(), parent1.getChromosomeOffset(),
+                        parent2.getCompactChromosome(), parent2.getChromosomeOffset(),
+                        offspring.getCompactChromosome(), offspring.getChromosomeOffset(), chromosomeLength,
+                        distances, this.getNeighborLists(distances), this.random);
+            } else {
+                edgeAssembly.cross(parent1.getChromosome(), parent1.getChromosomeOffset(), parent2.getChromosome(),
+                        parent2.getChromosomeOffset(), offspring.getChromosome(), offspring.getChromosomeOffset(),
+                        chromosomeLength, distances, this.getNeighborLists(distances), this.random);
+            }
+        } else if (this.crossoverMethod == CrossoverMethod.CYCLE) {
+            if (compact) {
+                crossover.cycle(parent1.getCompactChromosome(), parent1.getChromosomeOffset(),
+                        parent2.getCompactChromosome(), parent2.getChromosomeOffset(),
+                        offspring.getCompactChromosome(), offspring.getChromosomeOffset(), chromosomeLength);
+            } else {
+                crossover.cycle(parent1.getChromosome(), parent1.getChromosomeOffset(),
+                        parent2.getChromosome(), parent2.getChromosomeOffset(),
+                        offspring.getChromosome(), offspring.getChromosomeOffset(), chromosomeLength);
+            }
+        } else {
+            // Get subset of parent chromosomes
+            int substrPos1 = this.random.nextInt(chromosomeLength);
+            int substrPos2 = this.random.nextInt(chromosomeLength);
+
+            // make the smaller the start and the larger the end
+            final int startSubstr = Math.min(substrPos1, substrPos2);
+            final int endSubstr = Math.max(substrPos1, substrPos2);
+
+            if (this.crossoverMethod == CrossoverMethod.PARTIALLY_MAPPED) {
+                if (compact) {
+                    crossover.partiallyMapped(parent1.getCompactChromosome(), parent1.getChromosomeOffset(),
+                            parent2.getCompactChromosome(), parent2.getChromosomeOffset(),
+                            offspring.getCompactChromosome(), offspring.getChromosomeOffset(), chromosomeLength,
+                            startSubstr, endSubstr);
+                } else {
+                    crossover.partiallyMapped(parent1.getChromosome(), parent1.getChromosomeOffset(),
+                            parent2.getChromosome(), parent2.getChromosomeOffset(),
+                            offspring.getChromosome(), offspring.getChromosomeOffset(), chromosomeLength,
+                            startSubstr, endSubstr);
+                }
+            } else {
+                // Take parent1's sub tour, then fill the other slots from
+                // slot 0 with parent2's missing cities, reading parent2 from
+                // endSubstr
+                if (compact) {
+                    crossover.ordered(parent1.getCompactChromosome(), parent1.getChromosomeOffset(),
+                            parent2.getCompactChromosome(), parent2.getChromosomeOffset(),
+                            offspring.getCompactChromosome(), offspring.getChromosomeOffset(), chromosomeLength,
+                            startSubstr, endSubstr);
+                } else {
+                    crossover.ordered(parent1.getChromosome(), parent1.getChromosomeOffset(),
+                            parent2.getChromosome(), parent2.getChromosomeOffset(),
+                            offspring.getChromosome(), offspring.getChromosomeOffset(), chromosomeLength,
+                            startSubstr, endSubstr);
+                }
+            }
+        }
+    }
+
     /**
 	 * Apply mutation to population
 	 * 
 	 * Because the traveling salesman problem must visit each city only once,
 	 * this form of mutation will randomly swap two genes instead of
-	 * bit-flipping a gene like in earlier examples.
+	 * bit-flipping a gene like in earlier examples. The MutationSampler picks
+	 * the genes that start a swap.
 	 * 
 	 * @param population
 	 *            The population to apply mutation to
 	 * @return The mutated population
 	 */
     public Population mutatePopulation(Population population){
-        // Initialize new population
-        Population newPopulation = new Population(this.populationSize);
+        // Initialize new population, stored the same way as this one
+        Population newPopulation = this.nextPopulation(population);
         
         // Loop over current population by fitness
         for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
@@ -219,20 +883,36 @@ public class GeneticAlgorithm {
             // Skip mutation if this is an elite individual
             if (populationIndex >= this.elitismCount) {   
             	// System.out.println("Mutating population member "+populationIndex);
-                // Loop over individual's genes
-                for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {   
+                int chromosomeLength = individual.getChromosomeLength();
+
+                // Follow the tour's length through the swaps if it is known
+                DistanceSource distances = this.deltaEvaluation ? this.evaluatedDistances : null;
+                double fitness = individual.getFitness();
+                double distance = distances != null && fitness > 0 ? 1 / fitness : -1;
+                boolean mutated = false;
+
+                // Loop over the genes that need mutation
+                for (int geneIndex = this.mutationSampler.first(chromosomeLength); geneIndex < chromosomeLength;
+                        geneIndex = this.mutationSampler.next(geneIndex, chromosomeLength)) {
                 	// System.out.println("\tGene index "+geneIndex);
-                    // Does this gene need mutation?
-                    if (this.mutationRate > Math.random()) {
-                        // Get new gene position
-                        int newGenePos = (int) (Math.random() * individual.getChromosomeLength());
-                        // Get genes to swap
-                        int gene1 = individual.getGene(newGenePos);
-                        int gene2 = individual.getGene(geneIndex);
-                        // Swap genes
-                        individual.setGene(geneIndex, gene1);
-                        individual.setGene(newGenePos, gene2);
+                    // Get new gene position
+                    int newGenePos = this.random.nextInt(chromosomeLength);
+                    if (distance >= 0) {
+                        distance += swapDelta(distances, individual, geneIndex, newGenePos);
                     }
+                    // Get genes to swap
+                    int gene1 = individual.getGene(newGenePos);
+                    int gene2 = individual.getGene(geneIndex);
+                    // Swap genes
+                    individual.setGene(geneIndex, gene1);
+                    individual.setGene(newGenePos, gene2);
+                    mutated = true;
+                }
+
+                if (mutated && this.deltaEvaluation) {
+                    // Either the new fitness, or unknown so that evaluation
+                    // measures the tour
+                    individual.setFitness(distance > 0 ? 1 / distance : -1);
                 }
             }
             
@@ -244,4 +924,212 @@ public class GeneticAlgorithm {
         return newPopulation;
     }
 
+	/**
+	 * Change in a tour's length from swapping the cities at two positions
+	 * 
+	 * Only the edges on either side of the two positions change, so this is
+	 * constant time whatever the length of the tour. Distances must be the
+	 * same in both directions.
+	 * 
+	 * @param distances
+	 * @param tour
+	 *            The individual holding the tour, before the swap
+	 * @param pos1
+	 *            Position of the first city to swap
+	 * @param pos2
+	 *            Position of the second city to swap
+	 * @return The length after the swap minus the length before
+	 */
+	private static double swapDelta(DistanceSource distances, Individual tour, int pos1, int pos2) {
+		int length = tour.getChromosomeLength();
+		if (pos1 == pos2 || length <= 3) {
+			// Swapping two cities of a triangle only reverses it
+			return 0;
+		}
+
+		// Make pos2 follow pos1 if the two are neighbours
+		if (pos1 == pos2 + 1 || (pos1 == 0 && pos2 == length - 1)) {
+			int swap = pos1;
+			pos1 = pos2;
+			pos2 = swap;
+		}
+
+		int city1 = tour.getGene(pos1);
+		int city2 = tour.getGene(pos2);
+		int before1 = tour.getGene(pos1 == 0 ? length - 1 : pos1 - 1);
+		int after1 = tour.getGene(pos1 == length - 1 ? 0 : pos1 + 1);
+		int before2 = tour.getGene(pos2 == 0 ? length - 1 : pos2 - 1);
+		int after2 = tour.getGene(pos2 == length - 1 ? 0 : pos2 + 1);
+
+		if (after1 == city2) {
+			// Neighbours: before1 city1 city2 after2 becomes
+			// before1 city2 city1 after2, and the middle edge stays
+			return distances.getDistance(before1, city2) + distances.getDistance(city1, after2)
+					- distances.getDistance(before1, city1) - distances.getDistance(city2, after2);
+		}
+
+		return distances.getDistance(before1, city2) + distances.getDistance(city2, after1)
+				+ distances.getDistance(before2, city1) + distances.getDistance(city1, after2)
+				- distances.getDistance(before1, city1) - distances.getDistance(city1, after1)
+				- distances.getDistance(before2, city2) - distances.getDistance(city2, after2);
+	}
+
+
+	/**
+	 * Run local search on some of the population, in place
+	 * 
+	 * Meant to go between mutatePopulation and evalPopulation, turning the new
+	 * generation's tours into local optima before they are evaluated. Each
+	 * chosen tour gets 2-opt and Or-opt moves until none of them shortens it
+	 * (see LocalSearch), and its fitness is stored straight away. With
+	 * setParallelism or setEvaluationPool the tours are improved on the
+	 * evaluation pool.
+	 * 
+	 * Does nothing until setLocalSearch picks some individuals.
+	 * 
+	 * @param population
+	 *            The population to improve
+	 * @param cities
+	 *            the cities being referenced
+	 */
+	public void improvePopulation(Population population, City cities[]) {
+		this.improvePopulation(population, this.getDistanceMatrix(cities));
+	}
+
+	/**
+	 * Run local search on some of the population, in place, against any
+	 * source of distances; see improvePopulation(Population, City[])
+	 * 
+	 * @param population
+	 *            The population to improve
+	 * @param distances
+	 *            the distances between the cities being referenced
+	 */
+	public void improvePopulation(Population population, DistanceSource distances) {
+		// Pick the individuals here, so the random draws don't depend on
+		// threads. The elites are in the first slots, where crossover and
+		// mutation put them.
+		if (this.localSearchSlots == null || this.localSearchSlots.length < population.size()) {
+			this.localSearchSlots = new int[population.size()];
+		}
+		int count = 0;
+		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
+			boolean improve;
+			if (populationIndex < this.elitismCount) {
+				improve = this.localSearchElites;
+			} else {
+				improve = this.localSearchRate > 0 && this.localSearchRate > this.random.nextDouble();
+			}
+			if (improve) {
+				this.localSearchSlots[count++] = populationIndex;
+			}
+		}
+		if (count == 0) {
+			return;
+		}
+
+		NeighborLists neighbors = this.getNeighborLists(distances);
+		long deadline = LocalSearch.NO_DEADLINE;
+		if (this.localSearchTimeBudget > 0) {
+			deadline = System.nanoTime() + this.localSearchTimeBudget;
+		}
+
+		if (this.evaluationPool == null) {
+			this.improveRange(population, distances, neighbors, deadline, 0, count, false);
+		} else {
+			this.evaluationPool.invoke(new LocalSearchTask(population, distances, neighbors, deadline, 0, count));
+		}
+	}
+
+	/**
+	 * Get the neighbour lists for the given distances, building them if they
+	 * aren't the ones they were built for
+	 * 
+	 * @param distances
+	 * @return The neighbour lists
+	 */
+	public NeighborLists getNeighborLists(DistanceSource distances) {
+		NeighborLists neighborLists = this.neighborLists;
+		int k = Math.min(this.localSearchNeighbors, distances.getNumCities() - 1);
+		if (neighborLists == null || neighborLists.isFor(distances) == false || neighborLists.getK() != k) {
+			neighborLists = new NeighborLists(distances, this.localSearchNeighbors);
+			this.neighborLists = neighborLists;
+		}
+		return neighborLists;
+	}
+
+	/**
+	 * Run local search on a range of the chosen slots
+	 * 
+	 * @param population
+	 * @param distances
+	 * @param neighbors
+	 * @param deadline
+	 * @param from
+	 *            First index into localSearchSlots
+	 * @param to
+	 *            One past the last index into localSearchSlots
+	 * @param fork
+	 *            Whether to hand the left half to the pool
+	 */
+	private void improveRange(Population population, DistanceSource distances, NeighborLists neighbors, long deadline,
+			int from, int to, boolean fork) {
+		if (to - from == 1 || fork == false) {
+			for (int i = from; i < to; i++) {
+				int populationIndex = this.localSearchSlots[i];
+				Individual individual = population.getIndividual(populationIndex);
+				LocalSearch localSearch = LocalSearch.forCurrentThread();
+				double gain;
+				if (individual.isCompact()) {
+					gain = localSearch.improve(individual.getCompactChromosome(), individual.getChromosomeOffset(),
+							individual.getChromosomeLength(), distances, neighbors, deadline);
+				} else {
+					gain = localSearch.improve(individual.getChromosome(), individual.getChromosomeOffset(),
+							individual.getChromosomeLength(), distances, neighbors, deadline);
+				}
+				if (gain > 0) {
+					population.setFitness(populationIndex, this.calcFitness(individual, distances));
+				}
+			}
+			return;
+		}
+
+		// Each search is long, so split right down to single individuals
+		int middle = (from + to) >>> 1;
+		LocalSearchTask left = new LocalSearchTask(population, distances, neighbors, deadline, from, middle);
+		left.fork();
+		this.improveRange(population, distances, neighbors, deadline, middle, to, true);
+		left.join();
+	}
+
+	/**
+	 * Runs local search on one range of the chosen slots on the evaluation
+	 * pool
+	 */
+	private class LocalSearchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Population population;
+		private final DistanceSource distances;
+		private final NeighborLists neighbors;
+		private final long deadline;
+		private final int from;
+		private final int to;
+
+		LocalSearchTask(Population population, DistanceSource distances, NeighborLists neighbors, long deadline,
+				int from, int to) {
+			this.population = population;
+			this.distances = distances;
+			this.neighbors = neighbors;
+			this.deadline = deadline;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			improveRange(this.population, this.distances, this.neighbors, this.deadline, this.from, this.to, true);
+		}
+	}
+
 }
@@ -8,6 +8,21 @@ public class Individual {
 	private int[] chromosome;
 	private double fitness = -1;
 
+	/**
+	 * The chromosome of a compact individual, one char per gene, in place of
+	 * the int[]; null otherwise. A char holds city indexes up to 65535, so
+	 * tours of up to 65536 cities take half the memory.
+	 */
+	private char[] compactChromosome;
+
+	/**
+	 * An individual in a packed population is a view onto one row of the
+	 * population's gene matrix: its genes are chromosome[chromosomeOffset]
+	 * through chromosome[chromosomeOffset + chromosomeLength - 1].
+	 */
+	private int chromosomeOffset;
+	private int chromosomeLength;
+
 	/**
 	 * Initializes individual with specific chromosome
 	 * 
@@ -16,7 +31,42 @@ public class Individual {
 	 */
 	public Individual(int[] chromosome) {
 		// Create individualchromosome
-		this.chromosome = chromosome;
+		this(chromosome, 0, chromosome.length);
+	}
+
+	/**
+	 * Initializes individual as a view over part of a larger gene array
+	 * 
+	 * @param genes
+	 *            The array holding the chromosome, eg a population's gene
+	 *            matrix
+	 * @param chromosomeOffset
+	 *            The index of the first gene in the array
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 */
+	public Individual(int[] genes, int chromosomeOffset, int chromosomeLength) {
+		this.chromosome = genes;
+		this.chromosomeOffset = chromosomeOffset;
+		this.chromosomeLength = chromosomeLength;
+	}
+
+	/**
+	 * Initializes compact individual as a view over part of a larger gene
+	 * array
+	 * 
+	 * @param genes
+	 *            The array holding the chromosome, eg a compact population's
+	 *            gene matrix
+	 * @param chromosomeOffset
+	 *            The index of the first gene in the array
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 */
+	public Individual(char[] genes, int chromosomeOffset, int chromosomeLength) {
+		this.compactChromosome = genes;
+		this.chromosomeOffset = chromosomeOffset;
+		this.chromosomeLength = chromosomeLength;
 	}
 
 	/**
@@ -41,24 +91,96 @@ public class Individual {
 		}
 		
 		this.chromosome = individual;
+		this.chromosomeLength = chromosomeLength;
 	}
 
 	/**
 	 * Gets individual's chromosome
 	 * 
-	 * @return The individual's chromosome
+	 * For a view into a packed population this is the whole gene matrix; the
+	 * individual's genes start at getChromosomeOffset().
+	 * 
+	 * @return The array holding the individual's chromosome, or null for a
+	 *         compact individual
 	 */
 	public int[] getChromosome() {
 		return this.chromosome;
 	}
 
+	/**
+	 * Gets a compact individual's chromosome
+	 * 
+	 * Like getChromosome, this is the whole gene matrix for a view into a
+	 * packed population.
+	 * 
+	 * @return The char array holding the individual's chromosome, or null if
+	 *         the individual isn't compact
+	 */
+	public char[] getCompactChromosome() {
+		return this.compactChromosome;
+	}
+
+	/**
+	 * Check whether the chromosome is stored one char per gene
+	 * 
+	 * @return true if getCompactChromosome() holds the genes
+	 */
+	public boolean isCompact() {
+		return this.compactChromosome != null;
+	}
+
+	/**
+	 * Copy the chromosome out into an int array
+	 * 
+	 * @param genes
+	 *            Array to copy the genes to
+	 * @param offset
+	 *            Where in the array to put the first gene
+	 */
+	public void copyChromosomeTo(int genes[], int offset) {
+		if (this.compactChromosome == null) {
+			System.arraycopy(this.chromosome, this.chromosomeOffset, genes, offset, this.chromosomeLength);
+			return;
+		}
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			genes[offset + gene] = this.compactChromosome[this.chromosomeOffset + gene];
+		}
+	}
+
+	/**
+	 * Overwrite the chromosome from an int array
+	 * 
+	 * @param genes
+	 *            Array to copy the genes from
+	 * @param offset
+	 *            Where in the array the first gene is
+	 */
+	public void copyChromosomeFrom(int genes[], int offset) {
+		if (this.compactChromosome == null) {
+			System.arraycopy(genes, offset, this.chromosome, this.chromosomeOffset, this.chromosomeLength);
+			return;
+		}
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			this.compactChromosome[this.chromosomeOffset + gene] = (char) genes[offset + gene];
+		}
+	}
+
+	/**
+	 * Gets the index of the individual's first gene in getChromosome()
+	 * 
+	 * @return The chromosome offset
+	 */
+	public int getChromosomeOffset() {
+		return this.chromosomeOffset;
+	}
+
 	/**
 	 * Gets individual's chromosome length
 	 * 
 	 * @return The individual's chromosome length
 	 */
 	public int getChromosomeLength() {
-		return this.chromosome.length;
+		return this.chromosomeLength;
 	}
 
 	/**
@@ -68,7 +190,11 @@ public class Individual {
 	 * @param offset
 	 */
 	public void setGene(int offset, int gene) {
-		this.chromosome[offset] = gene;
+		if (this.compactChromosome != null) {
+			this.compactChromosome[this.chromosomeOffset + offset] = (char) gene;
+			return;
+		}
+		this.chromosome[this.chromosomeOffset + offset] = gene;
 	}
 
 	/**
@@ -78,7 +204,10 @@ public class Individual {
 	 * @return gene
 	 */
 	public int getGene(int offset) {
-		return this.chromosome[offset];
+		if (this.compactChromosome != null) {
+			return this.compactChromosome[this.chromosomeOffset + offset];
+		}
+		return this.chromosome[this.chromosomeOffset + offset];
 	}
 
 	/**
@@ -102,8 +231,8 @@ public class Individual {
 	
 	public String toString() {
 		String output = "";
-		for (int gene = 0; gene < this.chromosome.length; gene++) {
-			output += this.chromosome[gene] + ",";
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			output += this.getGene(gene) + ",";
 		}
 		return output;
 	}
@@ -119,7 +248,16 @@ public class Individual {
 	 * @return
 	 */
 	public boolean containsGene(int gene) {
-		for (int i = 0; i < this.chromosome.length; i++) {
+		int end = this.chromosomeOffset + this.chromosomeLength;
+		if (this.compactChromosome != null) {
+			for (int i = this.chromosomeOffset; i < end; i++) {
+				if (this.compactChromosome[i] == gene) {
+					return true;
+				}
+			}
+			return false;
+		}
+		for (int i = this.chromosomeOffset; i < end; i++) {
 			if (this.chromosome[i] == gene) {
 				return true;
 			}
@@ -0,0 +1,424 @@
+package chapter4;
+
+/**
+ * 2-opt and Or-opt local search on a tour, in place.
+ *
+ * A 2-opt move removes two edges and reconnects the tour the other way, which
+ * reverses the path between them. An Or-opt move takes a run of up to three
+ * consecutive cities out of the tour and puts it back, either way round,
+ * between two other neighbouring cities. Both are tried only towards the
+ * city's nearest neighbours from a NeighborLists, and only while the new edge
+ * is shorter than the one it replaces, since otherwise the move can't gain.
+ *
+ * Cities wait in a queue to be looked at; a city whose neighbourhood has no
+ * improving move drops out (its "don't-look bit" is set) until a move changes
+ * one of its edges and puts it back. The search ends when the queue is empty,
+ * which is a local optimum for both kinds of move, or at the deadline.
+ *
+ * The scratch arrays are sized to the tour and reused from search to search.
+ * One instance must not be used by two threads at once; use
+ * forCurrentThread() to get the calling thread's own.
+ */
+public class LocalSearch {
+
+	/**
+	 * Pass as the deadline to search until a local optimum is reached
+	 */
+	public static final long NO_DEADLINE = Long.MIN_VALUE;
+
+	/**
+	 * Longest run of cities an Or-opt move relocates
+	 */
+	private static final int MAX_SEGMENT = 3;
+
+	/**
+	 * Gains smaller than this are rounding noise; taking them could cycle
+	 */
+	private static final double EPSILON = 1e-9;
+
+	private static final ThreadLocal<LocalSearch> SCRATCH = ThreadLocal.withInitial(LocalSearch::new);
+
+	/**
+	 * The tour being improved, and where it sits in its array
+	 */
+	private int tour[];
+	private int offset;
+	private int length;
+	private DistanceSource distances;
+	private NeighborLists neighbors;
+
+	/**
+	 * position[city] is the city's place in the tour, 0 to length - 1
+	 */
+	private int position[] = new int[0];
+
+	/**
+	 * Ring buffer of cities waiting to be looked at; queued[city] is false
+	 * when its don't-look bit is set
+	 */
+	private int queue[] = new int[0];
+	private boolean queued[] = new boolean[0];
+	private int queueHead;
+	private int queueSize;
+
+	private final int segment[] = new int[MAX_SEGMENT];
+
+	/**
+	 * A compact tour, copied out to ints while it is improved
+	 */
+	private int unpacked[] = new int[0];
+
+	/**
+	 * Get the calling thread's local search
+	 *
+	 * @return This thread's LocalSearch
+	 */
+	public static LocalSearch forCurrentThread() {
+		return SCRATCH.get();
+	}
+
+	/**
+	 * Improve a tour until no 2-opt or Or-opt move towards a near neighbour
+	 * shortens it, or until the deadline
+	 *
+	 * @param tour
+	 *            Array holding the tour's city indexes
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 * @param length
+	 *            Number of cities in the tour
+	 * @param distances
+	 *            The distances between the cities; must be the same in both
+	 *            directions
+	 * @param neighbors
+	 *            Candidate neighbours of each city
+	 * @param deadline
+	 *            System.nanoTime() value to stop at, or NO_DEADLINE
+	 * @return How much shorter the tour got
+	 */
+	public double improve(int tour[], int offset, int length, DistanceSource distances, NeighborLists neighbors,
+			long deadline) {
+		if (length < 5) {
+			// Every tour of four cities or fewer is as good as 2-opt can
+			// make it, up to one reversal
+			return 0;
+		}
+		if (deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0) {
+			return 0;
+		}
+
+		this.tour = tour;
+		this.offset = offset;
+		this.length = length;
+		this.distances = distances;
+		this.neighbors = neighbors;
+		if (this.position.length < length) {
+			this.position = new int[length];
+			this.queue = new int[length];
+			this.queued = new boolean[length];
+		}
+
+		// Every city starts out in the queue, in tour order
+		for (int i = 0; i < length; i++) {
+			int city = tour[offset + i];
+			this.position[city] = i;
+			this.queue[i] = city;
+			this.queued[city] = true;
+		}
+		this.queueHead = 0;
+		this.queueSize = length;
+
+		double gain = 0;
+		int steps = 0;
+		while (this.queueSize > 0) {
+			if (deadline != NO_DEADLINE && (++steps & 15) == 0 && System.nanoTime() - deadline >= 0) {
+				break;
+			}
+
+			int city = this.poll();
+			double moveGain = this.twoOpt(city);
+			if (moveGain == 0) {
+				moveGain = this.orOpt(city);
+			}
+			if (moveGain > 0) {
+				gain += moveGain;
+				this.push(city);
+			}
+		}
+
+		// Leave nothing queued for the next search
+		while (this.queueSize > 0) {
+			this.poll();
+		}
+		this.tour = null;
+		this.distances = null;
+		this.neighbors = null;
+		return gain;
+	}
+
+	/**
+	 * Improve a tour stored one char per city, as in a compact population;
+	 * see improve(int[], ...)
+	 *
+	 * The tour is copied out to an int array, improved there and copied
+	 * back, which costs little next to the search itself.
+	 *
+	 * @return How much shorter the tour got
+	 */
+	public double improve(char tour[], int offset, int length, DistanceSource distances, NeighborLists neighbors,
+			long deadline) {
+		if (this.unpacked.length < length) {
+			this.unpacked = new int[length];
+		}
+		int unpacked[] = this.unpacked;
+		for (int i = 0; i < length; i++) {
+			unpacked[i] = tour[offset + i];
+		}
+		double gain = this.improve(unpacked, 0, length, distances, neighbors, deadline);
+		if (gain > 0) {
+			for (int i = 0; i < length; i++) {
+				tour[offset + i] = (char) unpacked[i];
+			}
+		}
+		return gain;
+	}
+
+	/**
+	 * Try 2-opt moves that give city a near neighbour as its successor or
+	 * predecessor, and make the first one that shortens the tour
+	 *
+	 * @param a
+	 * @return The gain, or 0 if there was no improving move
+	 */
+	private double twoOpt(int a) {
+		int k = this.neighbors.getK();
+		for (int direction = 0; direction < 2; direction++) {
+			boolean forward = direction == 0;
+			int aNext = forward ? this.next(a) : this.previous(a);
+			double removed = this.distances.getDistance(a, aNext);
+
+			for (int rank = 0; rank < k; rank++) {
+				int c = this.neighbors.getNeighbor(a, rank);
+				double added = this.distances.getDistance(a, c);
+				if (added >= removed - EPSILON) {
+					// Neighbours are nearest first, so no later one can gain
+					break;
+				}
+
+				int cNext = forward ? this.next(c) : this.previous(c);
+				if (c == aNext || cNext == a) {
+					continue;
+				}
+
+				double delta = added + this.distances.getDistance(aNext, cNext) - removed
+						- this.distances.getDistance(c, cNext);
+				if (delta < -EPSILON) {
+					// a aNext ... c cNext becomes a c ... aNext cNext
+					if (forward) {
+						this.reverse(this.position[aNext], this.position[c]);
+					} else {
+						this.reverse(this.position[a], this.position[cNext]);
+					}
+					this.push(aNext);
+					this.push(c);
+					this.push(cNext);
+					return -delta;
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Try moving the run of one to MAX_SEGMENT cities starting at city next
+	 * to one of its ends' near neighbours, and make the first move that
+	 * shortens the tour
+	 *
+	 * @param a
+	 * @return The gain, or 0 if there was no improving move
+	 */
+	private double orOpt(int a) {
+		int k = this.neighbors.getK();
+		for (int segmentLength = 1; segmentLength <= MAX_SEGMENT && segmentLength + 3 <= this.length; segmentLength++) {
+			int first = a;
+			int last = this.cityAt(this.position[a] + segmentLength - 1);
+			int before = this.previous(first);
+			int after = this.next(last);
+			double removeGain = this.distances.getDistance(before, first) + this.distances.getDistance(last, after)
+					- this.distances.getDistance(before, after);
+			if (removeGain <= EPSILON) {
+				continue;
+			}
+
+			for (int end = 0; end < 2; end++) {
+				int joined = end == 0 ? first : last;
+				int other = end == 0 ? last : first;
+
+				for (int rank = 0; rank < k; rank++) {
+					int c = this.neighbors.getNeighbor(joined, rank);
+					double added = this.distances.getDistance(joined, c);
+					if (added >= removeGain - EPSILON) {
+						break;
+					}
+					if (this.inSegment(c, first, segmentLength)) {
+						continue;
+					}
+
+					// Put the run between c and its successor, or between
+					// c's predecessor and c, with the joined end next to c
+					for (int side = 0; side < 2; side++) {
+						boolean afterC = side == 0;
+						if (afterC ? c == before : c == after) {
+							// That edge is the one the run was cut from
+							continue;
+						}
+						int d = afterC ? this.next(c) : this.previous(c);
+						double delta = added + this.distances.getDistance(other, d) - this.distances.getDistance(c, d)
+								- removeGain;
+						if (delta < -EPSILON) {
+							int from = afterC ? c : d;
+							int to = afterC ? d : c;
+							// Going from 'from' to 'to', the run must start
+							// with the end next to 'from'
+							boolean reversed = afterC ? joined == last : joined == first;
+							this.moveSegment(first, segmentLength, from, reversed);
+							this.push(before);
+							this.push(after);
+							this.push(first);
+							this.push(last);
+							this.push(from);
+							this.push(to);
+							return -delta;
+						}
+					}
+				}
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Move a run of cities to between 'from' and its successor
+	 *
+	 * The cities between the run and the new place are shifted over by the
+	 * length of the run, going round whichever way is shorter.
+	 *
+	 * @param first
+	 *            First city of the run
+	 * @param segmentLength
+	 *            Number of cities in the run
+	 * @param from
+	 *            The city the run will follow
+	 * @param reversed
+	 *            Whether the run goes in backwards
+	 */
+	private void moveSegment(int first, int segmentLength, int from, boolean reversed) {
+		int start = this.position[first];
+		for (int i = 0; i < segmentLength; i++) {
+			this.segment[reversed ? segmentLength - 1 - i : i] = this.cityAt(start + i);
+		}
+
+		int end = this.wrap(start + segmentLength - 1);
+		int to = this.next(from);
+		int forwardCount = this.wrap(this.position[from] - end);
+		int backwardCount = this.wrap(start - this.position[to]);
+
+		int place;
+		if (forwardCount <= backwardCount) {
+			// Shift the cities after the run, up to 'from', back over it
+			for (int i = 0; i < forwardCount; i++) {
+				this.setCity(start + i, this.cityAt(end + 1 + i));
+			}
+			place = start + forwardCount;
+		} else {
+			// Shift the cities from 'to' up to the run forward over it
+			for (int i = 0; i < backwardCount; i++) {
+				this.setCity(end - i, this.cityAt(start - 1 - i));
+			}
+			place = start - backwardCount;
+		}
+
+		for (int i = 0; i < segmentLength; i++) {
+			this.setCity(place + i, this.segment[i]);
+		}
+	}
+
+	/**
+	 * Reverse the path from one tour position forward to another
+	 *
+	 * Reversing the rest of the tour instead gives the same cycle, so the
+	 * shorter of the two is reversed.
+	 *
+	 * @param from
+	 * @param to
+	 */
+	private void reverse(int from, int to) {
+		int inner = this.wrap(to - from) + 1;
+		if (inner * 2 > this.length) {
+			int newFrom = this.wrap(to + 1);
+			to = this.wrap(from - 1);
+			from = newFrom;
+			inner = this.length - inner;
+		}
+
+		for (int swaps = inner / 2; swaps > 0; swaps--) {
+			int cityFrom = this.cityAt(from);
+			this.setCity(from, this.cityAt(to));
+			this.setCity(to, cityFrom);
+			from = this.wrap(from + 1);
+			to = this.wrap(to - 1);
+		}
+	}
+
+	private boolean inSegment(int city, int first, int segmentLength) {
+		return this.wrap(this.position[city] - this.position[first]) < segmentLength;
+	}
+
+	private int next(int city) {
+		return this.cityAt(this.position[city] + 1);
+	}
+
+	private int previous(int city) {
+		return this.cityAt(this.position[city] - 1);
+	}
+
+	private int cityAt(int position) {
+		return this.tour[this.offset + this.wrap(position)];
+	}
+
+	private void setCity(int position, int city) {
+		position = this.wrap(position);
+		this.tour[this.offset + position] = city;
+		this.position[city] = position;
+	}
+
+	/**
+	 * Bring a position that is at most one lap out back into the tour
+	 */
+	private int wrap(int position) {
+		if (position < 0) {
+			return position + this.length;
+		}
+		if (position >= this.length) {
+			return position - this.length;
+		}
+		return position;
+	}
+
+	private void push(int city) {
+		if (this.queued[city] == false) {
+			this.queued[city] = true;
+			int tail = this.queueHead + this.queueSize;
+			this.queue[tail >= this.length ? tail - this.length : tail] = city;
+			this.queueSize++;
+		}
+	}
+
+	private int poll() {
+		int city = this.queue[this.queueHead];
+		this.queueHead = this.queueHead + 1 == this.length ? 0 : this.queueHead + 1;
+		this.queueSize--;
+		this.queued[city] = false;
+		return city;
+	}
+}
@@ -0,0 +1,107 @@
+package chapter4;
+
+/**
+ * Chooses which genes to mutate without drawing a random number per gene.
+ * 
+ * Mutating every gene independently with probability mutationRate is a
+ * Bernoulli process, so the number of genes passed over between two mutations
+ * follows a geometric distribution. The sampler draws that gap directly and
+ * jumps straight to the next gene to mutate: one random number per mutation
+ * instead of one per gene, with exactly the same per-gene distribution.
+ * 
+ * The gap left over at the end of one chromosome carries into the next one
+ * (the process is memoryless, so this changes nothing), which means a
+ * chromosome without any mutation usually costs no random numbers at all.
+ * Genes that must not mutate, such as those of elite individuals, are simply
+ * never passed to the sampler.
+ * 
+ * Visit the genes to mutate in a chromosome like this:
+ * 
+ * for (int geneIndex = sampler.first(length); geneIndex < length;
+ *         geneIndex = sampler.next(geneIndex, length)) { ... }
+ * 
+ */
+public class MutationSampler {
+	/**
+	 * Gap used when the mutation rate is zero; large enough to never be
+	 * reached, small enough not to overflow when added to a gene index.
+	 */
+	private static final long NEVER = Long.MAX_VALUE / 2;
+
+	private final double mutationRate;
+	private final double logSurvivalRate;
+	private final RandomSource random;
+
+	/**
+	 * Number of genes still to pass over before the next mutation
+	 */
+	private long skip;
+
+	/**
+	 * Initialize sampler
+	 * 
+	 * @param mutationRate
+	 *            The probability that any single gene mutates
+	 * @param random
+	 *            The random source to draw gaps from
+	 */
+	public MutationSampler(double mutationRate, RandomSource random) {
+		this.mutationRate = mutationRate;
+		this.logSurvivalRate = Math.log(1 - mutationRate);
+		this.random = random;
+		this.skip = this.gap();
+	}
+
+	/**
+	 * Start a new chromosome
+	 * 
+	 * @param chromosomeLength
+	 *            The length of the chromosome
+	 * @return The first gene to mutate, or chromosomeLength if none
+	 */
+	public int first(int chromosomeLength) {
+		if (this.skip >= chromosomeLength) {
+			this.skip -= chromosomeLength;
+			return chromosomeLength;
+		}
+		return (int) this.skip;
+	}
+
+	/**
+	 * Find the next gene to mutate after the given one
+	 * 
+	 * @param geneIndex
+	 *            The gene that was just mutated
+	 * @param chromosomeLength
+	 *            The length of the chromosome
+	 * @return The next gene to mutate, or chromosomeLength if none
+	 */
+	public int next(int geneIndex, int chromosomeLength) {
+		long nextGene = geneIndex + 1 + this.gap();
+		if (nextGene >= chromosomeLength) {
+			this.skip = nextGene - chromosomeLength;
+			return chromosomeLength;
+		}
+		return (int) nextGene;
+	}
+
+	/**
+	 * Draw the number of genes that survive before the next mutation
+	 * 
+	 * P(gap = k) = (1 - mutationRate)^k * mutationRate, sampled by inverting
+	 * the geometric distribution's CDF.
+	 * 
+	 * @return gap
+	 */
+	private long gap() {
+		if (this.mutationRate >= 1) {
+			return 0;
+		}
+		if (this.mutationRate <= 0) {
+			return NEVER;
+		}
+		// 1 - nextDouble() lies in (0, 1], so the logarithm is finite
+		double gap = Math.floor(Math.log(1 - this.random.nextDouble()) / this.logSurvivalRate);
+		return gap < NEVER ? (long) gap : NEVER;
+	}
+}
@@ -0,0 +1,103 @@
+package chapter4;
+
+/**
+ * The k nearest cities of every city, nearest first.
+ *
+ * Local search only tries to connect a city to one of its near neighbours;
+ * good tours almost never have an edge to a far away city, so this loses very
+ * little and turns each "find an improving move" from O(n) into O(k). The
+ * lists are kept in one flat array, k entries per city.
+ *
+ * The lists never change once built, so any number of threads can share them.
+ */
+public class NeighborLists {
+
+	private final DistanceSource distances;
+	private final int numCities;
+	private final int k;
+
+	/**
+	 * The neighbours of city c are neighbors[c * k] to neighbors[c * k + k - 1]
+	 */
+	private final int neighbors[];
+
+	/**
+	 * Build the neighbour lists
+	 *
+	 * Cities with coordinates (an EuclideanDistanceSource) are found through
+	 * a CityGrid, in roughly linear time; otherwise every pair of cities is
+	 * measured, which is fine for a few thousand cities. Ties go to the lower
+	 * city index either way.
+	 *
+	 * @param distances
+	 *            The distances between the cities
+	 * @param k
+	 *            Number of neighbours to keep per city; capped at the number
+	 *            of other cities
+	 */
+	public NeighborLists(DistanceSource distances, int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("Neighbour count must be at least 1: " + k);
+		}
+
+		this.distances = distances;
+		this.numCities = distances.getNumCities();
+		this.k = Math.min(k, Math.max(this.numCities - 1, 0));
+		this.neighbors = new int[this.numCities * this.k];
+
+		CityGrid grid = new CityGrid(distances);
+		for (int city = 0; city < this.numCities; city++) {
+			grid.nearest(city, this.k, this.neighbors, city * this.k);
+		}
+	}
+
+	/**
+	 * Check whether these lists were built from the given distances
+	 *
+	 * @param distances
+	 * @return true if distances is the very source the lists were built from
+	 */
+	public boolean isFor(DistanceSource distances) {
+		return this.distances == distances;
+	}
+
+	/**
+	 * Get the number of neighbours per city
+	 *
+	 * @return k
+	 */
+	public int getK() {
+		return this.k;
+	}
+
+	/**
+	 * Get the number of cities
+	 *
+	 * @return numCities
+	 */
+	public int getNumCities() {
+		return this.numCities;
+	}
+
+	/**
+	 * Get a neighbour of a city
+	 *
+	 * @param city
+	 * @param rank
+	 *            0 for the nearest neighbour, up to getK() - 1
+	 * @return The neighbour's city index
+	 */
+	public int getNeighbor(int city, int rank) {
+		return this.neighbors[city * this.k + rank];
+	}
+
+	/**
+	 * Get the flat neighbour array; the neighbours of city c are at
+	 * [c * getK(), c * getK() + getK())
+	 *
+	 * @return neighbors
+	 */
+	public int[] getNeighbors() {
+		return this.neighbors;
+	}
+}
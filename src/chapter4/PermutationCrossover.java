@@ -0,0 +1,360 @@
+package chapter4;
+
+import java.util.Arrays;
+
+/**
+ * Crossover operators for chromosomes that are permutations of 0..n-1, each
+ * running in time linear in the chromosome length.
+ *
+ * The obvious way to build an ordered crossover child asks "is this city in
+ * the child yet?" by scanning the child, and "where does it go?" by scanning
+ * for the first empty slot, which is O(n^2) per child. Here membership is an
+ * array stamped with an epoch number: a city is in the current child if its
+ * stamp equals the current epoch, so starting a new child is just bumping the
+ * epoch rather than clearing the array. Empty slots are found with a cursor
+ * that only ever moves forward.
+ *
+ * The scratch arrays are sized to the chromosome and reused from child to
+ * child. One instance must not be used by two threads at once; use
+ * forCurrentThread() to get the calling thread's own.
+ *
+ * All operators read the parents from [offset, offset + length) of their
+ * arrays and write the child to [childOffset, childOffset + length) of its
+ * array, so they work on packed gene matrices without copying rows out. Each
+ * comes in an int[] and a char[] version, the latter for compact populations;
+ * both give the same child.
+ */
+public class PermutationCrossover {
+
+	private static final ThreadLocal<PermutationCrossover> SCRATCH = ThreadLocal
+			.withInitial(PermutationCrossover::new);
+
+	/**
+	 * geneStamp[city] == epoch when the city is already in the child
+	 */
+	private int geneStamp[] = new int[0];
+
+	/**
+	 * slotStamp[slot] == epoch when the child's slot is already filled
+	 */
+	private int slotStamp[] = new int[0];
+
+	/**
+	 * Position of each city in a parent, for PMX and cycle crossover
+	 */
+	private int position[] = new int[0];
+
+	private int epoch = 0;
+
+	/**
+	 * Get the calling thread's scratch buffers
+	 *
+	 * @return This thread's PermutationCrossover
+	 */
+	public static PermutationCrossover forCurrentThread() {
+		return SCRATCH.get();
+	}
+
+	/**
+	 * Start a new child: size the scratch arrays and move to a fresh epoch
+	 *
+	 * @param length
+	 *            The chromosome length
+	 */
+	private void begin(int length) {
+		if (this.geneStamp.length < length) {
+			this.geneStamp = new int[length];
+			this.slotStamp = new int[length];
+			this.position = new int[length];
+			this.epoch = 0;
+		}
+
+		this.epoch++;
+		if (this.epoch == 0) {
+			// Wrapped around; old stamps could now look current
+			Arrays.fill(this.geneStamp, 0);
+			Arrays.fill(this.slotStamp, 0);
+			this.epoch = 1;
+		}
+	}
+
+	/**
+	 * Ordered crossover
+	 *
+	 * The child takes parent1's genes in [startSubstr, endSubstr) in place.
+	 * Then parent2's genes, read from endSubstr onwards and wrapping around,
+	 * are written to the remaining slots from slot 0 upwards, skipping any
+	 * city the child already has.
+	 *
+	 * @param parent1
+	 * @param parent1Offset
+	 * @param parent2
+	 * @param parent2Offset
+	 * @param child
+	 * @param childOffset
+	 * @param length
+	 *            The chromosome length
+	 * @param startSubstr
+	 *            First position taken from parent1
+	 * @param endSubstr
+	 *            One past the last position taken from parent1
+	 */
+	public void ordered(int parent1[], int parent1Offset, int parent2[], int parent2Offset, int child[],
+			int childOffset, int length, int startSubstr, int endSubstr) {
+		this.begin(length);
+		int geneStamp[] = this.geneStamp;
+		int epoch = this.epoch;
+
+		// Add the sub tour from parent1 to the child
+		for (int i = startSubstr; i < endSubstr; i++) {
+			int gene = parent1[parent1Offset + i];
+			child[childOffset + i] = gene;
+			geneStamp[gene] = epoch;
+		}
+
+		// Add the rest of the cities in parent2's order
+		int fill = 0;
+		int parent2Gene = endSubstr;
+		for (int i = 0; i < length; i++) {
+			if (parent2Gene >= length) {
+				parent2Gene -= length;
+			}
+			int gene = parent2[parent2Offset + parent2Gene];
+			parent2Gene++;
+
+			if (geneStamp[gene] != epoch) {
+				if (fill == startSubstr) {
+					fill = endSubstr;
+				}
+				child[childOffset + fill] = gene;
+				fill++;
+				geneStamp[gene] = epoch;
+			}
+		}
+	}
+
+	/**
+	 * Partially mapped crossover (PMX)
+	 *
+	 * The child takes parent1's genes in [startSubstr, endSubstr) in place.
+	 * Each city of parent2's matching section that didn't make it in follows
+	 * the mapping parent1 -> parent2 out of the section to find its slot, and
+	 * every slot still empty after that takes parent2's gene as is.
+	 *
+	 * @param parent1
+	 * @param parent1Offset
+	 * @param parent2
+	 * @param parent2Offset
+	 * @param child
+	 * @param childOffset
+	 * @param length
+	 *            The chromosome length
+	 * @param startSubstr
+	 *            First position taken from parent1
+	 * @param endSubstr
+	 *            One past the last position taken from parent1
+	 */
+	public void partiallyMapped(int parent1[], int parent1Offset, int parent2[], int parent2Offset, int child[],
+			int childOffset, int length, int startSubstr, int endSubstr) {
+		this.begin(length);
+		int geneStamp[] = this.geneStamp;
+		int slotStamp[] = this.slotStamp;
+		int positionInParent2[] = this.position;
+		int epoch = this.epoch;
+
+		for (int i = 0; i < length; i++) {
+			positionInParent2[parent2[parent2Offset + i]] = i;
+		}
+
+		// Add the section from parent1 to the child
+		for (int i = startSubstr; i < endSubstr; i++) {
+			int gene = parent1[parent1Offset + i];
+			child[childOffset + i] = gene;
+			geneStamp[gene] = epoch;
+			slotStamp[i] = epoch;
+		}
+
+		// Place parent2's section cities that the child is missing
+		for (int i = startSubstr; i < endSubstr; i++) {
+			int gene = parent2[parent2Offset + i];
+			if (geneStamp[gene] == epoch) {
+				continue;
+			}
+
+			int slot = i;
+			while (slot >= startSubstr && slot < endSubstr) {
+				slot = positionInParent2[parent1[parent1Offset + slot]];
+			}
+			child[childOffset + slot] = gene;
+			geneStamp[gene] = epoch;
+			slotStamp[slot] = epoch;
+		}
+
+		// Everything else comes straight from parent2
+		for (int i = 0; i < length; i++) {
+			if (slotStamp[i] != epoch) {
+				child[childOffset + i] = parent2[parent2Offset + i];
+			}
+		}
+	}
+
+	/**
+	 * Cycle crossover
+	 *
+	 * The positions split into cycles: starting from a position, look up
+	 * parent2's city there in parent1, and repeat until back at the start.
+	 * Every position keeps the city one of the parents has there, taking the
+	 * cycles alternately from parent1 and parent2.
+	 *
+	 * @param parent1
+	 * @param parent1Offset
+	 * @param parent2
+	 * @param parent2Offset
+	 * @param child
+	 * @param childOffset
+	 * @param length
+	 *            The chromosome length
+	 */
+	public void cycle(int parent1[], int parent1Offset, int parent2[], int parent2Offset, int child[],
+			int childOffset, int length) {
+		this.begin(length);
+		int slotStamp[] = this.slotStamp;
+		int positionInParent1[] = this.position;
+		int epoch = this.epoch;
+
+		for (int i = 0; i < length; i++) {
+			positionInParent1[parent1[parent1Offset + i]] = i;
+		}
+
+		boolean fromParent1 = true;
+		for (int start = 0; start < length; start++) {
+			if (slotStamp[start] == epoch) {
+				continue;
+			}
+
+			int source[] = fromParent1 ? parent1 : parent2;
+			int sourceOffset = fromParent1 ? parent1Offset : parent2Offset;
+			int slot = start;
+			do {
+				child[childOffset + slot] = source[sourceOffset + slot];
+				slotStamp[slot] = epoch;
+				slot = positionInParent1[parent2[parent2Offset + slot]];
+			} while (slot != start);
+
+			fromParent1 = !fromParent1;
+		}
+	}
+
+	/**
+	 * Ordered crossover on compact chromosomes; see ordered(int[], ...)
+	 */
+	public void ordered(char parent1[], int parent1Offset, char parent2[], int parent2Offset, char child[],
+			int childOffset, int length, int startSubstr, int endSubstr) {
+		this.begin(length);
+		int geneStamp[] = this.geneStamp;
+		int epoch = this.epoch;
+
+		for (int i = startSubstr; i < endSubstr; i++) {
+			char gene = parent1[parent1Offset + i];
+			child[childOffset + i] = gene;
+			geneStamp[gene] = epoch;
+		}
+
+		int fill = 0;
+		int parent2Gene = endSubstr;
+		for (int i = 0; i < length; i++) {
+			if (parent2Gene >= length) {
+				parent2Gene -= length;
+			}
+			char gene = parent2[parent2Offset + parent2Gene];
+			parent2Gene++;
+
+			if (geneStamp[gene] != epoch) {
+				if (fill == startSubstr) {
+					fill = endSubstr;
+				}
+				child[childOffset + fill] = gene;
+				fill++;
+				geneStamp[gene] = epoch;
+			}
+		}
+	}
+
+	/**
+	 * Partially mapped crossover on compact chromosomes; see
+	 * partiallyMapped(int[], ...)
+	 */
+	public void partiallyMapped(char parent1[], int parent1Offset, char parent2[], int parent2Offset, char child[],
+			int childOffset, int length, int startSubstr, int endSubstr) {
+		this.begin(length);
+		int geneStamp[] = this.geneStamp;
+		int slotStamp[] = this.slotStamp;
+		int positionInParent2[] = this.position;
+		int epoch = this.epoch;
+
+		for (int i = 0; i < length; i++) {
+			positionInParent2[parent2[parent2Offset + i]] = i;
+		}
+
+		for (int i = startSubstr; i < endSubstr; i++) {
+			char gene = parent1[parent1Offset + i];
+			child[childOffset + i] = gene;
+			geneStamp[gene] = epoch;
+			slotStamp[i] = epoch;
+		}
+
+		for (int i = startSubstr; i < endSubstr; i++) {
+			char gene = parent2[parent2Offset + i];
+			if (geneStamp[gene] == epoch) {
+				continue;
+			}
+
+			int slot = i;
+			while (slot >= startSubstr && slot < endSubstr) {
+				slot = positionInParent2[parent1[parent1Offset + slot]];
+			}
+			child[childOffset + slot] = gene;
+			geneStamp[gene] = epoch;
+			slotStamp[slot] = epoch;
+		}
+
+		for (int i = 0; i < length; i++) {
+			if (slotStamp[i] != epoch) {
+				child[childOffset + i] = parent2[parent2Offset + i];
+			}
+		}
+	}
+
+	/**
+	 * Cycle crossover on compact chromosomes; see cycle(int[], ...)
+	 */
+	public void cycle(char parent1[], int parent1Offset, char parent2[], int parent2Offset, char child[],
+			int childOffset, int length) {
+		this.begin(length);
+		int slotStamp[] = this.slotStamp;
+		int positionInParent1[] = this.position;
+		int epoch = this.epoch;
+
+		for (int i = 0; i < length; i++) {
+			positionInParent1[parent1[parent1Offset + i]] = i;
+		}
+
+		boolean fromParent1 = true;
+		for (int start = 0; start < length; start++) {
+			if (slotStamp[start] == epoch) {
+				continue;
+			}
+
+			char source[] = fromParent1 ? parent1 : parent2;
+			int sourceOffset = fromParent1 ? parent1Offset : parent2Offset;
+			int slot = start;
+			do {
+				child[childOffset + slot] = source[sourceOffset + slot];
+				slotStamp[slot] = epoch;
+				slot = positionInParent1[parent2[parent2Offset + slot]];
+			} while (slot != start);
+
+			fromParent1 = !fromParent1;
+		}
+	}
+}
@@ -1,10 +1,15 @@
 package chapter4;
 
 /**
- * The main Evaluation class for the TSP. It's pretty simple -- given an
- * Individual (ie, a chromosome) and a list of canonical cities, calculate the
- * total distance required to travel to the cities in the specified order. The
- * result returned by getDistance() is used by GeneticAlgorithm.calcFitness.
+ * A reporting view of a TSP tour. It's pretty simple -- given an Individual
+ * (ie, a chromosome) and a list of canonical cities, line the cities up in the
+ * specified order and calculate the total distance required to travel them.
+ * 
+ * The GA itself doesn't use Route: GeneticAlgorithm.calcFitness measures the
+ * chromosome directly against a DistanceSource, without copying it into
+ * City objects. Route is for when you want the cities of a finished tour in
+ * hand, eg to print or plot them, and its distance matches calcFitness's
+ * exactly.
  * 
  * @author bkanber
  *
@@ -23,15 +28,22 @@ public class Route {
 	 *            The cities referenced
 	 */
 	public Route(Individual individual, City cities[]) {
-		// Get individual's chromosome
-		int chromosome[] = individual.getChromosome();
 		// Create route
 		this.route = new City[cities.length];
-		for (int geneIndex = 0; geneIndex < chromosome.length; geneIndex++) {
-			this.route[geneIndex] = cities[chromosome[geneIndex]];
+		for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
+			this.route[geneIndex] = cities[individual.getGene(geneIndex)];
 		}
 	}
 
+	/**
+	 * Get the cities in the order they are visited
+	 * 
+	 * @return route
+	 */
+	public City[] getCities() {
+		return this.route;
+	}
+
 	/**
 	 * Get route distance
 	 * 
@@ -1,10 +1,15 @@
 package chapter4;
 
+import java.io.IOException;
+
 /**
  * Main, executive class for the Traveling Salesman Problem.
  * 
- * We don't have a real list of cities, so we randomly generate a number of them
- * on a 100x100 map.
+ * Given the path of a TSPLIB file (eg java chapter4.TSP usa13509.tsp), we
+ * solve that instance; otherwise we randomly generate a number of cities on a
+ * 100x100 map. TSPLIB instances can have 100,000 cities and more, so their
+ * distances are worked out from the coordinates as needed rather than stored,
+ * and instances over clusterThreshold cities are split up by ClusterSolver.
  * 
  * The TSP requires that each city is visited once and only once, so we have to
  * be careful when initializing a random Individual and also when applying
@@ -16,41 +21,77 @@ package chapter4;
  */
 public class TSP {
 	public static int maxGenerations = 10000;
+
+	/**
+	 * Instances with more cities than this are solved a cluster at a time,
+	 * by ClusterSolver
+	 */
+	public static int clusterThreshold = 20000;
+
 	public static void main(String[] args) {
 		
-		// Create cities
-		int numCities = 100;
-		City cities[] = new City[numCities];
-		
-		// Loop to create random cities
-		for (int cityIndex = 0; cityIndex < numCities; cityIndex++) {
-			// Generate x,y position
-			int xPos = (int) (100 * Math.random());
-			int yPos = (int) (100 * Math.random());
+		// All random numbers come from this source; give it a seed, eg
+		// new RandomSource(42), to replay the same run
+		RandomSource random = new RandomSource();
+
+		// Distances between every pair of cities; the GA and the progress
+		// report below both measure tours from this
+		DistanceSource distances;
+		if (args.length > 0) {
+			// Read the cities from a TSPLIB file
+			CoordinateDistances coordinates;
+			try {
+				coordinates = TspLibReader.read(args[0]);
+			} catch (IOException e) {
+				System.err.println("Can't read " + args[0] + ": " + e.getMessage());
+				return;
+			}
+
+			if (coordinates.getNumCities() > clusterThreshold) {
+				// Too big for one GA; split it into clusters and solve them
+				// on every core
+				ClusterSolver solver = new ClusterSolver(random);
+				solver.setParallelism(Runtime.getRuntime().availableProcessors());
+				int tour[] = solver.solve(coordinates);
+				System.out.println("Best distance: " + coordinates.tourLength(tour, 0, tour.length));
+				return;
+			}
+			distances = coordinates;
+		} else {
+			// Create cities
+			int numCities = 100;
+			City cities[] = new City[numCities];
 			
-			// Add city
-			cities[cityIndex] = new City(xPos, yPos);
+			// Loop to create random cities
+			for (int cityIndex = 0; cityIndex < numCities; cityIndex++) {
+				// Generate x,y position
+				int xPos = random.nextInt(100);
+				int yPos = random.nextInt(100);
+				
+				// Add city
+				cities[cityIndex] = new City(xPos, yPos);
+			}
+			distances = new DistanceMatrix(cities);
 		}
 
 		// Initial GA
-		GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.001, 0.9, 2, 5);
+		GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.001, 0.9, 2, 5, random);
 
-		// Initialize population
-		Population population = ga.initPopulation(cities.length);
+		// Initialize population with a mix of random, nearest-neighbour and
+		// greedy tours
+		Population population = ga.initPopulation(distances);
 
 		// Evaluate population
-		ga.evalPopulation(population, cities);
+		ga.evalPopulation(population, distances);
 
-		Route startRoute = new Route(population.getFittest(0), cities);
-		System.out.println("Start Distance: " + startRoute.getDistance());
+		System.out.println("Start Distance: " + distances.tourLength(population.getFittest(0)));
 
 		// Keep track of current generation
 		int generation = 1;
 		// Start evolution loop
 		while (ga.isTerminationConditionMet(generation, maxGenerations) == false) {
 			// Print fittest individual from population
-			Route route = new Route(population.getFittest(0), cities);
-			System.out.println("G"+generation+" Best distance: " + route.getDistance());
+			System.out.println("G"+generation+" Best distance: " + distances.tourLength(population.getFittest(0)));
 
 			// Apply crossover
 			population = ga.crossoverPopulation(population);
@@ -59,15 +100,14 @@ public class TSP {
 			population = ga.mutatePopulation(population);
 
 			// Evaluate population
-			ga.evalPopulation(population, cities);
+			ga.evalPopulation(population, distances);
 
 			// Increment the current generation
 			generation++;
 		}
 		
 		System.out.println("Stopped after " + maxGenerations + " generations.");
-		Route route = new Route(population.getFittest(0), cities);
-		System.out.println("Best distance: " + route.getDistance());
+		System.out.println("Best distance: " + distances.tourLength(population.getFittest(0)));
 
 	}
 }
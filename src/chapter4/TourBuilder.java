@@ -0,0 +1,213 @@
+package chapter4;
+
+import java.util.Arrays;
+
+/**
+ * Ways of building a starting tour, written straight into a chromosome array.
+ *
+ * Starting every individual from the same tour leaves the GA to spend its
+ * first generations just spreading the population out. A mix of random tours
+ * for diversity and a few constructed ones for quality gives it a far better
+ * start:
+ *
+ * - a random tour is a uniform shuffle of the cities;
+ * - a nearest-neighbour tour starts at some city and keeps going to the
+ *   nearest city not yet visited, typically 25% longer than the best tour;
+ * - a greedy-edge tour keeps adding the shortest edge that leaves no city with
+ *   three edges and closes no early loop, typically 15-20% longer than the
+ *   best tour.
+ *
+ * Nearest-neighbour and greedy-edge tours search through a CityGrid, so on
+ * cities with coordinates they take little more than linear time.
+ */
+public class TourBuilder {
+
+	private TourBuilder() {
+	}
+
+	/**
+	 * Write a uniformly random tour
+	 *
+	 * @param random
+	 * @param tour
+	 *            Array to write the tour to
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 * @param length
+	 *            Number of cities
+	 */
+	public static void randomTour(RandomSource random, int tour[], int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			tour[offset + i] = i;
+		}
+		// Fisher-Yates shuffle
+		for (int i = length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int city = tour[offset + i];
+			tour[offset + i] = tour[offset + j];
+			tour[offset + j] = city;
+		}
+	}
+
+	/**
+	 * Write a nearest-neighbour tour
+	 *
+	 * @param distances
+	 * @param start
+	 *            The city to start from
+	 * @param tour
+	 *            Array to write the tour to
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 */
+	public static void nearestNeighborTour(DistanceSource distances, int start, int tour[], int offset) {
+		CityGrid unvisited = new CityGrid(distances);
+		int length = distances.getNumCities();
+		int city = start;
+		for (int i = 0; i < length; i++) {
+			tour[offset + i] = city;
+			unvisited.remove(city);
+			city = unvisited.nearest(city);
+		}
+	}
+
+	/**
+	 * Write a greedy-edge tour
+	 *
+	 * The candidate edges are those from each city to its listed neighbours,
+	 * shortest first. Once they are used up the tour is in pieces (paths and
+	 * single cities), which are joined end to end by going from the end of
+	 * each piece to the nearest end of a piece not yet joined.
+	 *
+	 * @param distances
+	 * @param neighbors
+	 *            Candidate neighbours of each city
+	 * @param tour
+	 *            Array to write the tour to
+	 * @param offset
+	 *            Index of the tour's first city in the array
+	 */
+	public static void greedyEdgeTour(DistanceSource distances, NeighborLists neighbors, int tour[], int offset) {
+		int length = distances.getNumCities();
+		if (length < 3) {
+			for (int i = 0; i < length; i++) {
+				tour[offset + i] = i;
+			}
+			return;
+		}
+
+		// Candidate edges, each pair once, sorted by length. The length's
+		// float bits sort the same way as the length, as lengths are never
+		// negative, and the low half of each key holds the edge's index.
+		int k = neighbors.getK();
+		int edgeFrom[] = new int[length * k];
+		int edgeTo[] = new int[length * k];
+		int edgeCount = 0;
+		for (int city = 0; city < length; city++) {
+			for (int rank = 0; rank < k; rank++) {
+				int other = neighbors.getNeighbor(city, rank);
+				if (other < city && isNeighbor(neighbors, other, city)) {
+					// Already added from the other end
+					continue;
+				}
+				edgeFrom[edgeCount] = city;
+				edgeTo[edgeCount] = other;
+				edgeCount++;
+			}
+		}
+		long keys[] = new long[edgeCount];
+		for (int edge = 0; edge < edgeCount; edge++) {
+			float edgeLength = (float) distances.getDistance(edgeFrom[edge], edgeTo[edge]);
+			keys[edge] = (long) Float.floatToIntBits(edgeLength) << 32 | edge;
+		}
+		Arrays.sort(keys);
+
+		// Take each edge that keeps every city at two edges or fewer and
+		// doesn't close a loop
+		int link1[] = new int[length];
+		int link2[] = new int[length];
+		Arrays.fill(link1, -1);
+		Arrays.fill(link2, -1);
+		int piece[] = new int[length];
+		for (int city = 0; city < length; city++) {
+			piece[city] = city;
+		}
+		for (long key : keys) {
+			int edge = (int) key;
+			int from = edgeFrom[edge];
+			int to = edgeTo[edge];
+			if (link2[from] != -1 || link2[to] != -1) {
+				continue;
+			}
+			int fromPiece = findPiece(piece, from);
+			int toPiece = findPiece(piece, to);
+			if (fromPiece == toPiece) {
+				continue;
+			}
+			piece[fromPiece] = toPiece;
+			link(link1, link2, from, to);
+			link(link1, link2, to, from);
+		}
+
+		// Join the pieces, nearest end first
+		int ends[] = new int[length];
+		int endCount = 0;
+		for (int city = 0; city < length; city++) {
+			if (link2[city] == -1) {
+				ends[endCount++] = city;
+			}
+		}
+		CityGrid openEnds = new CityGrid(distances, ends, endCount);
+		int position = 0;
+		int city = ends[0];
+		while (city != -1) {
+			// Walk the piece from this end to the other
+			openEnds.remove(city);
+			int previous = -1;
+			while (true) {
+				tour[offset + position++] = city;
+				int next = link1[city] != previous ? link1[city] : link2[city];
+				if (next == -1 || next == previous) {
+					break;
+				}
+				previous = city;
+				city = next;
+			}
+			openEnds.remove(city);
+			city = openEnds.nearest(city);
+		}
+	}
+
+	private static boolean isNeighbor(NeighborLists neighbors, int city, int other) {
+		for (int rank = 0; rank < neighbors.getK(); rank++) {
+			if (neighbors.getNeighbor(city, rank) == other) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void link(int link1[], int link2[], int from, int to) {
+		if (link1[from] == -1) {
+			link1[from] = to;
+		} else {
+			link2[from] = to;
+		}
+	}
+
+	/**
+	 * Find the piece a city belongs to, flattening the way there
+	 */
+	private static int findPiece(int piece[], int city) {
+		int root = city;
+		while (piece[root] != root) {
+			root = piece[root];
+		}
+		while (piece[city] != root) {
+			int next = piece[city];
+			piece[city] = root;
+			city = next;
+		}
+		return root;
+	}
+}
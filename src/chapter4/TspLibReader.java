@@ -0,0 +1,320 @@
+package chapter4;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the cities of a TSPLIB (.tsp) file.
+ *
+ * TSPLIB is the usual collection of benchmark TSP instances, from a few dozen
+ * to millions of cities, with the best known tour length published for each.
+ * A file is a header of "KEY : VALUE" lines followed by a NODE_COORD_SECTION
+ * of "index x y" lines, eg
+ *
+ * NAME : berlin52
+ * TYPE : TSP
+ * DIMENSION : 52
+ * EDGE_WEIGHT_TYPE : EUC_2D
+ * NODE_COORD_SECTION
+ * 1 565.0 575.0
+ * 2 25.0 185.0
+ * ...
+ *
+ * The reader goes through the file once, through its own byte buffer, and
+ * parses the numbers straight out of the buffer into the float arrays of a
+ * CoordinateDistances; there is no String or City per city. A file of 100,000
+ * cities loads in a few tens of milliseconds.
+ *
+ * Only EUC_2D and CEIL_2D instances are accepted, as those are the ones whose
+ * distances are straight lines between the coordinates. TSPLIB rounds those
+ * distances to integers, and the GA doesn't, so its tour lengths come out a
+ * little different from the published ones.
+ */
+public class TspLibReader {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Powers of ten that a double holds exactly
+	 */
+	private static final double POWERS_OF_TEN[] = new double[23];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private final InputStream in;
+	private final byte buffer[] = new byte[BUFFER_SIZE];
+	private int position;
+	private int limit;
+	private int line = 1;
+
+	/**
+	 * The number being parsed, copied out of the buffer
+	 */
+	private byte token[] = new byte[64];
+	private int tokenLength;
+
+	private TspLibReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Read the cities of a TSPLIB file
+	 *
+	 * @param fileName
+	 *            Path to the .tsp file
+	 * @return Distances over the cities, city i being the file's node i + 1
+	 * @throws IOException
+	 *             If the file can't be read, isn't a 2D Euclidean TSP, or is
+	 *             malformed
+	 */
+	public static CoordinateDistances read(String fileName) throws IOException {
+		try (InputStream in = new FileInputStream(fileName)) {
+			return read(in);
+		}
+	}
+
+	/**
+	 * Read the cities of a TSPLIB file from a stream
+	 *
+	 * The stream is read up to the end of the NODE_COORD_SECTION and not
+	 * closed.
+	 *
+	 * @param in
+	 * @return Distances over the cities, city i being the file's node i + 1
+	 * @throws IOException
+	 *             If the stream can't be read, isn't a 2D Euclidean TSP, or is
+	 *             malformed
+	 */
+	public static CoordinateDistances read(InputStream in) throws IOException {
+		return new TspLibReader(in).readProblem();
+	}
+
+	private CoordinateDistances readProblem() throws IOException {
+		int dimension = -1;
+		String edgeWeightType = null;
+
+		// Header
+		while (true) {
+			String headerLine = this.readLine();
+			if (headerLine == null) {
+				throw this.error("NODE_COORD_SECTION not found");
+			}
+			int colon = headerLine.indexOf(':');
+			String key = (colon < 0 ? headerLine : headerLine.substring(0, colon)).trim().toUpperCase();
+			String value = colon < 0 ? "" : headerLine.substring(colon + 1).trim();
+
+			if (key.equals("NODE_COORD_SECTION")) {
+				break;
+			} else if (key.equals("TYPE")) {
+				if (value.equals("TSP") == false) {
+					throw this.error("Only symmetric TSP files are supported, not " + value);
+				}
+			} else if (key.equals("DIMENSION")) {
+				try {
+					dimension = Integer.parseInt(value);
+				} catch (NumberFormatException e) {
+					throw this.error("Bad DIMENSION: " + value);
+				}
+			} else if (key.equals("EDGE_WEIGHT_TYPE")) {
+				edgeWeightType = value;
+			} else if (key.equals("EOF") || key.endsWith("_SECTION")) {
+				throw this.error("Expected NODE_COORD_SECTION, found " + key);
+			}
+			// NAME, COMMENT, DISPLAY_DATA_TYPE and so on don't matter here
+		}
+
+		if (dimension < 0) {
+			throw this.error("DIMENSION missing from header");
+		}
+		if (edgeWeightType == null
+				|| (edgeWeightType.equals("EUC_2D") == false && edgeWeightType.equals("CEIL_2D") == false)) {
+			throw this.error("Only EUC_2D and CEIL_2D files are supported, not " + edgeWeightType);
+		}
+
+		// Coordinates; a NaN marks a node not seen yet
+		float x[] = new float[dimension];
+		float y[] = new float[dimension];
+		Arrays.fill(x, Float.NaN);
+		for (int i = 0; i < dimension; i++) {
+			double node = this.readNumber();
+			int city = (int) node - 1;
+			if (city != node - 1 || city < 0 || city >= dimension) {
+				throw this.error("Node number out of range: " + node);
+			}
+			if (Float.isNaN(x[city]) == false) {
+				throw this.error("Node " + (city + 1) + " given twice");
+			}
+			x[city] = this.readCoordinate();
+			y[city] = this.readCoordinate();
+		}
+		return new CoordinateDistances(x, y);
+	}
+
+	/**
+	 * Read one header line
+	 *
+	 * @return The line, or null at the end of the stream
+	 */
+	private String readLine() throws IOException {
+		if (this.fill() == false) {
+			return null;
+		}
+		StringBuilder text = new StringBuilder();
+		while (this.fill()) {
+			byte b = this.buffer[this.position++];
+			if (b == '\n') {
+				this.line++;
+				break;
+			}
+			if (b != '\r') {
+				text.append((char) (b & 0xff));
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Read the next number, skipping whitespace and line ends before it
+	 */
+	private double readNumber() throws IOException {
+		// Skip to the number and copy it out
+		while (this.fill() && isSpace(this.buffer[this.position])) {
+			if (this.buffer[this.position] == '\n') {
+				this.line++;
+			}
+			this.position++;
+		}
+		this.tokenLength = 0;
+		while (this.fill() && isSpace(this.buffer[this.position]) == false) {
+			if (this.tokenLength == this.token.length) {
+				this.token = Arrays.copyOf(this.token, this.tokenLength * 2);
+			}
+			this.token[this.tokenLength++] = this.buffer[this.position++];
+		}
+		if (this.tokenLength == 0) {
+			throw this.error("Expected a number, found the end of the file");
+		}
+		return this.parseToken();
+	}
+
+	/**
+	 * Read the next number as a coordinate
+	 *
+	 * Coordinates are stored as floats, so a number beyond the float range
+	 * would become infinite and make every distance from its city infinite
+	 * or NaN; it is rejected instead.
+	 */
+	private float readCoordinate() throws IOException {
+		float coordinate = (float) this.readNumber();
+		if (Float.isFinite(coordinate) == false) {
+			throw this.error("Coordinate out of range: "
+					+ new String(this.token, 0, this.tokenLength, StandardCharsets.ISO_8859_1));
+		}
+		return coordinate;
+	}
+
+	/**
+	 * Parse the token as a decimal number
+	 *
+	 * Up to 18 significant digits with a small enough exponent are read into
+	 * a long and scaled by one exact power of ten, which rounds correctly;
+	 * anything else goes to Double.parseDouble.
+	 */
+	private double parseToken() throws IOException {
+		byte token[] = this.token;
+		int length = this.tokenLength;
+		int i = 0;
+		boolean negative = false;
+		if (token[i] == '-' || token[i] == '+') {
+			negative = token[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean seenPoint = false;
+		boolean exact = true;
+		boolean anyDigit = false;
+		for (; i < length; i++) {
+			byte b = token[i];
+			if (b >= '0' && b <= '9') {
+				anyDigit = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					if (seenPoint) {
+						exponent--;
+					}
+				} else {
+					exact = false;
+				}
+			} else if (b == '.' && seenPoint == false) {
+				seenPoint = true;
+			} else {
+				break;
+			}
+		}
+		if (anyDigit == false) {
+			throw this.notANumber();
+		}
+		if (i < length) {
+			if ((token[i] == 'e' || token[i] == 'E') && i + 1 < length) {
+				// Leave exponents to Double.parseDouble
+				exact = false;
+			} else {
+				throw this.notANumber();
+			}
+		}
+
+		if (exact && mantissa < 1L << 53 && exponent >= -22) {
+			double value = mantissa / POWERS_OF_TEN[-exponent];
+			return negative ? -value : value;
+		}
+		try {
+			return Double.parseDouble(new String(token, 0, length, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			throw this.notANumber();
+		}
+	}
+
+	/**
+	 * Make sure there is at least one byte in the buffer
+	 *
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		if (this.position < this.limit) {
+			return true;
+		}
+		int count = this.in.read(this.buffer, 0, this.buffer.length);
+		while (count == 0) {
+			count = this.in.read(this.buffer, 0, this.buffer.length);
+		}
+		this.position = 0;
+		this.limit = Math.max(count, 0);
+		return count > 0;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private IOException notANumber() {
+		return this.error("Not a number: " + new String(this.token, 0, this.tokenLength, StandardCharsets.ISO_8859_1));
+	}
+
+	private IOException error(String message) {
+		return new IOException("TSPLIB line " + this.line + ": " + message);
+	}
+}
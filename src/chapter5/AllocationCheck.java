@@ -0,0 +1,67 @@
+package chapter5;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Checks that a double-buffered GA allocates nothing once it is running.
+ *
+ * With setDoubleBuffered(true), crossover and mutation write each generation
+ * into the population from the generation before, so once the two
+ * populations, every scratch buffer and the JIT-compiled code are in place, a
+ * whole generation, evaluation included, should not allocate a single byte.
+ * This runs the class scheduler GA on TimetableGA's timetable, with and
+ * without incremental clash tracking, for a long warm-up, then reads the
+ * thread's allocated byte count before and after each crossoverPopulation,
+ * mutatePopulation and evalPopulation round. Any difference fails the check.
+ *
+ * Run it with java chapter5.AllocationCheck; it needs a JVM that counts
+ * allocated bytes per thread, as HotSpot does.
+ */
+public class AllocationCheck {
+	private static final int WARM_UP_GENERATIONS = 2000;
+	private static final int CHECKED_GENERATIONS = 100;
+
+	public static void main(String[] args) {
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if ((threadBean instanceof com.sun.management.ThreadMXBean) == false
+				|| ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported() == false) {
+			throw new IllegalStateException("This JVM doesn't count allocated bytes per thread");
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) threadBean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long threadId = Thread.currentThread().getId();
+
+		// The same timetable and GA as TimetableGA
+		Timetable timetable = TimetableGA.initializeTimetable();
+		RandomSource random = new RandomSource(42);
+
+		for (boolean incrementalClashes : new boolean[] { false, true }) {
+			GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.01, 0.9, 2, 5, random);
+			ga.setDoubleBuffered(true);
+			ga.setIncrementalClashes(incrementalClashes);
+
+			Population population = ga.initPopulation(timetable);
+			ga.evalPopulation(population, timetable);
+
+			long allocated = 0;
+			for (int generation = 0; generation < WARM_UP_GENERATIONS + CHECKED_GENERATIONS; generation++) {
+				long before = threads.getThreadAllocatedBytes(threadId);
+				population = ga.crossoverPopulation(population);
+				population = ga.mutatePopulation(population, timetable);
+				ga.evalPopulation(population, timetable);
+				long after = threads.getThreadAllocatedBytes(threadId);
+				if (generation >= WARM_UP_GENERATIONS) {
+					allocated += after - before;
+				}
+			}
+
+			String run = incrementalClashes ? "Incremental clashes" : "Full clash counts";
+			if (allocated != 0) {
+				throw new IllegalStateException(run + ": the generation loop allocated " + allocated
+						+ " bytes over " + CHECKED_GENERATIONS + " generations");
+			}
+			System.out.println(run + ": 0 bytes allocated over " + CHECKED_GENERATIONS + " generations");
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package chapter5;
+
+import java.util.Arrays;
+
+/**
+ * Occupancy counters for counting timetable clashes in linear time.
+ *
+ * A class clashes over its room if any other class is in the same room at the
+ * same time, and likewise for its professor. Rather than compare every class
+ * with every other, the counter keeps one cell per (room, timeslot) and one
+ * per (professor, timeslot) and counts the classes booked into each. A class
+ * clashes exactly when its cell ends up holding two or more, so booking the
+ * second class into a cell adds two clashes (both of them now clash), and
+ * every class after that adds one.
+ *
+ * Cells are stamped with an epoch number: a cell counts as empty unless its
+ * stamp is the current epoch, so starting a new timetable is just bumping the
+ * epoch, whatever the number of cells.
+ *
+ * One instance must not be used by two threads at once; use
+ * forCurrentThread() to get the calling thread's own.
+ */
+public class ClashCounter {
+
+	private static final ThreadLocal<ClashCounter> SCRATCH = ThreadLocal.withInitial(ClashCounter::new);
+
+	/**
+	 * Classes booked into each (room, timeslot) cell, valid where
+	 * roomStamp[cell] == epoch
+	 */
+	private int roomCount[] = new int[0];
+	private int roomStamp[] = new int[0];
+
+	/**
+	 * Classes booked into each (professor, timeslot) cell, valid where
+	 * professorStamp[cell] == epoch
+	 */
+	private int professorCount[] = new int[0];
+	private int professorStamp[] = new int[0];
+
+	private int epoch = 0;
+
+	/**
+	 * Get the calling thread's counters
+	 *
+	 * @return This thread's ClashCounter
+	 */
+	public static ClashCounter forCurrentThread() {
+		return SCRATCH.get();
+	}
+
+	/**
+	 * Start counting a new timetable with every cell empty
+	 *
+	 * @param roomCells
+	 *            The number of (room, timeslot) cells
+	 * @param professorCells
+	 *            The number of (professor, timeslot) cells
+	 */
+	public void begin(int roomCells, int professorCells) {
+		// New arrays are stamped 0, which is never a current epoch
+		if (this.roomCount.length < roomCells) {
+			this.roomCount = new int[roomCells];
+			this.roomStamp = new int[roomCells];
+		}
+		if (this.professorCount.length < professorCells) {
+			this.professorCount = new int[professorCells];
+			this.professorStamp = new int[professorCells];
+		}
+
+		this.epoch++;
+		if (this.epoch == 0) {
+			// Wrapped around; old stamps could now look current
+			Arrays.fill(this.roomStamp, 0);
+			Arrays.fill(this.professorStamp, 0);
+			this.epoch = 1;
+		}
+	}
+
+	/**
+	 * Book a class into a (room, timeslot) cell
+	 *
+	 * @param cell
+	 *            The cell index
+	 * @return The number of clashes this booking adds
+	 */
+	public int bookRoom(int cell) {
+		return this.book(this.roomCount, this.roomStamp, cell);
+	}
+
+	/**
+	 * Book a class into a (professor, timeslot) cell
+	 *
+	 * @param cell
+	 *            The cell index
+	 * @return The number of clashes this booking adds
+	 */
+	public int bookProfessor(int cell) {
+		return this.book(this.professorCount, this.professorStamp, cell);
+	}
+
+	private int book(int count[], int stamp[], int cell) {
+		if (stamp[cell] != this.epoch) {
+			stamp[cell] = this.epoch;
+			count[cell] = 1;
+			return 0;
+		}
+		count[cell]++;
+		return count[cell] == 2 ? 2 : 1;
+	}
+}
@@ -0,0 +1,201 @@
+package chapter5;
+
+import java.util.Arrays;
+
+/**
+ * The occupancy counts behind one individual's clash total, kept up to date
+ * as its genes change.
+ *
+ * Like ClashCounter, the state counts the classes booked into each (room,
+ * timeslot) and (professor, timeslot) cell; a cell holding c classes
+ * contributes c clashes once c reaches 2, and none before. Unlike
+ * ClashCounter, it belongs to one individual and keeps its counts between
+ * evaluations. When a gene changes, its class is taken out of its old cells
+ * and booked into the new ones, and the total moves by the difference, so a
+ * mutation costs a handful of array updates instead of a recount of the
+ * whole timetable.
+ *
+ * The state costs an int per cell, so it is only created for individuals
+ * whose clashes are tracked; see Individual.trackClashes.
+ */
+public class ClashState {
+
+	private final CompiledTimetable compiled;
+
+	/**
+	 * Classes in each (room, timeslot) and (professor, timeslot) cell
+	 */
+	private final int roomCount[];
+	private final int professorCount[];
+
+	private int clashes;
+
+	/**
+	 * Whether the counts match the chromosome; changes are ignored until a
+	 * recount once they don't
+	 */
+	private boolean valid = false;
+
+	/**
+	 * Create an empty, invalid state for chromosomes of a compiled timetable
+	 *
+	 * @param compiled
+	 */
+	ClashState(CompiledTimetable compiled) {
+		this.compiled = compiled;
+		this.roomCount = new int[compiled.getNumRoomCells()];
+		this.professorCount = new int[compiled.getNumProfessorCells()];
+	}
+
+	/**
+	 * Get the compiled timetable the counts are for
+	 *
+	 * @return The compiled timetable
+	 */
+	public CompiledTimetable getCompiledTimetable() {
+		return this.compiled;
+	}
+
+	/**
+	 * Check whether the counts match the chromosome
+	 *
+	 * @return true if getClashes is current
+	 */
+	public boolean isValid() {
+		return this.valid;
+	}
+
+	/**
+	 * Get the number of clashes in the chromosome
+	 *
+	 * @return numClashes, meaningful only while the state is valid
+	 */
+	public int getClashes() {
+		return this.clashes;
+	}
+
+	/**
+	 * Count a whole chromosome from scratch
+	 *
+	 * @param chromosome
+	 * @param offset
+	 *            Index of the chromosome's first gene in the array
+	 * @return numClashes
+	 */
+	int recount(int chromosome[], int offset) {
+		CompiledTimetable compiled = this.compiled;
+		this.valid = false;
+		Arrays.fill(this.roomCount, 0);
+		Arrays.fill(this.professorCount, 0);
+
+		int clashes = 0;
+		int numClasses = compiled.getNumClasses();
+		for (int classIndex = 0, gene = offset; classIndex < numClasses; classIndex++, gene += 3) {
+			clashes += this.book(classIndex, compiled.timeslotIndex(chromosome[gene]),
+					compiled.roomIndex(chromosome[gene + 1]), compiled.professorIndex(chromosome[gene + 2]));
+		}
+
+		this.clashes = clashes;
+		this.valid = true;
+		return clashes;
+	}
+
+	/**
+	 * Update the counts for a gene that is about to change
+	 *
+	 * Must be called before the new value is written, while the chromosome
+	 * still holds the old one.
+	 *
+	 * @param chromosome
+	 * @param offset
+	 *            Index of the chromosome's first gene in the array
+	 * @param geneIndex
+	 *            The gene's position in the chromosome
+	 * @param gene
+	 *            The gene's new value
+	 */
+	void change(int chromosome[], int offset, int geneIndex, int gene) {
+		if (this.valid == false) {
+			return;
+		}
+
+		CompiledTimetable compiled = this.compiled;
+		int classIndex = geneIndex / 3;
+		int first = offset + classIndex * 3;
+		int timeslot = compiled.timeslotIndex(chromosome[first]);
+		int room = compiled.roomIndex(chromosome[first + 1]);
+		int professor = compiled.professorIndex(chromosome[first + 2]);
+
+		// Look the new value up first, so a bad gene leaves the counts alone
+		int newTimeslot = timeslot, newRoom = room, newProfessor = professor;
+		switch (geneIndex % 3) {
+		case 0:
+			newTimeslot = compiled.timeslotIndex(gene);
+			break;
+		case 1:
+			newRoom = compiled.roomIndex(gene);
+			break;
+		default:
+			newProfessor = compiled.professorIndex(gene);
+			break;
+		}
+
+		this.clashes += this.book(classIndex, newTimeslot, newRoom, newProfessor)
+				- this.unbook(classIndex, timeslot, room, professor);
+	}
+
+	/**
+	 * Make the counts match another state's
+	 *
+	 * @param other
+	 *            A state for the same compiled timetable
+	 */
+	void copyFrom(ClashState other) {
+		System.arraycopy(other.roomCount, 0, this.roomCount, 0, this.roomCount.length);
+		System.arraycopy(other.professorCount, 0, this.professorCount, 0, this.professorCount.length);
+		this.clashes = other.clashes;
+		this.valid = other.valid;
+	}
+
+	/**
+	 * Stop tracking until the next recount, eg because the chromosome was
+	 * written to directly
+	 */
+	void invalidate() {
+		this.valid = false;
+	}
+
+	/**
+	 * Book a class into its cells
+	 *
+	 * @return The clashes this adds
+	 */
+	private int book(int classIndex, int timeslot, int room, int professor) {
+		int numTimeslots = this.compiled.getNumTimeslots();
+		int added = this.compiled.isRoomTooSmall(classIndex, room) ? 1 : 0;
+		added += clashesAdded(++this.roomCount[room * numTimeslots + timeslot]);
+		added += clashesAdded(++this.professorCount[professor * numTimeslots + timeslot]);
+		return added;
+	}
+
+	/**
+	 * Take a class out of its cells
+	 *
+	 * @return The clashes this removes
+	 */
+	private int unbook(int classIndex, int timeslot, int room, int professor) {
+		int numTimeslots = this.compiled.getNumTimeslots();
+		int removed = this.compiled.isRoomTooSmall(classIndex, room) ? 1 : 0;
+		removed += clashesAdded(this.roomCount[room * numTimeslots + timeslot]--);
+		removed += clashesAdded(this.professorCount[professor * numTimeslots + timeslot]--);
+		return removed;
+	}
+
+	/**
+	 * The clashes that come with the count'th class in a cell: the second
+	 * class makes both of them clash, and every class after that adds one
+	 */
+	private static int clashesAdded(int count) {
+		return count == 1 ? 0 : count == 2 ? 2 : 1;
+	}
+}
@@ -0,0 +1,437 @@
+package chapter5;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A frozen, array-based copy of a Timetable's fixed information, for
+ * evaluating chromosomes.
+ *
+ * Timetable keeps its rooms, professors, modules, groups and timeslots in
+ * HashMaps keyed by ID, which is convenient while the timetable is being set
+ * up but slow to evaluate against: every lookup boxes the key and hashes it.
+ * Timetable.compile() renumbers each kind of entity 0..n-1 (its index) and
+ * keeps what evaluation needs in int arrays: room capacities and group sizes
+ * by index, and the group and module of every class in chromosome order.
+ *
+ * Chromosomes still hold the original IDs. Each ID is turned into its index
+ * through a table covering the range of IDs of its kind, or, if the IDs are
+ * too sparse for such a table, by a binary search, so any IDs the Timetable
+ * accepts will do. Groups may name modules, and modules professors, that were
+ * never added to the Timetable; clashes only compare their IDs, so those IDs
+ * get indexes of their own too.
+ *
+ * Nothing in a compiled timetable changes after it is built, so any number of
+ * threads can share one. Changing the Timetable afterwards doesn't change it;
+ * compile again.
+ */
+public final class CompiledTimetable {
+
+	/**
+	 * Maps the IDs of one kind of entity to their indexes
+	 *
+	 * IDs that are dense enough are looked up in a table covering their
+	 * range; sparse ones, which would make that table far bigger than the
+	 * number of entities, are binary searched instead.
+	 */
+	private static final class IdIndex {
+		private final String kind;
+		private final int ids[];
+
+		/**
+		 * indexes[id - base] is the index of the entity with that ID, or -1;
+		 * null when the IDs are sparse
+		 */
+		private final int base;
+		private final int indexes[];
+
+		/**
+		 * The IDs in ascending order and the index of each, for sparse IDs
+		 */
+		private final int sortedIds[];
+		private final int sortedIndexes[];
+
+		IdIndex(String kind, int ids[]) {
+			int base = Integer.MAX_VALUE;
+			int max = Integer.MIN_VALUE;
+			for (int id : ids) {
+				base = Math.min(base, id);
+				max = Math.max(max, id);
+			}
+			long span = ids.length == 0 ? 0 : (long) max - base + 1;
+
+			this.kind = kind;
+			this.ids = ids;
+			this.base = base;
+			if (span <= 4L * ids.length + 1024) {
+				int indexes[] = new int[(int) span];
+				Arrays.fill(indexes, -1);
+				for (int index = 0; index < ids.length; index++) {
+					indexes[ids[index] - base] = index;
+				}
+				this.indexes = indexes;
+				this.sortedIds = null;
+				this.sortedIndexes = null;
+			} else {
+				// Sort (ID, index) pairs by ID
+				long pairs[] = new long[ids.length];
+				for (int index = 0; index < ids.length; index++) {
+					pairs[index] = ((long) ids[index] << 32) | index;
+				}
+				Arrays.sort(pairs);
+				int sortedIds[] = new int[ids.length];
+				int sortedIndexes[] = new int[ids.length];
+				for (int i = 0; i < pairs.length; i++) {
+					sortedIds[i] = (int) (pairs[i] >> 32);
+					sortedIndexes[i] = (int) pairs[i];
+				}
+				this.indexes = null;
+				this.sortedIds = sortedIds;
+				this.sortedIndexes = sortedIndexes;
+			}
+		}
+
+		int size() {
+			return this.ids.length;
+		}
+
+		int idOf(int index) {
+			return this.ids[index];
+		}
+
+		int indexOf(int id) {
+			int index;
+			if (this.indexes != null) {
+				long slot = (long) id - this.base;
+				index = slot >= 0 && slot < this.indexes.length ? this.indexes[(int) slot] : -1;
+			} else {
+				int position = Arrays.binarySearch(this.sortedIds, id);
+				index = position >= 0 ? this.sortedIndexes[position] : -1;
+			}
+			if (index < 0) {
+				throw new IllegalArgumentException("No " + this.kind + " with ID " + id);
+			}
+			return index;
+		}
+	}
+
+	private final IdIndex rooms;
+	private final IdIndex timeslots;
+	private final IdIndex professors;
+	private final IdIndex modules;
+	private final IdIndex groups;
+
+	/**
+	 * By room index
+	 */
+	private final int roomCapacities[];
+
+	/**
+	 * By group index
+	 */
+	private final int groupSizes[];
+
+	/**
+	 * The group and module index of each class, in chromosome order
+	 */
+	private final int classGroups[];
+	private final int classModules[];
+
+	/**
+	 * The IDs of the professors who can teach each module, by module index;
+	 * null for modules that were never added
+	 */
+	private final int moduleProfessorIds[][];
+
+	/**
+	 * Freeze a timetable
+	 *
+	 * @param timetable
+	 *            The timetable, with all its rooms, professors, modules,
+	 *            groups and timeslots added
+	 */
+	CompiledTimetable(Timetable timetable) {
+		// Rooms
+		Map<Integer, Room> roomMap = timetable.getRooms();
+		int roomIds[] = new int[roomMap.size()];
+		int roomCapacities[] = new int[roomMap.size()];
+		int roomIndex = 0;
+		for (Room room : roomMap.values()) {
+			roomIds[roomIndex] = room.getRoomId();
+			roomCapacities[roomIndex] = room.getRoomCapacity();
+			roomIndex++;
+		}
+		this.rooms = new IdIndex("room", roomIds);
+		this.roomCapacities = roomCapacities;
+
+		this.timeslots = new IdIndex("timeslot", toIds(timetable.getTimeslots().keySet()));
+
+		// Modules, after them any that only a group names
+		Group groupArray[] = timetable.getGroupsAsArray();
+		Set<Integer> moduleIds = new LinkedHashSet<Integer>(timetable.getModules().keySet());
+		for (Group group : groupArray) {
+			for (int moduleId : group.getModuleIds()) {
+				moduleIds.add(moduleId);
+			}
+		}
+		this.modules = new IdIndex("module", toIds(moduleIds));
+
+		// Professors, after them any that only a module names
+		Set<Integer> professorIds = new LinkedHashSet<Integer>(timetable.getProfessors().keySet());
+		int moduleProfessorIds[][] = new int[this.modules.size()][];
+		for (int moduleIndex = 0; moduleIndex < moduleProfessorIds.length; moduleIndex++) {
+			Module module = timetable.getModule(this.modules.idOf(moduleIndex));
+			if (module != null) {
+				moduleProfessorIds[moduleIndex] = module.getProfessorIds().clone();
+				for (int professorId : moduleProfessorIds[moduleIndex]) {
+					professorIds.add(professorId);
+				}
+			}
+		}
+		this.professors = new IdIndex("professor", toIds(professorIds));
+		this.moduleProfessorIds = moduleProfessorIds;
+
+		// Groups, and the classes of each group
+		int groupIds[] = new int[groupArray.length];
+		int groupSizes[] = new int[groupArray.length];
+		int numClasses = 0;
+		for (int groupIndex = 0; groupIndex < groupArray.length; groupIndex++) {
+			groupIds[groupIndex] = groupArray[groupIndex].getGroupId();
+			groupSizes[groupIndex] = groupArray[groupIndex].getGroupSize();
+			numClasses += groupArray[groupIndex].getModuleIds().length;
+		}
+		this.groups = new IdIndex("group", groupIds);
+		this.groupSizes = groupSizes;
+
+		int classGroups[] = new int[numClasses];
+		int classModules[] = new int[numClasses];
+		int classIndex = 0;
+		for (int groupIndex = 0; groupIndex < groupArray.length; groupIndex++) {
+			for (int moduleId : groupArray[groupIndex].getModuleIds()) {
+				classGroups[classIndex] = groupIndex;
+				classModules[classIndex] = this.modules.indexOf(moduleId);
+				classIndex++;
+			}
+		}
+		this.classGroups = classGroups;
+		this.classModules = classModules;
+
+		if ((long) Math.max(this.rooms.size(), this.professors.size()) * this.timeslots.size() > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Too many rooms, professors and timeslots to count clashes");
+		}
+	}
+
+	private static int[] toIds(Collection<Integer> keys) {
+		int ids[] = new int[keys.size()];
+		int index = 0;
+		for (int id : keys) {
+			ids[index++] = id;
+		}
+		return ids;
+	}
+
+	/**
+	 * Get the number of classes, which is a third of the chromosome length
+	 *
+	 * @return numClasses
+	 */
+	public int getNumClasses() {
+		return this.classGroups.length;
+	}
+
+	/**
+	 * Get the ID of the group a class is for
+	 *
+	 * @param classIndex
+	 *            The class's position in the chromosome, counting in triplets
+	 * @return groupId
+	 */
+	public int getClassGroupId(int classIndex) {
+		return this.groups.idOf(this.classGroups[classIndex]);
+	}
+
+	/**
+	 * Get the ID of the module a class teaches
+	 *
+	 * @param classIndex
+	 *            The class's position in the chromosome, counting in triplets
+	 * @return moduleId
+	 */
+	public int getClassModuleId(int classIndex) {
+		return this.modules.idOf(this.classModules[classIndex]);
+	}
+
+	/**
+	 * Get the index of a timeslot, room or professor named by a gene
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If there is no such timeslot, room or professor
+	 */
+	int timeslotIndex(int timeslotId) {
+		return this.timeslots.indexOf(timeslotId);
+	}
+
+	int roomIndex(int roomId) {
+		return this.rooms.indexOf(roomId);
+	}
+
+	int professorIndex(int professorId) {
+		return this.professors.indexOf(professorId);
+	}
+
+	/**
+	 * Get the number of clash counter cells: one per (room, timeslot), and
+	 * one per (professor, timeslot)
+	 */
+	int getNumRoomCells() {
+		return this.rooms.size() * this.timeslots.size();
+	}
+
+	int getNumProfessorCells() {
+		return this.professors.size() * this.timeslots.size();
+	}
+
+	int getNumTimeslots() {
+		return this.timeslots.size();
+	}
+
+	/**
+	 * Check whether a room is too small for a class's group
+	 * 
+	 * @param classIndex
+	 * @param room
+	 *            The room's index
+	 */
+	boolean isRoomTooSmall(int classIndex, int room) {
+		return this.roomCapacities[room] < this.groupSizes[this.classGroups[classIndex]];
+	}
+
+	/**
+	 * Draw a random value for one gene
+	 *
+	 * Each gene has its own domain: a class's timeslot gene can be any
+	 * timeslot, its room gene any room, and its professor gene any professor
+	 * who teaches the class's module. The domains are arrays built when the
+	 * timetable is compiled, so a gene can be drawn on its own, in constant
+	 * time and without allocating.
+	 *
+	 * The domains are in the order of the Timetable's maps, so drawing every
+	 * gene of a chromosome in turn takes the same random numbers and gives
+	 * the same chromosome as the original Individual(Timetable) did.
+	 *
+	 * @param geneIndex
+	 *            The gene's position in the chromosome
+	 * @param random
+	 *            The random source to draw from
+	 * @return The ID of a random timeslot, room or professor for the gene
+	 * @throws IllegalStateException
+	 *             If the gene is a professor gene and the class's module was
+	 *             never added, so there are no professors to draw from
+	 */
+	public int randomGene(int geneIndex, RandomSource random) {
+		switch (geneIndex % 3) {
+		case 0:
+			return this.timeslots.idOf(random.nextInt(this.timeslots.size()));
+		case 1:
+			return this.rooms.idOf(random.nextInt(this.rooms.size()));
+		default:
+			int professorIds[] = this.moduleProfessorIds[this.classModules[geneIndex / 3]];
+			if (professorIds == null) {
+				throw new IllegalStateException("Module " + this.getClassModuleId(geneIndex / 3)
+						+ " was never added, so it has no professors");
+			}
+			return professorIds[random.nextInt(professorIds.length)];
+		}
+	}
+
+	/**
+	 * Calculate the number of clashes in a chromosome
+	 *
+	 * Counts the same clashes as Timetable.calcClashes: one for each class in
+	 * a room too small for its group, one for each class sharing its room and
+	 * timeslot with another, and one for each class sharing its professor and
+	 * timeslot with another. Each class is booked into the calling thread's
+	 * ClashCounter, whose cells are numbered room index * timeslots +
+	 * timeslot index, and likewise for professors. Nothing is allocated.
+	 *
+	 * @param chromosome
+	 *            Array holding the chromosome's (timeslot, room, professor) ID
+	 *            triplets
+	 * @param offset
+	 *            Index of the chromosome's first gene in the array
+	 * @return numClashes
+	 * @throws IllegalArgumentException
+	 *             If a gene names a timeslot, room or professor that doesn't
+	 *             exist
+	 */
+	public int calcClashes(int chromosome[], int offset) {
+		int roomCapacities[] = this.roomCapacities;
+		int groupSizes[] = this.groupSizes;
+		int classGroups[] = this.classGroups;
+		int numTimeslots = this.timeslots.size();
+
+		ClashCounter counter = ClashCounter.forCurrentThread();
+		counter.begin(this.getNumRoomCells(), this.getNumProfessorCells());
+		int clashes = 0;
+
+		int gene = offset;
+		for (int classIndex = 0; classIndex < classGroups.length; classIndex++) {
+			int timeslot = this.timeslots.indexOf(chromosome[gene]);
+			int room = this.rooms.indexOf(chromosome[gene + 1]);
+			int professor = this.professors.indexOf(chromosome[gene + 2]);
+			gene += 3;
+
+			// Check room capacity
+			if (roomCapacities[room] < groupSizes[classGroups[classIndex]]) {
+				clashes++;
+			}
+
+			// Check if room is taken
+			clashes += counter.bookRoom(room * numTimeslots + timeslot);
+
+			// Check if professor is available
+			clashes += counter.bookProfessor(professor * numTimeslots + timeslot);
+		}
+
+		return clashes;
+	}
+
+	/**
+	 * Calculate the number of clashes between classes made by
+	 * Timetable.createClasses
+	 *
+	 * Same as calcClashes(int[], int), reading the IDs from the classes
+	 *
+	 * @param classes
+	 * @return numClashes
+	 */
+	public int calcClashes(Class classes[]) {
+		int numTimeslots = this.timeslots.size();
+
+		ClashCounter counter = ClashCounter.forCurrentThread();
+		counter.begin(this.getNumRoomCells(), this.getNumProfessorCells());
+		int clashes = 0;
+
+		for (Class classA : classes) {
+			int timeslot = this.timeslots.indexOf(classA.getTimeslotId());
+			int room = this.rooms.indexOf(classA.getRoomId());
+			int professor = this.professors.indexOf(classA.getProfessorId());
+
+			// Check room capacity
+			if (this.roomCapacities[room] < this.groupSizes[this.groups.indexOf(classA.getGroupId())]) {
+				clashes++;
+			}
+
+			// Check if room is taken
+			clashes += counter.bookRoom(room * numTimeslots + timeslot);
+
+			// Check if professor is available
+			clashes += counter.bookProfessor(professor * numTimeslots + timeslot);
+		}
+
+		return clashes;
+	}
+}
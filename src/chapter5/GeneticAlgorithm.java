@@ -1,5 +1,7 @@
 package chapter5;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class GeneticAlgorithm {
 
@@ -9,14 +11,214 @@ public class GeneticAlgorithm {
 	private int elitismCount;
 	protected int tournamentSize;
 
+	/**
+	 * Slot offsets that tournaments draw their contestants from; any order
+	 * will do, so it is only ever permuted, never reset
+	 */
+	private int tournamentOrder[];
+
+	/**
+	 * Picks the genes to mutate by skipping ahead instead of rolling the dice
+	 * for every gene
+	 */
+	private MutationSampler mutationSampler;
+
+	/**
+	 * All random decisions draw from this source
+	 */
+	private RandomSource random;
+
+	/**
+	 * Pool that evaluates the population in parallel, or null to evaluate on
+	 * the calling thread
+	 */
+	private ForkJoinPool evaluationPool;
+
+	/**
+	 * The pool setParallelism created, if it is the evaluation pool; it is
+	 * shut down once it is replaced. Pools given to setEvaluationPool belong
+	 * to the caller
+	 */
+	private ForkJoinPool ownedPool;
+
+	/**
+	 * Evaluation splits the population in halves until a piece holds at most
+	 * this many individuals
+	 */
+	private int evaluationChunkSize = 32;
+
+	/**
+	 * Whether initPopulation stores all chromosomes in one gene matrix; the
+	 * operators keep whichever storage the population they are given uses
+	 */
+	private boolean packedPopulations = false;
+
+	/**
+	 * Whether crossover and mutation write the next generation into the
+	 * population from the generation before, instead of a new one
+	 */
+	private boolean doubleBuffered = false;
+
+	/**
+	 * The population the next double-buffered operator writes into
+	 */
+	private Population spare;
+
+	/**
+	 * Whether individuals keep their occupancy counts between evaluations
+	 */
+	private boolean incrementalClashes = false;
+
 	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
 			int tournamentSize) {
+		this(populationSize, mutationRate, crossoverRate, elitismCount, tournamentSize, new RandomSource());
+	}
+
+	/**
+	 * Create a genetic algorithm that draws all of its random numbers from the
+	 * given source. Pass a RandomSource created with a fixed seed to replay a
+	 * run exactly.
+	 * 
+	 * @param random
+	 *            The random source
+	 */
+	public GeneticAlgorithm(int populationSize, double mutationRate, double crossoverRate, int elitismCount,
+			int tournamentSize, RandomSource random) {
 
 		this.populationSize = populationSize;
 		this.mutationRate = mutationRate;
 		this.crossoverRate = crossoverRate;
 		this.elitismCount = elitismCount;
 		this.tournamentSize = tournamentSize;
+		this.random = random;
+		this.mutationSampler = new MutationSampler(mutationRate, random);
+	}
+
+	/**
+	 * Evaluate the population on the given number of threads
+	 * 
+	 * The GA creates the pool itself, and shuts it down when a later
+	 * setParallelism or setEvaluationPool call replaces it.
+	 * 
+	 * @param parallelism
+	 *            The number of worker threads; 1 evaluates on the calling
+	 *            thread
+	 */
+	public void setParallelism(int parallelism) {
+		ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		this.setEvaluationPool(pool);
+		this.ownedPool = pool;
+	}
+
+	/**
+	 * Evaluate the population on the given pool, eg ForkJoinPool.commonPool()
+	 * 
+	 * The pool stays the caller's to shut down; the GA never shuts it down.
+	 * 
+	 * @param evaluationPool
+	 *            The pool to evaluate on, or null to evaluate on the calling
+	 *            thread
+	 */
+	public void setEvaluationPool(ForkJoinPool evaluationPool) {
+		if (this.ownedPool != null) {
+			this.ownedPool.shutdown();
+			this.ownedPool = null;
+		}
+		this.evaluationPool = evaluationPool;
+	}
+
+	/**
+	 * Set the largest number of individuals a single evaluation task handles
+	 * 
+	 * The population fitness is summed in the same order for a given chunk
+	 * size, so changing it can change the last bits of the total.
+	 * 
+	 * @param evaluationChunkSize
+	 *            The largest piece of the population evaluated by one task
+	 */
+	public void setEvaluationChunkSize(int evaluationChunkSize) {
+		if (evaluationChunkSize < 1) {
+			throw new IllegalArgumentException("Chunk size must be at least 1: " + evaluationChunkSize);
+		}
+		this.evaluationChunkSize = evaluationChunkSize;
+	}
+
+	/**
+	 * Choose the storage of the populations this algorithm creates
+	 * 
+	 * @param packedPopulations
+	 *            true to store every chromosome in one gene matrix per
+	 *            generation, false to give each individual its own array
+	 */
+	public void setPackedPopulations(boolean packedPopulations) {
+		this.packedPopulations = packedPopulations;
+	}
+
+	/**
+	 * Recycle populations instead of creating one per operator
+	 * 
+	 * Crossover and mutation then alternate between two packed populations:
+	 * each writes the next generation into the population it was handed the
+	 * time before, so once a generation is running no populations or
+	 * chromosomes are allocated. A population passed to crossoverPopulation or
+	 * mutatePopulation must therefore not be used after the following
+	 * operator call. Double buffering works on the gene matrix, so it also
+	 * turns on packed populations.
+	 * 
+	 * @param doubleBuffered
+	 *            true to recycle populations
+	 */
+	public void setDoubleBuffered(boolean doubleBuffered) {
+		this.doubleBuffered = doubleBuffered;
+		this.spare = null;
+		if (doubleBuffered) {
+			this.packedPopulations = true;
+		}
+	}
+
+	/**
+	 * Keep each individual's clash count up to date as its genes change
+	 * 
+	 * calcFitness then tracks the clashes of every individual it evaluates
+	 * (see Individual.trackClashes), and an individual that has only been
+	 * mutated since is evaluated in constant time instead of by a recount.
+	 * Crossover children are still recounted, as most of their genes are
+	 * new. The counts take an int per (room, timeslot) and per (professor,
+	 * timeslot) for each individual; with double buffering they live in the
+	 * rows of the two populations and are never reallocated.
+	 * 
+	 * @param incrementalClashes
+	 *            true to track clashes
+	 */
+	public void setIncrementalClashes(boolean incrementalClashes) {
+		this.incrementalClashes = incrementalClashes;
+	}
+
+	/**
+	 * Get an empty population to write the generation after the given one
+	 * into
+	 * 
+	 * When double buffered, this is the population handed to the previous
+	 * operator, and the given population takes its place as the spare.
+	 * Otherwise it is a blank copy of the given population.
+	 * 
+	 * @param population
+	 *            The current generation
+	 * @return An empty population of the same size and storage
+	 */
+	private Population nextPopulation(Population population) {
+		if (this.doubleBuffered == false || population.isPacked() == false) {
+			return population.blankCopy();
+		}
+
+		Population next = this.spare;
+		if (next == null || next == population || next.hasSameShape(population) == false) {
+			next = population.blankCopy();
+		} else {
+			next.clear();
+		}
+		this.spare = population;
+		return next;
 	}
 
 	/**
@@ -27,8 +229,18 @@ public class GeneticAlgorithm {
 	 * @return population The initial population generated
 	 */
 	public Population initPopulation(Timetable timetable) {
+		if (this.packedPopulations) {
+			// One gene matrix, filled row by row
+			int chromosomeLength = timetable.getNumClasses() * 3;
+			Population population = new Population(new int[this.populationSize * chromosomeLength], chromosomeLength);
+			for (Individual individual : population.getIndividuals()) {
+				individual.randomize(timetable, this.random);
+			}
+			return population;
+		}
+
 		// Initialize population
-		Population population = new Population(this.populationSize, timetable);
+		Population population = new Population(this.populationSize, timetable, this.random);
 		return population;
 	}
 
@@ -64,12 +276,21 @@ public class GeneticAlgorithm {
 	 */
 	public double calcFitness(Individual individual, Timetable timetable) {
 
-		// Create new timetable object to use -- cloned from an existing timetable
-		Timetable threadTimetable = new Timetable(timetable);
-		threadTimetable.createClasses(individual);
+		// Count clashes straight from the chromosome; nothing is created and
+		// the timetable is only read, so threads can share it
+		int clashes;
+		if (this.incrementalClashes) {
+			// Use the tracked count if setGene has kept it up to date
+			CompiledTimetable compiled = timetable.compile();
+			clashes = individual.getTrackedClashes(compiled);
+			if (clashes < 0) {
+				clashes = individual.trackClashes(compiled);
+			}
+		} else {
+			clashes = timetable.calcClashes(individual);
+		}
 
 		// Calculate fitness
-		int clashes = threadTimetable.calcClashes();
 		double fitness = 1 / (double) (clashes + 1);
 
 		individual.setFitness(fitness);
@@ -80,19 +301,85 @@ public class GeneticAlgorithm {
 	/**
 	 * Evaluate population
 	 * 
+	 * After setParallelism or setEvaluationPool the individuals are evaluated
+	 * on a fork/join pool, all reading the same timetable (see calcFitness);
+	 * otherwise they are evaluated on this thread.
+	 * 
 	 * @param population
 	 * @param timetable
 	 */
 	public void evalPopulation(Population population, Timetable timetable) {
-		double populationFitness = 0;
+		double populationFitness;
+		if (this.evaluationPool == null) {
+			populationFitness = this.evalRange(population, timetable, 0, population.size(), false);
+		} else {
+			populationFitness = this.evaluationPool.invoke(new EvaluationTask(population, timetable, 0, population.size()));
+		}
+		population.setPopulationFitness(populationFitness);
+	}
 
-		// Loop over population evaluating individuals and summing population
-		// fitness
-		for (Individual individual : population.getIndividuals()) {
-			populationFitness += this.calcFitness(individual, timetable);
+	/**
+	 * Evaluate a range of the population and sum its fitness
+	 * 
+	 * Ranges longer than the chunk size are split in half and the halves are
+	 * added left to right, so the sum is the same whether the halves ran on
+	 * one thread or many. Each call to calcFitness only writes to its own
+	 * individual and slot, so the pieces never share mutable state.
+	 * 
+	 * @param population
+	 * @param timetable
+	 *            passed on to calcFitness
+	 * @param from
+	 *            First offset to evaluate
+	 * @param to
+	 *            One past the last offset to evaluate
+	 * @param fork
+	 *            Whether to hand the left half to the pool
+	 * @return The summed fitness of the range
+	 */
+	private double evalRange(Population population, Timetable timetable, int from, int to, boolean fork) {
+		if (to - from <= this.evaluationChunkSize) {
+			double populationFitness = 0;
+			for (int populationIndex = from; populationIndex < to; populationIndex++) {
+				double fitness = this.calcFitness(population.getIndividual(populationIndex), timetable);
+				population.setFitness(populationIndex, fitness);
+				populationFitness += fitness;
+			}
+			return populationFitness;
 		}
 
-		population.setPopulationFitness(populationFitness);
+		int middle = (from + to) >>> 1;
+		if (fork) {
+			EvaluationTask left = new EvaluationTask(population, timetable, from, middle);
+			left.fork();
+			double right = this.evalRange(population, timetable, middle, to, true);
+			return left.join() + right;
+		}
+		return this.evalRange(population, timetable, from, middle, false) + this.evalRange(population, timetable, middle, to, false);
+	}
+
+	/**
+	 * Evaluates one range of the population on the evaluation pool
+	 */
+	private class EvaluationTask extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+
+		private final Population population;
+		private final Timetable timetable;
+		private final int from;
+		private final int to;
+
+		EvaluationTask(Population population, Timetable timetable, int from, int to) {
+			this.population = population;
+			this.timetable = timetable;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Double compute() {
+			return evalRange(this.population, this.timetable, this.from, this.to, true);
+		}
 	}
 
 	/**
@@ -101,52 +388,76 @@ public class GeneticAlgorithm {
 	 * Tournament selection works by choosing N random individuals, and then
 	 * choosing the best of those.
 	 * 
+	 * The contestants are drawn with a partial Fisher-Yates shuffle of a
+	 * reusable array of slot offsets, so they are always distinct, nothing is
+	 * allocated, and the population keeps its order. Ties go to the
+	 * contestant drawn first.
+	 * 
 	 * @param population
 	 * @return The individual selected as a parent
 	 */
 	public Individual selectParent(Population population) {
-		// Create tournament
-		Population tournament = new Population(this.tournamentSize);
-
-		// Add random individuals to the tournament
-		population.shuffle();
-		for (int i = 0; i < this.tournamentSize; i++) {
-			Individual tournamentIndividual = population.getIndividual(i);
-			tournament.setIndividual(i, tournamentIndividual);
+		int populationSize = population.size();
+		if (this.tournamentOrder == null || this.tournamentOrder.length != populationSize) {
+			this.tournamentOrder = new int[populationSize];
+			for (int offset = 0; offset < populationSize; offset++) {
+				this.tournamentOrder[offset] = offset;
+			}
+		}
+		int order[] = this.tournamentOrder;
+		int tournamentSize = Math.min(this.tournamentSize, populationSize);
+
+		int winner = -1;
+		double winnerFitness = 0;
+		for (int i = 0; i < tournamentSize; i++) {
+			// Draw a contestant from the slots not yet drawn
+			int j = i + this.random.nextInt(populationSize - i);
+			int contestant = order[j];
+			order[j] = order[i];
+			order[i] = contestant;
+
+			// Keep the best
+			double fitness = population.getFitness(contestant);
+			if (winner == -1 || fitness > winnerFitness) {
+				winner = contestant;
+				winnerFitness = fitness;
+			}
 		}
 
-		// Return the best
-		return tournament.getFittest(0);
+		return population.getIndividual(winner);
 	}
 
 
 	/**
      * Apply mutation to population
      * 
+     * A mutated gene is replaced by a random value from its own domain, as if
+     * taken from the same gene of a random individual. The MutationSampler
+     * picks the genes to mutate, and only those genes are drawn, straight from
+     * the compiled timetable's candidate arrays.
+     * 
      * @param population
      * @param timetable
      * @return The mutated population
      */
 	public Population mutatePopulation(Population population, Timetable timetable) {
-		// Initialize new population
-		Population newPopulation = new Population(this.populationSize);
+		// Initialize new population, stored the same way as this one
+		Population newPopulation = this.nextPopulation(population);
+		CompiledTimetable compiled = timetable.compile();
 
 		// Loop over current population by fitness
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual individual = population.getFittest(populationIndex);
 
-			// Create random individual to swap genes with
-			Individual randomIndividual = new Individual(timetable);
-
-			// Loop over individual's genes
-			for (int geneIndex = 0; geneIndex < individual.getChromosomeLength(); geneIndex++) {
-				// Skip mutation if this is an elite individual
-				if (populationIndex > this.elitismCount) {
-					// Does this gene need mutation?
-					if (this.mutationRate > Math.random()) {
-						// Swap for new gene
-						individual.setGene(geneIndex, randomIndividual.getGene(geneIndex));
-					}
+			// Skip mutation if this is an elite individual
+			if (populationIndex > this.elitismCount) {
+				int chromosomeLength = individual.getChromosomeLength();
+
+				// Loop over the genes that need mutation
+				for (int geneIndex = this.mutationSampler.first(chromosomeLength); geneIndex < chromosomeLength;
+						geneIndex = this.mutationSampler.next(geneIndex, chromosomeLength)) {
+					// Swap for new gene
+					individual.setGene(geneIndex, compiled.randomGene(geneIndex, this.random));
 				}
 			}
 
@@ -165,25 +476,31 @@ public class GeneticAlgorithm {
      * @return The new population
      */
 	public Population crossoverPopulation(Population population) {
-		// Create new population
-		Population newPopulation = new Population(population.size());
+		// Create new population, stored the same way as this one
+		Population newPopulation = this.nextPopulation(population);
 
 		// Loop over current population by fitness
 		for (int populationIndex = 0; populationIndex < population.size(); populationIndex++) {
 			Individual parent1 = population.getFittest(populationIndex);
 
 			// Apply crossover to this individual?
-			if (this.crossoverRate > Math.random() && populationIndex >= this.elitismCount) {
-				// Initialize offspring
-				Individual offspring = new Individual(parent1.getChromosomeLength());
+			if (this.crossoverRate > this.random.nextDouble() && populationIndex >= this.elitismCount) {
+				// Initialize offspring; a packed population already has a row
+				// for it
+				Individual offspring = newPopulation.isPacked() ? newPopulation.getIndividual(populationIndex)
+						: new Individual(parent1.getChromosomeLength());
 				
 				// Find second parent
 				Individual parent2 = selectParent(population);
 
+				// Every gene is about to be rewritten, which is cheaper to
+				// recount afterwards than to track gene by gene
+				offspring.invalidateClashes();
+
 				// Loop over genome
 				for (int geneIndex = 0; geneIndex < parent1.getChromosomeLength(); geneIndex++) {
 					// Use half of parent1's genes and half of parent2's genes
-					if (0.5 > Math.random()) {
+					if (0.5 > this.random.nextDouble()) {
 						offspring.setGene(geneIndex, parent1.getGene(geneIndex));
 					} else {
 						offspring.setGene(geneIndex, parent2.getGene(geneIndex));
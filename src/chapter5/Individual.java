@@ -8,6 +8,20 @@ public class Individual {
 	private int[] chromosome;
 	private double fitness = -1;
 
+	/**
+	 * An individual in a packed population is a view onto one row of the
+	 * population's gene matrix: its genes are chromosome[chromosomeOffset]
+	 * through chromosome[chromosomeOffset + chromosomeLength - 1].
+	 */
+	private int chromosomeOffset;
+	private int chromosomeLength;
+
+	/**
+	 * Occupancy counts kept up to date by setGene, or null when clashes
+	 * aren't tracked; see trackClashes
+	 */
+	private ClashState clashState;
+
 	/**
 	 * Initializes random individual based on a timetable
 	 * 
@@ -26,37 +40,34 @@ public class Individual {
 	 * 
 	 * @param timetable
 	 *            The timetable information
+	 * @param random
+	 *            The random source for the genes
 	 */
-	public Individual(Timetable timetable) {
-		int numClasses = timetable.getNumClasses();
-
+	public Individual(Timetable timetable, RandomSource random) {
 		// 1 gene for room, 1 for time, 1 for professor
-		int chromosomeLength = numClasses * 3;
-		// Create random individual
-		int newChromosome[] = new int[chromosomeLength];
-		int chromosomeIndex = 0;
-		// Loop through groups
-		for (Group group : timetable.getGroupsAsArray()) {
-			// Loop through modules
-			for (int moduleId : group.getModuleIds()) {
-				// Add random time
-				int timeslotId = timetable.getRandomTimeslot().getTimeslotId();
-				newChromosome[chromosomeIndex] = timeslotId;
-				chromosomeIndex++;
-
-				// Add random room
-				int roomId = timetable.getRandomRoom().getRoomId();
-				newChromosome[chromosomeIndex] = roomId;
-				chromosomeIndex++;
-
-				// Add random professor
-				Module module = timetable.getModule(moduleId);
-				newChromosome[chromosomeIndex] = module.getRandomProfessorId();
-				chromosomeIndex++;
-			}
-		}
+		this(new int[timetable.getNumClasses() * 3]);
+		this.randomize(timetable, random);
+	}
 
-		this.chromosome = newChromosome;
+	/**
+	 * Overwrite the chromosome with random guesses at the variable
+	 * information, as described for Individual(Timetable, RandomSource)
+	 * 
+	 * @param timetable
+	 *            The timetable information
+	 * @param random
+	 *            The random source for the genes
+	 */
+	public void randomize(Timetable timetable, RandomSource random) {
+		// Create random individual, drawing each gene from its own domain:
+		// a random time, a random room and a random professor for each
+		// group's modules in turn
+		CompiledTimetable compiled = timetable.compile();
+		int chromosomeLength = compiled.getNumClasses() * 3;
+		this.invalidateClashes();
+		for (int gene = 0; gene < chromosomeLength; gene++) {
+			this.chromosome[this.chromosomeOffset + gene] = compiled.randomGene(gene, random);
+		}
 	}
 
 	/**
@@ -107,6 +118,7 @@ public class Individual {
 		}
 		
 		this.chromosome = individual;
+		this.chromosomeLength = chromosomeLength;
 	}
     
 	/**
@@ -117,25 +129,54 @@ public class Individual {
 	 */
 	public Individual(int[] chromosome) {
 		// Create individual chromosome
-		this.chromosome = chromosome;
+		this(chromosome, 0, chromosome.length);
+	}
+
+	/**
+	 * Initializes individual as a view over part of a larger gene array
+	 * 
+	 * @param genes
+	 *            The array holding the chromosome, eg a population's gene
+	 *            matrix
+	 * @param chromosomeOffset
+	 *            The index of the first gene in the array
+	 * @param chromosomeLength
+	 *            The number of genes in the chromosome
+	 */
+	public Individual(int[] genes, int chromosomeOffset, int chromosomeLength) {
+		this.chromosome = genes;
+		this.chromosomeOffset = chromosomeOffset;
+		this.chromosomeLength = chromosomeLength;
 	}
 
 	/**
 	 * Gets individual's chromosome
 	 * 
-	 * @return The individual's chromosome
+	 * For a view into a packed population this is the whole gene matrix; the
+	 * individual's genes start at getChromosomeOffset().
+	 * 
+	 * @return The array holding the individual's chromosome
 	 */
 	public int[] getChromosome() {
 		return this.chromosome;
 	}
 
+	/**
+	 * Gets the index of the individual's first gene in getChromosome()
+	 * 
+	 * @return The chromosome offset
+	 */
+	public int getChromosomeOffset() {
+		return this.chromosomeOffset;
+	}
+
 	/**
 	 * Gets individual's chromosome length
 	 * 
 	 * @return The individual's chromosome length
 	 */
 	public int getChromosomeLength() {
-		return this.chromosome.length;
+		return this.chromosomeLength;
 	}
 
 	/**
@@ -145,7 +186,10 @@ public class Individual {
 	 * @param offset
 	 */
 	public void setGene(int offset, int gene) {
-		this.chromosome[offset] = gene;
+		if (this.clashState != null) {
+			this.clashState.change(this.chromosome, this.chromosomeOffset, offset, gene);
+		}
+		this.chromosome[this.chromosomeOffset + offset] = gene;
 	}
 
 	/**
@@ -155,7 +199,78 @@ public class Individual {
 	 * @return gene
 	 */
 	public int getGene(int offset) {
-		return this.chromosome[offset];
+		return this.chromosome[this.chromosomeOffset + offset];
+	}
+
+	/**
+	 * Count the individual's clashes and keep counting them as genes change
+	 * 
+	 * After this, setGene updates the count in constant time, and
+	 * getTrackedClashes returns it without looking at the rest of the
+	 * chromosome. The occupancy counts cost an int per (room, timeslot) and
+	 * per (professor, timeslot), and are reused by later calls for the same
+	 * compiled timetable.
+	 * 
+	 * Genes written other than through setGene, eg straight into a packed
+	 * population's gene matrix, aren't seen; call invalidateClashes, and
+	 * trackClashes again to recount.
+	 * 
+	 * @param compiled
+	 *            The compiled timetable the chromosome is for
+	 * @return The number of clashes
+	 */
+	public int trackClashes(CompiledTimetable compiled) {
+		if (this.clashState == null || this.clashState.getCompiledTimetable() != compiled) {
+			this.clashState = new ClashState(compiled);
+		}
+		return this.clashState.recount(this.chromosome, this.chromosomeOffset);
+	}
+
+	/**
+	 * Get the tracked number of clashes
+	 * 
+	 * @param compiled
+	 *            The compiled timetable the clashes should be for
+	 * @return The number of clashes, or -1 if they aren't being tracked
+	 *         against that compiled timetable
+	 */
+	public int getTrackedClashes(CompiledTimetable compiled) {
+		ClashState clashState = this.clashState;
+		if (clashState == null || clashState.isValid() == false || clashState.getCompiledTimetable() != compiled) {
+			return -1;
+		}
+		return clashState.getClashes();
+	}
+
+	/**
+	 * Stop tracking clashes until the next trackClashes, keeping the counts'
+	 * memory for it
+	 * 
+	 * Worth calling before rewriting most of the chromosome, which is cheaper
+	 * to recount afterwards than to track gene by gene.
+	 */
+	public void invalidateClashes() {
+		if (this.clashState != null) {
+			this.clashState.invalidate();
+		}
+	}
+
+	/**
+	 * Take on another individual's tracked clashes, after its genes have been
+	 * copied into this one
+	 * 
+	 * @param source
+	 */
+	void copyClashState(Individual source) {
+		ClashState sourceState = source.clashState;
+		if (sourceState == null || sourceState.isValid() == false) {
+			this.invalidateClashes();
+			return;
+		}
+		if (this.clashState == null || this.clashState.getCompiledTimetable() != sourceState.getCompiledTimetable()) {
+			this.clashState = new ClashState(sourceState.getCompiledTimetable());
+		}
+		this.clashState.copyFrom(sourceState);
 	}
 
 	/**
@@ -179,8 +294,8 @@ public class Individual {
 	
 	public String toString() {
 		String output = "";
-		for (int gene = 0; gene < this.chromosome.length; gene++) {
-			output += this.chromosome[gene] + ",";
+		for (int gene = 0; gene < this.chromosomeLength; gene++) {
+			output += this.getGene(gene) + ",";
 		}
 		return output;
 	}
@@ -196,7 +311,8 @@ public class Individual {
 	 * @return
 	 */
 	public boolean containsGene(int gene) {
-		for (int i = 0; i < this.chromosome.length; i++) {
+		int end = this.chromosomeOffset + this.chromosomeLength;
+		for (int i = this.chromosomeOffset; i < end; i++) {
 			if (this.chromosome[i] == gene) {
 				return true;
 			}
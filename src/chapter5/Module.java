@@ -51,13 +51,23 @@ public class Module {
         return this.module;
     }
     
+    /**
+     * Get the IDs of the professors who can teach the module
+     * 
+     * @return professorIds
+     */
+    public int[] getProfessorIds(){
+        return this.professorIds;
+    }
+    
     /**
      * Get random professor Id
      * 
+     * @param random The random source to draw from
      * @return professorId
      */
-    public int getRandomProfessorId(){
-        int professorId = professorIds[(int) (professorIds.length * Math.random())];
+    public int getRandomProfessorId(RandomSource random){
+        int professorId = professorIds[random.nextInt(professorIds.length)];
         return professorId;
     }
 }
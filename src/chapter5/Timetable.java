@@ -18,10 +18,13 @@ import java.util.HashMap;
  * information with getters and setters, but it's more convenient to work with
  * them than with the chromosome directly.
  * 
- * The calcClashes method is used by GeneticAlgorithm.calcFitness, and requires
- * that createClasses has been run first. calcClashes looks at the Class objects
- * created by createClasses, and figures out how many hard constraints have been
- * violated.
+ * The calcClashes method requires that createClasses has been run first.
+ * calcClashes looks at the Class objects created by createClasses, and figures
+ * out how many hard constraints have been violated.
+ * 
+ * GeneticAlgorithm.calcFitness uses calcClashes(Individual) instead, which
+ * counts the same clashes straight from the chromosome, so Class objects are
+ * only created for the timetable that is finally printed.
  * 
  */
 public class Timetable {
@@ -34,6 +37,21 @@ public class Timetable {
 
 	private int numClasses = 0;
 
+	/**
+	 * The maps' values as arrays, built on first use so that random picks and
+	 * loops over the groups don't copy a map every time. Adding to a map
+	 * drops its array.
+	 */
+	private Room roomsArray[];
+	private Group groupsArray[];
+	private Timeslot timeslotsArray[];
+
+	/**
+	 * The compiled form of this timetable, built on first use and dropped
+	 * whenever anything is added
+	 */
+	private CompiledTimetable compiled;
+
 	/**
 	 * Initialize new Timetable
 	 */
@@ -63,21 +81,26 @@ public class Timetable {
 		this.modules = cloneable.getModules();
 		this.groups = cloneable.getGroups();
 		this.timeslots = cloneable.getTimeslots();
+		this.roomsArray = cloneable.roomsArray;
+		this.groupsArray = cloneable.groupsArray;
+		this.timeslotsArray = cloneable.timeslotsArray;
+		this.numClasses = cloneable.numClasses;
+		this.compiled = cloneable.compiled;
 	}
 
-	private HashMap<Integer, Group> getGroups() {
+	HashMap<Integer, Group> getGroups() {
 		return this.groups;
 	}
 
-	private HashMap<Integer, Timeslot> getTimeslots() {
+	HashMap<Integer, Timeslot> getTimeslots() {
 		return this.timeslots;
 	}
 
-	private HashMap<Integer, Module> getModules() {
+	HashMap<Integer, Module> getModules() {
 		return this.modules;
 	}
 
-	private HashMap<Integer, Professor> getProfessors() {
+	HashMap<Integer, Professor> getProfessors() {
 		return this.professors;
 	}
 
@@ -90,6 +113,8 @@ public class Timetable {
 	 */
 	public void addRoom(int roomId, String roomName, int capacity) {
 		this.rooms.put(roomId, new Room(roomId, roomName, capacity));
+		this.roomsArray = null;
+		this.compiled = null;
 	}
 
 	/**
@@ -100,6 +125,7 @@ public class Timetable {
 	 */
 	public void addProfessor(int professorId, String professorName) {
 		this.professors.put(professorId, new Professor(professorId, professorName));
+		this.compiled = null;
 	}
 
 	/**
@@ -112,6 +138,7 @@ public class Timetable {
 	 */
 	public void addModule(int moduleId, String moduleCode, String module, int professorIds[]) {
 		this.modules.put(moduleId, new Module(moduleId, moduleCode, module, professorIds));
+		this.compiled = null;
 	}
 
 	/**
@@ -123,7 +150,9 @@ public class Timetable {
 	 */
 	public void addGroup(int groupId, int groupSize, int moduleIds[]) {
 		this.groups.put(groupId, new Group(groupId, groupSize, moduleIds));
+		this.groupsArray = null;
 		this.numClasses = 0;
+		this.compiled = null;
 	}
 
 	/**
@@ -134,6 +163,8 @@ public class Timetable {
 	 */
 	public void addTimeslot(int timeslotId, String timeslot) {
 		this.timeslots.put(timeslotId, new Timeslot(timeslotId, timeslot));
+		this.timeslotsArray = null;
+		this.compiled = null;
 	}
 
 	/**
@@ -156,28 +187,24 @@ public class Timetable {
 
 		// Get individual's chromosome
 		int chromosome[] = individual.getChromosome();
-		int chromosomePos = 0;
-		int classIndex = 0;
+		int chromosomePos = individual.getChromosomeOffset();
+		CompiledTimetable compiled = this.compile();
 
-		for (Group group : this.getGroupsAsArray()) {
-			int moduleIds[] = group.getModuleIds();
-			for (int moduleId : moduleIds) {
-				classes[classIndex] = new Class(classIndex, group.getGroupId(), moduleId);
+		for (int classIndex = 0; classIndex < classes.length; classIndex++) {
+			classes[classIndex] = new Class(classIndex, compiled.getClassGroupId(classIndex),
+					compiled.getClassModuleId(classIndex));
 
-				// Add timeslot
-				classes[classIndex].addTimeslot(chromosome[chromosomePos]);
-				chromosomePos++;
+			// Add timeslot
+			classes[classIndex].addTimeslot(chromosome[chromosomePos]);
+			chromosomePos++;
 
-				// Add room
-				classes[classIndex].setRoomId(chromosome[chromosomePos]);
-				chromosomePos++;
+			// Add room
+			classes[classIndex].setRoomId(chromosome[chromosomePos]);
+			chromosomePos++;
 
-				// Add professor
-				classes[classIndex].addProfessor(chromosome[chromosomePos]);
-				chromosomePos++;
-
-				classIndex++;
-			}
+			// Add professor
+			classes[classIndex].addProfessor(chromosome[chromosomePos]);
+			chromosomePos++;
 		}
 
 		this.classes = classes;
@@ -203,11 +230,16 @@ public class Timetable {
 	/**
 	 * Get random room
 	 * 
+	 * @param random
+	 *            The random source to draw from
 	 * @return room
 	 */
-	public Room getRandomRoom() {
-		Object[] roomsArray = this.rooms.values().toArray();
-		Room room = (Room) roomsArray[(int) (roomsArray.length * Math.random())];
+	public Room getRandomRoom(RandomSource random) {
+		if (this.roomsArray == null) {
+			this.roomsArray = this.rooms.values().toArray(new Room[this.rooms.size()]);
+		}
+		Object[] roomsArray = this.roomsArray;
+		Room room = (Room) roomsArray[random.nextInt(roomsArray.length)];
 		return room;
 	}
 
@@ -255,10 +287,15 @@ public class Timetable {
 	/**
 	 * Get all student groups
 	 * 
+	 * The array is shared between calls, so don't modify it.
+	 * 
 	 * @return array of groups
 	 */
 	public Group[] getGroupsAsArray() {
-		return (Group[]) this.groups.values().toArray(new Group[this.groups.size()]);
+		if (this.groupsArray == null) {
+			this.groupsArray = (Group[]) this.groups.values().toArray(new Group[this.groups.size()]);
+		}
+		return this.groupsArray;
 	}
 
 	/**
@@ -274,11 +311,16 @@ public class Timetable {
 	/**
 	 * Get random timeslotId
 	 * 
+	 * @param random
+	 *            The random source to draw from
 	 * @return timeslot
 	 */
-	public Timeslot getRandomTimeslot() {
-		Object[] timeslotArray = this.timeslots.values().toArray();
-		Timeslot timeslot = (Timeslot) timeslotArray[(int) (timeslotArray.length * Math.random())];
+	public Timeslot getRandomTimeslot(RandomSource random) {
+		if (this.timeslotsArray == null) {
+			this.timeslotsArray = this.timeslots.values().toArray(new Timeslot[this.timeslots.size()]);
+		}
+		Object[] timeslotArray = this.timeslotsArray;
+		Timeslot timeslot = (Timeslot) timeslotArray[random.nextInt(timeslotArray.length)];
 		return timeslot;
 	}
 
@@ -302,8 +344,7 @@ public class Timetable {
 		}
 
 		int numClasses = 0;
-		Group groups[] = (Group[]) this.groups.values().toArray(new Group[this.groups.size()]);
-		for (Group group : groups) {
+		for (Group group : this.getGroupsAsArray()) {
 			numClasses += group.getModuleIds().length;
 		}
 		this.numClasses = numClasses;
@@ -311,6 +352,23 @@ public class Timetable {
 		return this.numClasses;
 	}
 
+	/**
+	 * Compile the timetable for evaluation
+	 * 
+	 * The compiled timetable is kept until something is added to this one,
+	 * so calling this again is cheap. See CompiledTimetable.
+	 * 
+	 * @return The compiled timetable
+	 */
+	public CompiledTimetable compile() {
+		CompiledTimetable compiled = this.compiled;
+		if (compiled == null) {
+			compiled = new CompiledTimetable(this);
+			this.compiled = compiled;
+		}
+		return compiled;
+	}
+
 	/**
 	 * Calculate the number of clashes between Classes generated by a
 	 * chromosome.
@@ -324,46 +382,35 @@ public class Timetable {
 	 * timeslots, or rooms), and that return value is used by the
 	 * GeneticAlgorithm.calcFitness method.
 	 * 
-	 * There's nothing too difficult here either -- loop through this.classes,
-	 * and check constraints against the rest of the this.classes.
-	 * 
-	 * The two inner `for` loops can be combined here as an optimization, but
-	 * kept separate for clarity. For small values of this.classes.length it
-	 * doesn't make a difference, but for larger values it certainly does.
+	 * Each class scores one clash if its room is too small for its group, one
+	 * if any other class is in the same room at the same time, and one if any
+	 * other class has the same professor at the same time. Comparing every
+	 * class with every other would take time quadratic in the number of
+	 * classes; instead the compiled timetable books each class into the
+	 * calling thread's ClashCounter, which counts the classes per (room,
+	 * timeslot) and per (professor, timeslot) and so gives the same total in
+	 * linear time.
 	 * 
 	 * @return numClashes
 	 */
 	public int calcClashes() {
-		int clashes = 0;
-
-		for (Class classA : this.classes) {
-			// Check room capacity
-			int roomCapacity = this.getRoom(classA.getRoomId()).getRoomCapacity();
-			int groupSize = this.getGroup(classA.getGroupId()).getGroupSize();
-			
-			if (roomCapacity < groupSize) {
-				clashes++;
-			}
-
-			// Check if room is taken
-			for (Class classB : this.classes) {
-				if (classA.getRoomId() == classB.getRoomId() && classA.getTimeslotId() == classB.getTimeslotId()
-						&& classA.getClassId() != classB.getClassId()) {
-					clashes++;
-					break;
-				}
-			}
-
-			// Check if professor is available
-			for (Class classB : this.classes) {
-				if (classA.getProfessorId() == classB.getProfessorId() && classA.getTimeslotId() == classB.getTimeslotId()
-						&& classA.getClassId() != classB.getClassId()) {
-					clashes++;
-					break;
-				}
-			}
-		}
+		return this.compile().calcClashes(this.classes);
+	}
 
-		return clashes;
+	/**
+	 * Calculate the number of clashes in an individual's timetable without
+	 * unpacking its chromosome
+	 * 
+	 * Counts the same clashes as createClasses followed by calcClashes(), but
+	 * reads each class's timeslot, room and professor straight from the
+	 * chromosome, and everything else from the compiled timetable. Nothing is
+	 * allocated and this timetable isn't changed, so any number of threads
+	 * can evaluate individuals against it at once.
+	 * 
+	 * @param individual
+	 * @return numClashes
+	 */
+	public int calcClashes(Individual individual) {
+		return this.compile().calcClashes(individual.getChromosome(), individual.getChromosomeOffset());
 	}
 }
\ No newline at end of file
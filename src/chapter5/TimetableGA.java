@@ -33,8 +33,12 @@ public class TimetableGA {
     	// Get a Timetable object with all the available information.
         Timetable timetable = initializeTimetable();
         
+        // All random numbers come from this source; give it a seed, eg
+        // new RandomSource(42), to replay the same run
+        RandomSource random = new RandomSource();
+
         // Initialize GA
-        GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.01, 0.9, 2, 5);
+        GeneticAlgorithm ga = new GeneticAlgorithm(100, 0.01, 0.9, 2, 5, random);
         
         // Initialize population
         Population population = ga.initPopulation(timetable);
@@ -99,7 +103,7 @@ public class TimetableGA {
      * 
      * @return
      */
-	private static Timetable initializeTimetable() {
+	static Timetable initializeTimetable() {
 		// Create timetable
 		Timetable timetable = new Timetable();
 